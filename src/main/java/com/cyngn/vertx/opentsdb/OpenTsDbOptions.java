@@ -1,10 +1,32 @@
 package com.cyngn.vertx.opentsdb;
 
+import com.cyngn.vertx.opentsdb.service.ChangeFilter;
+import com.cyngn.vertx.opentsdb.service.MetricsClock;
+import com.cyngn.vertx.opentsdb.service.MetricsProcessor;
+import com.cyngn.vertx.opentsdb.service.MetricsRing;
+import com.cyngn.vertx.opentsdb.service.OverloadPolicy;
+import com.cyngn.vertx.opentsdb.service.RetryQueue;
+import com.cyngn.vertx.opentsdb.service.RollupStage;
+import com.cyngn.vertx.opentsdb.service.SenderHealth;
+import com.cyngn.vertx.opentsdb.service.SenderRing;
+import com.cyngn.vertx.opentsdb.service.SeriesAggregator;
+import com.cyngn.vertx.opentsdb.service.SeriesCoalescer;
+import com.cyngn.vertx.opentsdb.service.SeriesKeyCache;
+import com.cyngn.vertx.opentsdb.service.SpillQueue;
+import com.cyngn.vertx.opentsdb.service.client.OpenTsDbClient;
+import com.cyngn.vertx.opentsdb.service.client.SenderPool;
 import com.cyngn.vertx.opentsdb.spi.SpiOptions;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.metrics.MetricsOptions;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
 /**
  * The options for OpenTsDb
  *
@@ -14,7 +36,12 @@ public class OpenTsDbOptions extends MetricsOptions implements SpiOptions {
 
     public static final int OPENTSDB_DEFAULT_MAX_TAGS = 8;
     public final static String DEFAULT_ADDRESS = "vertx.opentsdb-reporter";
+    public static final long DEFAULT_MAX_TIMESTAMP_SKEW = 1000 * 60 * 60;
+    public static final String TELNET_PROTOCOL = "telnet";
+    public static final String HTTP_PROTOCOL = "http";
     private final int DEFAULT_MTU = 1500;
+    private final int DEFAULT_CLOCK_RESOLUTION = 10;
+    private final int DEFAULT_FLUSH_THRESHOLD_BUFFERS = 16;
     private final int defaultTagCount;
     private final String defaultTags;
 
@@ -23,9 +50,46 @@ public class OpenTsDbOptions extends MetricsOptions implements SpiOptions {
     private String address;
     private String prefix;
     private int flushInterval;
+    private long flushThresholdBytes;
+    private boolean adaptiveFlush;
+    private int minFlushInterval;
+    private int maxFlushInterval;
     private int maxBacklog;
+    private long maxBacklogBytes;
+    private OverloadPolicy.Type overloadPolicy;
+    private double overloadSampleRate;
+    private boolean coalesce;
+    private int coalesceMaxSeries;
+    private List<String> onChangePatterns;
+    private long onChangeHeartbeat;
+    private int onChangeMaxSeries;
+    private int aggregateMaxSeries;
+    private List<String> rollupWindows;
+    private int rollupMaxSeries;
+    private int backlogSlotBytes;
+    private boolean backlogMetrics;
     private int maxTags;
     private int spiPublishInterval;
+    private int seriesCacheSize;
+    private MetricsClock.Type clockType;
+    private int clockResolution;
+    private long maxTimestampSkew;
+    private TimeUnit timestampPrecision;
+    private boolean alignTimestamps;
+    private MetricsProcessor.Sharding sharding;
+    private int virtualNodes;
+    private int recoveryFlushes;
+    private int maxInflightBytes;
+    private int connectionsPerHost;
+    private int standbyConnections;
+    private boolean senderEventLoops;
+    private long retryMaxBytes;
+    private int retryMaxAttempts;
+    private long retryMaxAge;
+    private String spillDir;
+    private long spillMaxBytes;
+    private long spillSegmentBytes;
+    private long spillReplayBytesPerSecond;
 
     // flags for enabling/disabling various metrics
     private boolean eventBusEnabled = true;
@@ -41,9 +105,43 @@ public class OpenTsDbOptions extends MetricsOptions implements SpiOptions {
         maxTags = OPENTSDB_DEFAULT_MAX_TAGS;
         address = DEFAULT_ADDRESS;
         flushInterval = 1000;
+        flushThresholdBytes = (long) maxBufferBytes * DEFAULT_FLUSH_THRESHOLD_BUFFERS;
+        adaptiveFlush = false;
+        minFlushInterval = flushInterval / 10;
+        maxFlushInterval = flushInterval * 5;
         maxBacklog = Integer.MIN_VALUE;
+        backlogSlotBytes = MetricsRing.DEFAULT_SLOT_BYTES;
         defaultTagCount = 0;
         spiPublishInterval = flushInterval;
+        seriesCacheSize = SeriesKeyCache.DEFAULT_MAX_SIZE;
+        clockType = MetricsClock.Type.SYSTEM;
+        clockResolution = DEFAULT_CLOCK_RESOLUTION;
+        maxTimestampSkew = DEFAULT_MAX_TIMESTAMP_SKEW;
+        timestampPrecision = TimeUnit.MILLISECONDS;
+        alignTimestamps = false;
+        sharding = MetricsProcessor.Sharding.ROUND_ROBIN;
+        virtualNodes = SenderRing.DEFAULT_VIRTUAL_NODES;
+        recoveryFlushes = SenderHealth.DEFAULT_RECOVERY_FLUSHES;
+        maxInflightBytes = OpenTsDbClient.DEFAULT_MAX_INFLIGHT_BYTES;
+        connectionsPerHost = SenderPool.DEFAULT_CONNECTIONS;
+        standbyConnections = 0;
+        senderEventLoops = false;
+        maxBacklogBytes = Long.MAX_VALUE;
+        overloadPolicy = OverloadPolicy.Type.REJECT;
+        overloadSampleRate = OverloadPolicy.DEFAULT_SAMPLE_RATE;
+        coalesceMaxSeries = SeriesCoalescer.DEFAULT_MAX_SERIES;
+        onChangePatterns = Collections.emptyList();
+        onChangeHeartbeat = ChangeFilter.DEFAULT_HEARTBEAT;
+        onChangeMaxSeries = ChangeFilter.DEFAULT_MAX_SERIES;
+        aggregateMaxSeries = SeriesAggregator.DEFAULT_MAX_SERIES;
+        rollupWindows = Collections.emptyList();
+        rollupMaxSeries = RollupStage.DEFAULT_MAX_SERIES;
+        retryMaxBytes = RetryQueue.DEFAULT_MAX_BYTES;
+        retryMaxAttempts = RetryQueue.DEFAULT_MAX_RETRIES;
+        retryMaxAge = RetryQueue.DEFAULT_MAX_AGE;
+        spillMaxBytes = SpillQueue.DEFAULT_MAX_BYTES;
+        spillSegmentBytes = SpillQueue.DEFAULT_SEGMENT_BYTES;
+        spillReplayBytesPerSecond = SpillQueue.DEFAULT_REPLAY_BYTES_PER_SECOND;
         defaultTags = "";
     }
 
@@ -55,22 +153,178 @@ public class OpenTsDbOptions extends MetricsOptions implements SpiOptions {
         prefix = other.prefix;
         maxTags = other.maxTags;
         flushInterval = other.flushInterval;
+        flushThresholdBytes = other.flushThresholdBytes;
+        adaptiveFlush = other.adaptiveFlush;
+        minFlushInterval = other.minFlushInterval;
+        maxFlushInterval = other.maxFlushInterval;
         maxBacklog = other.maxBacklog;
+        maxBacklogBytes = other.maxBacklogBytes;
+        overloadPolicy = other.overloadPolicy;
+        overloadSampleRate = other.overloadSampleRate;
+        coalesce = other.coalesce;
+        coalesceMaxSeries = other.coalesceMaxSeries;
+        onChangePatterns = other.onChangePatterns;
+        onChangeHeartbeat = other.onChangeHeartbeat;
+        onChangeMaxSeries = other.onChangeMaxSeries;
+        aggregateMaxSeries = other.aggregateMaxSeries;
+        rollupWindows = other.rollupWindows;
+        rollupMaxSeries = other.rollupMaxSeries;
+        backlogSlotBytes = other.backlogSlotBytes;
+        backlogMetrics = other.backlogMetrics;
         defaultTagCount = other.defaultTagCount;
         defaultTags = other.defaultTags;
         spiPublishInterval = other.spiPublishInterval;
+        seriesCacheSize = other.seriesCacheSize;
+        clockType = other.clockType;
+        clockResolution = other.clockResolution;
+        maxTimestampSkew = other.maxTimestampSkew;
+        timestampPrecision = other.timestampPrecision;
+        alignTimestamps = other.alignTimestamps;
+        sharding = other.sharding;
+        virtualNodes = other.virtualNodes;
+        recoveryFlushes = other.recoveryFlushes;
+        maxInflightBytes = other.maxInflightBytes;
+        connectionsPerHost = other.connectionsPerHost;
+        standbyConnections = other.standbyConnections;
+        senderEventLoops = other.senderEventLoops;
+        retryMaxBytes = other.retryMaxBytes;
+        retryMaxAttempts = other.retryMaxAttempts;
+        retryMaxAge = other.retryMaxAge;
+        spillDir = other.spillDir;
+        spillMaxBytes = other.spillMaxBytes;
+        spillSegmentBytes = other.spillSegmentBytes;
+        spillReplayBytesPerSecond = other.spillReplayBytesPerSecond;
     }
 
     public OpenTsDbOptions(JsonObject config) {
         super(config);
         hosts = config.getJsonArray("hosts", new JsonArray("[{ \"host\" : \"localhost\", \"port\" : 4242}]"));
+        for (int i = 0; i < hosts.size(); i++) {
+            String protocol = hosts.getJsonObject(i).getString("protocol", TELNET_PROTOCOL);
+            if (!TELNET_PROTOCOL.equals(protocol) && !HTTP_PROTOCOL.equals(protocol)) {
+                throw new IllegalArgumentException("Unknown host protocol '" + protocol + "', must be one of " +
+                        TELNET_PROTOCOL + " or " + HTTP_PROTOCOL);
+            }
+        }
         maxBufferBytes = config.getInteger("max_buffer_bytes", DEFAULT_MTU);
         prefix = config.getString("prefix", null);
         maxTags = config.getInteger("max_tags", OPENTSDB_DEFAULT_MAX_TAGS);
         flushInterval = config.getInteger("flush_interval_milli", 1000);
+        flushThresholdBytes = config.getLong("flush_threshold_bytes",
+                (long) maxBufferBytes * DEFAULT_FLUSH_THRESHOLD_BUFFERS);
+        adaptiveFlush = config.getBoolean("adaptive_flush", false);
+        minFlushInterval = config.getInteger("min_flush_interval_milli", Math.max(1, flushInterval / 10));
+        maxFlushInterval = config.getInteger("max_flush_interval_milli", flushInterval * 5);
+        if (adaptiveFlush && (minFlushInterval < 1 || minFlushInterval > flushInterval
+                || maxFlushInterval < flushInterval)) {
+            throw new IllegalArgumentException("adaptive_flush needs min_flush_interval_milli <= " +
+                    "flush_interval_milli <= max_flush_interval_milli");
+        }
         maxBacklog = config.getInteger("max_metric_backlog", Integer.MIN_VALUE);
+        maxBacklogBytes = config.getLong("max_backlog_bytes", Long.MAX_VALUE);
+        if (maxBacklogBytes < 1) { throw new IllegalArgumentException("max_backlog_bytes must be at least 1"); }
+        String policy = config.getString("overload_policy", OverloadPolicy.Type.REJECT.name());
+        try {
+            overloadPolicy = OverloadPolicy.Type.valueOf(policy.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown overload_policy '" + policy + "', must be one of reject, " +
+                    "drop_newest, drop_oldest, sample or block_publisher");
+        }
+        overloadSampleRate = config.getDouble("overload_sample_rate", OverloadPolicy.DEFAULT_SAMPLE_RATE);
+        if (overloadSampleRate < 0 || overloadSampleRate > 1) {
+            throw new IllegalArgumentException("overload_sample_rate must be between 0 and 1");
+        }
+        coalesce = config.getBoolean("coalesce", false);
+        coalesceMaxSeries = config.getInteger("coalesce_max_series", SeriesCoalescer.DEFAULT_MAX_SERIES);
+        if (coalesceMaxSeries < 1) { throw new IllegalArgumentException("coalesce_max_series must be at least 1"); }
+        onChangePatterns = new ArrayList<>();
+        for (Object pattern : config.getJsonArray("on_change_patterns", new JsonArray())) {
+            try {
+                Pattern.compile((String) pattern);
+            } catch (ClassCastException | PatternSyntaxException ex) {
+                throw new IllegalArgumentException("on_change_patterns must be a list of regular expressions, '" +
+                        pattern + "' is not valid");
+            }
+            onChangePatterns.add((String) pattern);
+        }
+        onChangeHeartbeat = config.getLong("on_change_heartbeat_milli", ChangeFilter.DEFAULT_HEARTBEAT);
+        if (onChangeHeartbeat < 1) {
+            throw new IllegalArgumentException("on_change_heartbeat_milli must be at least 1");
+        }
+        onChangeMaxSeries = config.getInteger("on_change_max_series", ChangeFilter.DEFAULT_MAX_SERIES);
+        if (onChangeMaxSeries < 4) { throw new IllegalArgumentException("on_change_max_series must be at least 4"); }
+        aggregateMaxSeries = config.getInteger("aggregate_max_series", SeriesAggregator.DEFAULT_MAX_SERIES);
+        if (aggregateMaxSeries < 1) { throw new IllegalArgumentException("aggregate_max_series must be at least 1"); }
+        rollupWindows = new ArrayList<>();
+        for (Object window : config.getJsonArray("rollup_windows", new JsonArray())) {
+            if (!(window instanceof String)) {
+                throw new IllegalArgumentException("rollup_windows must be a list of windows like \"1m\"");
+            }
+            RollupStage.parseWindow((String) window);
+            rollupWindows.add((String) window);
+        }
+        rollupMaxSeries = config.getInteger("rollup_max_series", RollupStage.DEFAULT_MAX_SERIES);
+        if (rollupMaxSeries < 1) { throw new IllegalArgumentException("rollup_max_series must be at least 1"); }
+        backlogSlotBytes = config.getInteger("backlog_slot_bytes", MetricsRing.DEFAULT_SLOT_BYTES);
+        backlogMetrics = config.getBoolean("backlog_metrics", false);
         address = config.getString("address", DEFAULT_ADDRESS);
         spiPublishInterval = config.getInteger("spi_publish_interval", 1000);
+        seriesCacheSize = config.getInteger("series_cache_size", SeriesKeyCache.DEFAULT_MAX_SIZE);
+        clockResolution = config.getInteger("clock_resolution_milli", DEFAULT_CLOCK_RESOLUTION);
+        maxTimestampSkew = config.getLong("max_timestamp_skew_milli", DEFAULT_MAX_TIMESTAMP_SKEW);
+        alignTimestamps = config.getBoolean("align_timestamps", false);
+        virtualNodes = config.getInteger("virtual_nodes", SenderRing.DEFAULT_VIRTUAL_NODES);
+        if (virtualNodes < 1) { throw new IllegalArgumentException("virtual_nodes must be at least 1"); }
+        recoveryFlushes = config.getInteger("recovery_flushes", SenderHealth.DEFAULT_RECOVERY_FLUSHES);
+        if (recoveryFlushes < 1) { throw new IllegalArgumentException("recovery_flushes must be at least 1"); }
+        maxInflightBytes = config.getInteger("max_inflight_bytes", OpenTsDbClient.DEFAULT_MAX_INFLIGHT_BYTES);
+        if (maxInflightBytes < 1) { throw new IllegalArgumentException("max_inflight_bytes must be at least 1"); }
+        connectionsPerHost = config.getInteger("connections_per_host", SenderPool.DEFAULT_CONNECTIONS);
+        if (connectionsPerHost < 1) { throw new IllegalArgumentException("connections_per_host must be at least 1"); }
+        standbyConnections = config.getInteger("standby_connections", 0);
+        if (standbyConnections < 0) { throw new IllegalArgumentException("standby_connections can't be negative"); }
+        senderEventLoops = config.getBoolean("sender_event_loops", false);
+        retryMaxBytes = config.getLong("retry_max_bytes", RetryQueue.DEFAULT_MAX_BYTES);
+        retryMaxAttempts = config.getInteger("retry_max_attempts", RetryQueue.DEFAULT_MAX_RETRIES);
+        if (retryMaxAttempts < 1) { throw new IllegalArgumentException("retry_max_attempts must be at least 1"); }
+        retryMaxAge = config.getLong("retry_max_age_milli", RetryQueue.DEFAULT_MAX_AGE);
+        spillDir = config.getString("spill_dir", null);
+        spillMaxBytes = config.getLong("spill_max_bytes", SpillQueue.DEFAULT_MAX_BYTES);
+        spillSegmentBytes = config.getLong("spill_segment_bytes", SpillQueue.DEFAULT_SEGMENT_BYTES);
+        spillReplayBytesPerSecond = config.getLong("spill_replay_bytes_per_sec",
+                SpillQueue.DEFAULT_REPLAY_BYTES_PER_SECOND);
+        if (spillDir != null && (spillMaxBytes < 1 || spillSegmentBytes < 1 || spillReplayBytesPerSecond < 1)) {
+            throw new IllegalArgumentException("spill_max_bytes, spill_segment_bytes and spill_replay_bytes_per_sec " +
+                    "must all be at least 1");
+        }
+
+        String precision = config.getString("timestamp_precision", "ms");
+        switch (precision) {
+            case "s": case "seconds": timestampPrecision = TimeUnit.SECONDS; break;
+            case "ms": case "milliseconds": timestampPrecision = TimeUnit.MILLISECONDS; break;
+            default: throw new IllegalArgumentException("Unknown timestamp_precision '" + precision +
+                    "', must be one of seconds or ms");
+        }
+
+        if (alignTimestamps && timestampPrecision == TimeUnit.SECONDS && flushInterval % 1000 != 0) {
+            throw new IllegalArgumentException("align_timestamps with second precision needs a flush_interval_milli " +
+                    "that is a whole number of seconds");
+        }
+
+        String clock = config.getString("clock", MetricsClock.Type.SYSTEM.name());
+        try {
+            clockType = MetricsClock.Type.valueOf(clock.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown clock '" + clock + "', must be one of system, coarse or batch");
+        }
+
+        String shardingMode = config.getString("sharding", MetricsProcessor.Sharding.ROUND_ROBIN.name());
+        try {
+            sharding = MetricsProcessor.Sharding.valueOf(shardingMode.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown sharding '" + shardingMode + "', must be one of round_robin " +
+                    "or consistent_hash");
+        }
 
         final JsonObject configuredTags = config.getJsonObject("tags");
         if (configuredTags != null && configuredTags.size() > maxTags) {
@@ -106,14 +360,118 @@ public class OpenTsDbOptions extends MetricsOptions implements SpiOptions {
         return flushInterval;
     }
 
+    public long getFlushThresholdBytes() { return flushThresholdBytes; }
+
+    public boolean isAdaptiveFlush() { return adaptiveFlush; }
+
+    public int getMinFlushInterval() { return minFlushInterval; }
+
+    public int getMaxFlushInterval() { return maxFlushInterval; }
+
     public int getMaxBacklog() {
         return maxBacklog;
     }
 
+    /**
+     * @return the max encoded bytes to hold in the backlog, Long.MAX_VALUE if unlimited
+     */
+    public long getMaxBacklogBytes() { return maxBacklogBytes; }
+
+    public OverloadPolicy.Type getOverloadPolicy() { return overloadPolicy; }
+
+    public double getOverloadSampleRate() { return overloadSampleRate; }
+
+    public boolean isCoalesce() { return coalesce; }
+
+    public int getCoalesceMaxSeries() { return coalesceMaxSeries; }
+
+    /**
+     * @return the regular expressions picking which metric names are only sent when their value changes
+     */
+    public List<String> getOnChangePatterns() { return onChangePatterns; }
+
+    /**
+     * @return how long in milliseconds an unchanged value of a change only series can go unsent
+     */
+    public long getOnChangeHeartbeat() { return onChangeHeartbeat; }
+
+    public int getOnChangeMaxSeries() { return onChangeMaxSeries; }
+
+    public int getAggregateMaxSeries() { return aggregateMaxSeries; }
+
+    /**
+     * @return the windows to roll every series up over, empty if rollups are off
+     */
+    public List<String> getRollupWindows() { return rollupWindows; }
+
+    public int getRollupMaxSeries() { return rollupMaxSeries; }
+
+    public int getBacklogSlotBytes() { return backlogSlotBytes; }
+
+    /**
+     * @return true if the service publishes its own backlog slab usage as metrics every spi publish interval
+     */
+    public boolean isBacklogMetrics() { return backlogMetrics; }
+
     public int getMaxTags() { return maxTags; }
 
     public int getSpiPublishInterval() { return spiPublishInterval; }
 
+    public int getSeriesCacheSize() { return seriesCacheSize; }
+
+    public MetricsClock.Type getClockType() { return clockType; }
+
+    public int getClockResolution() { return clockResolution; }
+
+    public long getMaxTimestampSkew() { return maxTimestampSkew; }
+
+    public TimeUnit getTimestampPrecision() { return timestampPrecision; }
+
+    public boolean isAlignTimestamps() { return alignTimestamps; }
+
+    public MetricsProcessor.Sharding getSharding() { return sharding; }
+
+    public int getVirtualNodes() { return virtualNodes; }
+
+    public int getRecoveryFlushes() { return recoveryFlushes; }
+
+    public int getMaxInflightBytes() { return maxInflightBytes; }
+
+    /**
+     * @return the number of connections each host's writes are spread across
+     */
+    public int getConnectionsPerHost() { return connectionsPerHost; }
+
+    /**
+     * @return the number of extra connections kept open to each host to take over from a connection that drops
+     */
+    public int getStandbyConnections() { return standbyConnections; }
+
+    /**
+     * @return true if every connection to a host gets an event loop of its own rather than sharing the service's
+     */
+    public boolean isSenderEventLoops() { return senderEventLoops; }
+
+    /**
+     * @return the max bytes of rejected writes to hold for retry, 0 or less if retries are disabled
+     */
+    public long getRetryMaxBytes() { return retryMaxBytes; }
+
+    public int getRetryMaxAttempts() { return retryMaxAttempts; }
+
+    public long getRetryMaxAge() { return retryMaxAge; }
+
+    /**
+     * @return the directory to spill metrics to, null if spilling is disabled
+     */
+    public String getSpillDir() { return spillDir; }
+
+    public long getSpillMaxBytes() { return spillMaxBytes; }
+
+    public long getSpillSegmentBytes() { return spillSegmentBytes; }
+
+    public long getSpillReplayBytesPerSecond() { return spillReplayBytesPerSecond; }
+
     public boolean isEventBusEnabled() { return eventBusEnabled; }
 
     public OpenTsDbOptions disableEventBus() {
@@ -153,8 +511,42 @@ public class OpenTsDbOptions extends MetricsOptions implements SpiOptions {
     public String toString() {
         StringBuilder builder = new StringBuilder();
         builder.append("OpenTsDbOptions[maxBufferSize=").append(maxBufferBytes).append(", address=").append(address)
-                .append(", maxTags=").append(maxTags).append(", flushInterval=").append(flushInterval)
-                .append("(ms), maxBacklog=").append(maxBacklog == Integer.MIN_VALUE ? "INFINITY" : maxBacklog);
+                .append(", maxTags=").append(maxTags).append(", flushInterval=").append(flushInterval);
+        if (adaptiveFlush) {
+            builder.append("(ms) adaptive between ").append(minFlushInterval).append(" and ").append(maxFlushInterval);
+        }
+        builder.append("(ms), flushThresholdBytes=").append(flushThresholdBytes)
+                .append(", maxBacklog=").append(maxBacklog == Integer.MIN_VALUE ? "INFINITY" : maxBacklog)
+                .append(", maxBacklogBytes=").append(maxBacklogBytes == Long.MAX_VALUE ? "INFINITY" : maxBacklogBytes)
+                .append(", overloadPolicy=").append(overloadPolicy)
+                .append(", coalesce=").append(coalesce ? coalesceMaxSeries + " series" : "false")
+                .append(", onChangePatterns=").append(onChangePatterns).append(", onChangeHeartbeat=")
+                .append(onChangeHeartbeat).append("(ms), onChangeMaxSeries=").append(onChangeMaxSeries)
+                .append(", aggregateMaxSeries=").append(aggregateMaxSeries)
+                .append(", rollupWindows=").append(rollupWindows).append(", rollupMaxSeries=").append(rollupMaxSeries)
+                .append(", backlogSlotBytes=").append(backlogSlotBytes)
+                .append(", backlogMetrics=").append(backlogMetrics)
+                .append(", seriesCacheSize=").append(seriesCacheSize).append(", clock=").append(clockType);
+        if (clockType == MetricsClock.Type.COARSE) { builder.append("(").append(clockResolution).append("ms)"); }
+        builder.append(", maxTimestampSkew=").append(maxTimestampSkew).append("(ms), timestampPrecision=")
+                .append(timestampPrecision).append(", alignTimestamps=").append(alignTimestamps)
+                .append(", sharding=").append(sharding);
+        if (sharding == MetricsProcessor.Sharding.CONSISTENT_HASH) {
+            builder.append("(").append(virtualNodes).append(" nodes)");
+        }
+        builder.append(", recoveryFlushes=").append(recoveryFlushes).append(", maxInflightBytes=")
+                .append(maxInflightBytes).append(", connectionsPerHost=").append(connectionsPerHost)
+                .append(", standbyConnections=").append(standbyConnections)
+                .append(", senderEventLoops=").append(senderEventLoops);
+        if (retryMaxBytes > 0) {
+            builder.append(", retryMaxBytes=").append(retryMaxBytes).append(", retryMaxAttempts=")
+                    .append(retryMaxAttempts).append(", retryMaxAge=").append(retryMaxAge).append("(ms)");
+        }
+        if (spillDir != null) {
+            builder.append(", spillDir=").append(spillDir).append(", spillMaxBytes=").append(spillMaxBytes)
+                    .append(", spillSegmentBytes=").append(spillSegmentBytes).append(", spillReplayBytesPerSecond=")
+                    .append(spillReplayBytesPerSecond);
+        }
         if (defaultTagCount > 0) { builder.append(", tags='").append(defaultTags).append("'"); }
         builder.append(", eventBusEnabled=").append(eventBusEnabled).append(", httpClientEnabled=")
                .append(httpClientEnabled).append(", httpServerEnabled=").append(httpServerEnabled)
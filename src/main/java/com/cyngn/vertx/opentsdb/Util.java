@@ -73,12 +73,21 @@ public class Util {
      * @return the properly constructed metric object
      */
     public static JsonObject createMetric(String name, String value, JsonObject tags) {
-        JsonObject obj = new JsonObject().put(OpenTsDbService.ACTION_FIELD, OpenTsDbService.ADD_COMMAND)
-                .put(MetricsParser.NAME_FIELD, name).put(MetricsParser.VALUE_FIELD, value);
-        if(tags != null && tags.size() > 0) {
-            obj.put(MetricsParser.TAGS_FIELD, tags);
-        }
-        return obj;
+        return createRawMetric(name, value, tags).put(OpenTsDbService.ACTION_FIELD, OpenTsDbService.ADD_COMMAND);
+    }
+
+    /**
+     * Create a metric object for sending to the OpenTsDb lib
+     *
+     * @param name the metric name
+     * @param value the metric value
+     * @param tags the tags to associate to this metric
+     * @param timestamp when the metric was recorded in seconds or milliseconds since the epoch
+     * @return the properly constructed metric object
+     */
+    public static JsonObject createMetric(String name, String value, JsonObject tags, long timestamp) {
+        return createRawMetric(name, value, tags, timestamp).put(OpenTsDbService.ACTION_FIELD,
+                OpenTsDbService.ADD_COMMAND);
     }
 
     /**
@@ -108,6 +117,20 @@ public class Util {
         return obj;
     }
 
+    /**
+     * Create a metric object for sending to the OpenTsDb lib but with no implicit command
+     *
+     * @param name the metric name
+     * @param value the metric value
+     * @param tags the tags to associate to this metric
+     * @param timestamp when the metric was recorded in seconds or milliseconds since the epoch
+     * @return the properly constructed metric object
+     */
+    public static JsonObject createRawMetric(String name, String value, JsonObject tags, long timestamp) {
+        if (timestamp <= 0) { throw new IllegalArgumentException("A metric timestamp must be positive"); }
+        return createRawMetric(name, value, tags).put(MetricsParser.TIMESTAMP_FIELD, timestamp);
+    }
+
     /**
      * Create a bulk metric object for sending to the OpenTsDb lib
      *
@@ -20,7 +20,7 @@ package com.cyngn.vertx.opentsdb.client;
  * @author truelove@cyngn.com (Jeremy Truelove) 4/25/15
  */
 public enum EventBusMessage {
-    WRITE_FAILURE, INVALID_DATA
+    WRITE_FAILURE, INVALID_DATA, BACKLOG_FULL
 }
 
 
@@ -15,6 +15,7 @@
 package com.cyngn.vertx.opentsdb.client;
 
 import com.cyngn.vertx.opentsdb.Util;
+import com.cyngn.vertx.opentsdb.service.OpenTsDbService;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
@@ -65,13 +66,26 @@ public class MetricPublisher {
         send(Util.createMetric(name, value, tags));
     }
 
+    /**
+     * Publish a metric that was recorded at a specific time, allows metrics to be buffered locally before being
+     *  published without skewing their timestamps.
+     *
+     * @param name the metric name
+     * @param value the metric value
+     * @param tags the tags to put on the metric
+     * @param timestamp when the metric was recorded in seconds or milliseconds since the epoch
+     */
+    public void send(String name, String value, JsonObject tags, long timestamp) {
+        send(Util.createMetric(name, value, tags, timestamp));
+    }
+
     /**
      * Publish a metric
      *
      * @param metric a full metric to send
      */
     public void send(TsMetric metric) {
-        bus.send(address, metric.asJson());
+        sendMetrics(metric.asJson().put(OpenTsDbService.ACTION_FIELD, OpenTsDbService.ADD_COMMAND));
     }
 
     /**
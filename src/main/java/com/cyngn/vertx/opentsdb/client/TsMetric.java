@@ -30,12 +30,18 @@ public class TsMetric {
     public final String name;
     public final String value;
     public final HashMap<String, String> tags;
+    // seconds or milliseconds since the epoch, null to have the service stamp the metric when it receives it
+    public final Long timestamp;
 
     public TsMetric(String name, String value) {
         this(name, value, null);
     }
 
     public TsMetric(String name, String value, HashMap<String,String> tags) {
+        this(name, value, tags, null);
+    }
+
+    public TsMetric(String name, String value, HashMap<String,String> tags, Long timestamp) {
         if (StringUtils.isEmpty(name)) {
             throw new IllegalArgumentException("A metric must have a name");
         }
@@ -44,9 +50,14 @@ public class TsMetric {
             throw new IllegalArgumentException("A metric must have a value");
         }
 
+        if (timestamp != null && timestamp <= 0) {
+            throw new IllegalArgumentException("A metric timestamp must be positive");
+        }
+
         this.name = name;
         this.value = value;
         this.tags = tags;
+        this.timestamp = timestamp;
     }
 
     /**
@@ -67,6 +78,8 @@ public class TsMetric {
             jsonObject.put(MetricsParser.TAGS_FIELD, tagMap);
         }
 
+        if (timestamp != null) { jsonObject.put(MetricsParser.TIMESTAMP_FIELD, timestamp); }
+
         return jsonObject;
     }
 
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A byte budget shared by several backlogs, so instances of the service that each have their own backlog still hold
+ *  no more than the configured bytes between them. Bytes are reserved with a single atomic add and handed back the
+ *  same way, nothing ever blocks.
+ */
+public class BacklogLimit {
+
+    private final long maxBytes;
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param maxBytes the max number of bytes all the backlogs can hold between them
+     */
+    public BacklogLimit(long maxBytes) {
+        if (maxBytes < 1) { throw new IllegalArgumentException("The backlog must be able to hold at least 1 byte"); }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param length the number of bytes to reserve
+     * @return true if the bytes were reserved, false if there isn't room for them
+     */
+    public boolean tryReserve(long length) {
+        // reserved up front so concurrent reservations can't overshoot the limit between them
+        if (bytes.addAndGet(length) > maxBytes) {
+            bytes.addAndGet(-length);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param length the number of bytes to hand back
+     */
+    public void release(long length) { bytes.addAndGet(-length); }
+
+    /**
+     * @return the number of bytes reserved, this is a snapshot when other backlogs are active
+     */
+    public long getBytes() { return bytes.get(); }
+
+    public long getMaxBytes() { return maxBytes; }
+}
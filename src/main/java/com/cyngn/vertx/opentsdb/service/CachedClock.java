@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import io.vertx.core.Vertx;
+
+/**
+ * A clock that hands out a cached time, so stamping a data point is a field read instead of a clock call. The time
+ *  is refreshed either by a Vert.x periodic timer or once at the start of every batch.
+ */
+public class CachedClock implements MetricsClock {
+
+    private final boolean refreshPerBatch;
+    private volatile long time;
+    private long timerId = -1;
+
+    private CachedClock(boolean refreshPerBatch) {
+        this.refreshPerBatch = refreshPerBatch;
+        refresh();
+    }
+
+    /**
+     * Create a clock that is refreshed on a timer.
+     *
+     * @param vertx the vertx instance to schedule the refresh timer on
+     * @param resolutionMilli how often to refresh the time
+     * @return the started clock, call {@link #stop(Vertx)} when done with it
+     */
+    public static CachedClock coarse(Vertx vertx, long resolutionMilli) {
+        CachedClock clock = new CachedClock(false);
+        clock.timerId = vertx.setPeriodic(resolutionMilli, id -> clock.refresh());
+        return clock;
+    }
+
+    /**
+     * @return a clock that is refreshed at the start of every batch
+     */
+    public static CachedClock perBatch() {
+        return new CachedClock(true);
+    }
+
+    public void refresh() {
+        time = System.currentTimeMillis();
+    }
+
+    @Override
+    public long now() { return time; }
+
+    @Override
+    public void startBatch() {
+        if (refreshPerBatch) { refresh(); }
+    }
+
+    /**
+     * Cancel the refresh timer if there is one.
+     *
+     * @param vertx the vertx instance the clock was started on
+     */
+    public void stop(Vertx vertx) {
+        if (timerId != -1) {
+            vertx.cancelTimer(timerId);
+            timerId = -1;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Suppresses points for series that only need sending when their value changes, a repeat of the last value sent is
+ *  dropped unless the heartbeat interval has passed since it was sent. A series is sent on change when the publisher
+ *  asks for it on the metric or its name matches one of the configured patterns.
+ *
+ * The last sent values live in a fixed size set associative table, each series can only sit in one of a few slots
+ *  picked by its hash and when those are all taken the series sent longest ago is evicted. An evicted series simply has
+ *  its next point sent, so the table bounds memory without ever holding back a change.
+ *
+ * Not thread safe, owned by the service.
+ */
+public class ChangeFilter {
+
+    public static final int DEFAULT_MAX_SERIES = 65536;
+    public static final long DEFAULT_HEARTBEAT = 1000 * 60 * 10;
+    private static final int WAYS = 4;
+
+    private final int sets;
+    private final long heartbeat;
+    private final Pattern[] patterns;
+    // allocated the first time a series is sent on change
+    private SeriesKey[] keys;
+    private String[] values;
+    private long[] sentAt;
+
+    private long suppressed;
+    private long evictions;
+
+    /**
+     * @param maxSeries the max number of series to remember the last value of
+     * @param heartbeat how long in milliseconds an unchanged value can go unsent
+     * @param patterns regular expressions matched against metric names to pick series sent on change
+     */
+    public ChangeFilter(int maxSeries, long heartbeat, List<String> patterns) {
+        if (maxSeries < WAYS) { throw new IllegalArgumentException("maxSeries must be at least " + WAYS); }
+        sets = Integer.highestOneBit(maxSeries / WAYS);
+        this.heartbeat = heartbeat;
+        this.patterns = new Pattern[patterns.size()];
+        for (int i = 0; i < this.patterns.length; i++) { this.patterns[i] = Pattern.compile(patterns.get(i)); }
+    }
+
+    /**
+     * Decide whether a point goes out, remembering it as the last value sent if it does.
+     *
+     * @param key the series of the point
+     * @param value the value of the point
+     * @param now the current time in milliseconds
+     * @param requested the publisher's choice from the metric, null to go by the name patterns
+     * @return true if the point should be sent
+     */
+    public boolean shouldSend(SeriesKey key, String value, long now, Boolean requested) {
+        if (!isChangeOnly(key, requested)) { return true; }
+        if (keys == null) {
+            keys = new SeriesKey[sets * WAYS];
+            values = new String[sets * WAYS];
+            sentAt = new long[sets * WAYS];
+        }
+
+        int base = set(key);
+        // every way is checked for the series, forget() can leave a free slot ahead of it
+        int victim = -1;
+        for (int i = base; i < base + WAYS; i++) {
+            SeriesKey held = keys[i];
+            if (held == null) {
+                if (victim < 0 || keys[victim] != null) { victim = i; }
+                continue;
+            }
+            if (held == key || held.equals(key)) {
+                if (value.equals(values[i]) && now - sentAt[i] < heartbeat) {
+                    suppressed++;
+                    return false;
+                }
+                values[i] = value;
+                sentAt[i] = now;
+                return true;
+            }
+            if (victim < 0 || (keys[victim] != null && sentAt[i] < sentAt[victim])) { victim = i; }
+        }
+
+        if (keys[victim] != null) { evictions++; }
+        keys[victim] = key;
+        values[victim] = value;
+        sentAt[victim] = now;
+        return true;
+    }
+
+    /**
+     * @param requested the publisher's choice from a metric, null to go by the name patterns
+     * @return true if a metric with this choice could be sent only on change, without looking at its series
+     */
+    public boolean mayApply(Boolean requested) { return requested == null ? patterns.length > 0 : requested; }
+
+    /**
+     * @param key the series of a point
+     * @param requested the publisher's choice from the metric, null to go by the name patterns
+     * @return true if the series is only sent on change
+     */
+    public boolean isChangeOnly(SeriesKey key, Boolean requested) {
+        return requested == null ? matchesPattern(key) : requested;
+    }
+
+    /**
+     * Forget the last value sent for a series, for when a point that was let through never made it into the backlog.
+     *
+     * @param key the series to forget
+     */
+    public void forget(SeriesKey key) {
+        if (keys == null) { return; }
+        int base = set(key);
+        for (int i = base; i < base + WAYS; i++) {
+            if (keys[i] != null && keys[i].equals(key)) {
+                keys[i] = null;
+                values[i] = null;
+                return;
+            }
+        }
+    }
+
+    private int set(SeriesKey key) {
+        int hash = key.hashCode();
+        return ((hash ^ (hash >>> 16)) & (sets - 1)) * WAYS;
+    }
+
+    private boolean matchesPattern(SeriesKey key) {
+        if (patterns.length == 0) { return false; }
+        // the decision is made once per key rather than running the patterns on every point
+        if (key.changeOnly == 0) {
+            key.changeOnly = 2;
+            for (Pattern pattern : patterns) {
+                if (pattern.matcher(key.getName()).matches()) {
+                    key.changeOnly = 1;
+                    break;
+                }
+            }
+        }
+        return key.changeOnly == 1;
+    }
+
+    /**
+     * @return the number of unchanged points not sent
+     */
+    public long getSuppressed() { return suppressed; }
+
+    /**
+     * @return the number of series pushed out of the table to make room for others
+     */
+    public long getEvictions() { return evictions; }
+
+    @Override
+    public String toString() {
+        return String.format("change filter: suppressed: %d evictions: %d", suppressed, evictions);
+    }
+}
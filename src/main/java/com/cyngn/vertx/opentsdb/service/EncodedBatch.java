@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import java.util.Arrays;
+
+/**
+ * Holds the encoded lines of an 'add_all' batch so the whole batch can be checked before any of it is queued. The
+ *  arrays are reused from batch to batch. Typed metrics have no line, they only hold their place in the batch, as do
+ *  typed metrics handed over to the instance of the service that owns their series.
+ */
+final class EncodedBatch {
+
+    private static final int HANDED_OFF = -1;
+    private static final int REJECTED = -2;
+
+    private byte[] lines = new byte[4096];
+    private int[] offsets = new int[64];
+    private int[] lengths = new int[64];
+    private SeriesKey[] keys = new SeriesKey[64];
+    private long[] timestamps = new long[64];
+    private int size;
+    private int bytes;
+
+    void clear() {
+        size = 0;
+        bytes = 0;
+    }
+
+    void add(SeriesKey key, byte[] line, int length, long timestamp) {
+        if (bytes + length > lines.length) { lines = Arrays.copyOf(lines, Math.max(lines.length * 2, bytes + length)); }
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+        }
+
+        System.arraycopy(line, 0, lines, bytes, length);
+        offsets[size] = bytes;
+        lengths[size] = length;
+        keys[size] = key;
+        timestamps[size] = timestamp;
+        size++;
+        bytes += length;
+    }
+
+    /**
+     * Hold the place of a metric that is aggregated rather than queued as a line.
+     */
+    void addAggregated(SeriesKey key) { add(key, lines, 0, 0); }
+
+    boolean isAggregated(int index) { return lengths[index] == 0; }
+
+    /**
+     * Hold the place of a typed metric that another instance aggregates.
+     */
+    void addHandedOff(SeriesKey key) {
+        addAggregated(key);
+        lengths[size - 1] = HANDED_OFF;
+    }
+
+    boolean isHandedOff(int index) { return lengths[index] == HANDED_OFF; }
+
+    /**
+     * Mark a line the backlog didn't take once the batch has been queued.
+     */
+    void reject(int index) { lengths[index] = REJECTED; }
+
+    boolean isRejected(int index) { return lengths[index] == REJECTED; }
+
+    int size() { return size; }
+
+    int bytes() { return bytes; }
+
+    byte[] lines() { return lines; }
+
+    int offset(int index) { return offsets[index]; }
+
+    int length(int index) { return lengths[index]; }
+
+    SeriesKey key(int index) { return keys[index]; }
+
+    /**
+     * @return the timestamp of the metric in milliseconds
+     */
+    long timestamp(int index) { return timestamps[index]; }
+}
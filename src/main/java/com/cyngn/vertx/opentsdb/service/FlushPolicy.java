@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+/**
+ * Decides when the backlog gets flushed. The periodic flush interval can adapt to load, shrinking while the backlog
+ *  is filling up quickly and growing while it is idle so quiet periods don't turn into lots of tiny writes, and a
+ *  flush is also triggered early once enough bytes are queued. Counts every flush by the reason it happened.
+ *
+ * Not thread safe, owned by the service.
+ */
+public class FlushPolicy {
+
+    /**
+     * Why a flush happened.
+     */
+    public enum Trigger {
+        /** the flush interval elapsed */
+        TIMER,
+        /** the queued bytes hit the flush threshold */
+        SIZE,
+        /** a sender that had used up its write budget has room again */
+        DRAIN,
+        /** the service is shutting down */
+        SHUTDOWN
+    }
+
+    private final long minInterval;
+    private final long maxInterval;
+    private final long thresholdBytes;
+    private final long tinyBytes;
+    private final boolean adaptive;
+    private final long[] counts = new long[Trigger.values().length];
+    private long interval;
+
+    /**
+     * @param interval the starting flush interval in milliseconds
+     * @param minInterval the shortest the interval can adapt down to
+     * @param maxInterval the longest the interval can adapt up to
+     * @param thresholdBytes flush early once this many bytes are queued, 0 or less to only flush on the timer
+     * @param tinyBytes flushes of fewer bytes than this are considered tiny and stretch the interval
+     * @param adaptive should the interval adapt to load or stay fixed
+     */
+    public FlushPolicy(long interval, long minInterval, long maxInterval, long thresholdBytes, long tinyBytes,
+                       boolean adaptive) {
+        if (adaptive && (minInterval < 1 || minInterval > interval || maxInterval < interval)) {
+            throw new IllegalArgumentException("The flush interval must be between the min and max flush intervals");
+        }
+        this.interval = interval;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.thresholdBytes = thresholdBytes;
+        this.tinyBytes = tinyBytes;
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * @param queuedBytes the number of bytes currently queued
+     * @return true if enough bytes are queued to flush ahead of the timer
+     */
+    public boolean isOverThreshold(long queuedBytes) {
+        return thresholdBytes > 0 && queuedBytes >= thresholdBytes;
+    }
+
+    /**
+     * Adjust the interval after a timed flush.
+     *
+     * @param flushedBytes the number of bytes queued when the timer fired
+     * @param sizeFlushes the number of size triggered flushes since the last timed flush
+     */
+    public void adapt(long flushedBytes, long sizeFlushes) {
+        if (!adaptive) { return; }
+
+        if (sizeFlushes > 0 || (thresholdBytes > 0 && flushedBytes >= thresholdBytes / 2)) {
+            // filling up fast, flush more often to keep the backlog and each burst small
+            interval = Math.max(minInterval, interval / 2);
+        } else if (flushedBytes < tinyBytes) {
+            // next to nothing queued, back off so we don't send lots of tiny writes
+            interval = Math.min(maxInterval, interval + Math.max(1, interval / 2));
+        }
+    }
+
+    /**
+     * Count a flush.
+     */
+    public void record(Trigger trigger) { counts[trigger.ordinal()]++; }
+
+    /**
+     * @return the number of flushes there have been for the reason
+     */
+    public long getCount(Trigger trigger) { return counts[trigger.ordinal()]; }
+
+    /**
+     * @return the current flush interval in milliseconds
+     */
+    public long getInterval() { return interval; }
+
+    @Override
+    public String toString() {
+        return String.format("flushes timer: %d size: %d drain: %d shutdown: %d, interval: %d(ms)",
+                getCount(Trigger.TIMER), getCount(Trigger.SIZE), getCount(Trigger.DRAIN), getCount(Trigger.SHUTDOWN),
+                interval);
+    }
+}
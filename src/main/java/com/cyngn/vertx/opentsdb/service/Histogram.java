@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size log-linear histogram of non negative values, ie latencies in milliseconds. Values below 2^precision
+ *  each get their own bucket, above that every power of two is split into 2^precision equal buckets so a value is
+ *  reported to within 1 / 2^precision of what was recorded, about 3% at the default precision. Values above the
+ *  highest trackable value are counted in the top bucket, the max is always exact.
+ *
+ * Recording is a bucket lookup and an atomic increment, it allocates nothing and any number of threads can record
+ *  at once. Histograms with the same layout can be merged, and {@link #drainTo} moves the counts out into another
+ *  histogram while recording carries on, every value ending up in exactly one of the intervals.
+ */
+public class Histogram {
+
+    public static final long DEFAULT_HIGHEST_VALUE = 1000 * 60 * 60;
+    public static final int DEFAULT_PRECISION = 5;
+
+    /**
+     * The stats reported for a histogram and the suffix each is written under.
+     */
+    public static final String[] STAT_SUFFIXES = {".p50", ".p90", ".p99", ".p999", ".max", ".count"};
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final int MAX_STAT = 4;
+    private static final int COUNT_STAT = 5;
+
+    private final long highestValue;
+    private final int precision;
+    private final int subBuckets;
+    private final AtomicLongArray counts;
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Receives the stats of a histogram.
+     */
+    @FunctionalInterface
+    public interface StatConsumer {
+        /**
+         * @param stat the index of the stat in {@link #STAT_SUFFIXES}
+         * @param value the value of the stat
+         */
+        void accept(int stat, long value);
+    }
+
+    public Histogram() {
+        this(DEFAULT_HIGHEST_VALUE, DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param highestValue the highest value to track, anything higher is counted as this
+     * @param precision the number of bits of each value to keep
+     */
+    public Histogram(long highestValue, int precision) {
+        if (highestValue < 1) { throw new IllegalArgumentException("highestValue must be at least 1"); }
+        if (precision < 1 || precision > 16) { throw new IllegalArgumentException("precision must be from 1 to 16"); }
+        this.highestValue = highestValue;
+        this.precision = precision;
+        subBuckets = 1 << precision;
+        counts = new AtomicLongArray(index(highestValue) + 1);
+    }
+
+    /**
+     * @param value the value to record, negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) { value = 0; }
+        counts.incrementAndGet(index(Math.min(value, highestValue)));
+        updateMax(value);
+    }
+
+    /**
+     * Add the counts of another histogram with the same layout to this one.
+     *
+     * @param other the histogram to merge in, left untouched
+     */
+    public void add(Histogram other) {
+        checkLayout(other);
+        for (int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if (count != 0) { counts.addAndGet(i, count); }
+        }
+        updateMax(other.max.get());
+    }
+
+    /**
+     * Move the counts of this histogram into another with the same layout, leaving this one empty. Values recorded
+     *  concurrently land in either one or the other.
+     *
+     * @param target the histogram to move the counts to
+     */
+    public void drainTo(Histogram target) {
+        checkLayout(target);
+        for (int i = 0; i < counts.length(); i++) {
+            long count = counts.getAndSet(i, 0);
+            if (count != 0) { target.counts.addAndGet(i, count); }
+        }
+        target.updateMax(max.getAndSet(0));
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) { counts.set(i, 0); }
+        max.set(0);
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) { count += counts.get(i); }
+        return count;
+    }
+
+    /**
+     * @return the highest value recorded
+     */
+    public long getMax() { return max.get(); }
+
+    /**
+     * @param percentile the percentile from 0 to 100
+     * @return the value that percentile of the recorded values are at or below, 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long rank = rank(percentile, getCount());
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) { return Math.min(highestEquivalentValue(i), max.get()); }
+        }
+        return 0;
+    }
+
+    /**
+     * Hand out the p50, p90, p99, p999, max and count of the histogram, all the percentiles are worked out in one pass.
+     *  Meant to be called on a histogram nothing is recording into, ie one that has just been drained to.
+     *
+     * @param consumer the receiver of the stats
+     */
+    public void forEachStat(StatConsumer consumer) {
+        long count = getCount();
+        long highest = max.get();
+        long seen = 0;
+        int stat = 0;
+        for (int i = 0; i < counts.length() && stat < PERCENTILES.length; i++) {
+            seen += counts.get(i);
+            while (stat < PERCENTILES.length && seen >= rank(PERCENTILES[stat], count)) {
+                consumer.accept(stat++, Math.min(highestEquivalentValue(i), highest));
+            }
+        }
+        while (stat < PERCENTILES.length) { consumer.accept(stat++, 0); }
+        consumer.accept(MAX_STAT, highest);
+        consumer.accept(COUNT_STAT, count);
+    }
+
+    /**
+     * @return the number of buckets, the histogram holds this many longs
+     */
+    public int buckets() { return counts.length(); }
+
+    private static long rank(double percentile, long count) {
+        return Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    }
+
+    private int index(long value) {
+        if (value < subBuckets) { return (int) value; }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - precision;
+        return subBuckets + shift * subBuckets + (int) ((value >>> shift) - subBuckets);
+    }
+
+    private long highestEquivalentValue(int index) {
+        if (index < subBuckets) { return index; }
+        int shift = (index - subBuckets) / subBuckets;
+        long lowest = (long) (subBuckets + (index - subBuckets) % subBuckets) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    private void updateMax(long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) { current = max.get(); }
+    }
+
+    private void checkLayout(Histogram other) {
+        if (other.highestValue != highestValue || other.precision != precision) {
+            throw new IllegalArgumentException("Only histograms with the same highest value and precision mix");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Histogram[count=%d, p50=%d, p99=%d, max=%d]", getCount(), getValueAtPercentile(50),
+                getValueAtPercentile(99), getMax());
+    }
+}
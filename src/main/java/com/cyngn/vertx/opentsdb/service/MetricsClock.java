@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+/**
+ * Source of the timestamps put on data points.
+ */
+public interface MetricsClock {
+
+    /**
+     * Reads the wall clock on every call.
+     */
+    MetricsClock SYSTEM = System::currentTimeMillis;
+
+    enum Type {
+        /** read the wall clock for every data point */
+        SYSTEM,
+        /** read a cached time refreshed on a periodic timer */
+        COARSE,
+        /** read the wall clock once per event bus message and flush, all points in an 'add_all' share the time */
+        BATCH
+    }
+
+    /**
+     * @return the current time in milliseconds since the epoch (UTC)
+     */
+    long now();
+
+    /**
+     * Called once for every event bus message before any of its data points are stamped, and at the start of every
+     *  flush.
+     */
+    default void startBatch() {}
+}
@@ -14,17 +14,20 @@
  */
 package com.cyngn.vertx.opentsdb.service;
 
+import com.cyngn.vertx.opentsdb.OpenTsDbOptions;
 import com.cyngn.vertx.opentsdb.Util;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
 import org.apache.commons.lang3.StringUtils;
-import org.joda.time.DateTime;
-import org.joda.time.DateTimeZone;
 
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 
 /**
- * Handles constructing proper OpenTsDb metric strings.
+ * Handles constructing proper OpenTsDb metric lines.
  *
  * @author truelove@cyngn.com (Jeremy Truelove) 11/11/14
  */
@@ -34,11 +37,29 @@ public class MetricsParser {
     public static String VALUE_FIELD = "value";
     public static String TAGS_FIELD = "tags";
     public static String METRICS_FIELD = "metrics";
+    public static String TIMESTAMP_FIELD = "timestamp";
+    public static String ON_CHANGE_FIELD = "on_change";
+    public static String TYPE_FIELD = "type";
+    public static String HISTOGRAM_FIELD = "histogram";
+    public static String HISTOGRAM_ID_FIELD = "id";
+
+    // OpenTsDb treats any timestamp of 10 digits or less as seconds
+    private static final long MAX_SECONDS_TIMESTAMP = 9999999999L;
 
     private final BiConsumer<Message<JsonObject>, String> errorHandler;
     private final String defaultTags;
-    private final String prefix;
-    private boolean hasPrefix;
+    private final PutEncoder encoder;
+    private final SeriesKeyCache seriesKeys;
+    private final MetricsClock clock;
+    private final long maxTimestampSkew;
+    private final boolean secondPrecision;
+    private final long alignInterval;
+    private SeriesKey encodedSeries;
+    private long encodedTimestamp;
+    // the serialized histogram of the most recently parsed metric, null if it was a plain data point
+    private byte[] encodedHistogram;
+    private int encodedHistogramId;
+    private Logger logger = LoggerFactory.getLogger(MetricsParser.class);
 
     /**
      *
@@ -47,9 +68,29 @@ public class MetricsParser {
      * @param errorHandler the error handler to use to notify the event bus sender of failures
      */
     public MetricsParser(String prefix, String defaultTags, BiConsumer<Message<JsonObject>, String> errorHandler) {
-        this.prefix = prefix;
-        hasPrefix = prefix != null && prefix.length() > 0;
+        this(prefix, defaultTags, new OpenTsDbOptions(), errorHandler, MetricsClock.SYSTEM);
+    }
+
+    /**
+     *
+     * @param options the options to configure the parser with
+     * @param errorHandler the error handler to use to notify the event bus sender of failures
+     * @param clock the clock used to timestamp data points that don't supply their own timestamp
+     */
+    public MetricsParser(OpenTsDbOptions options, BiConsumer<Message<JsonObject>, String> errorHandler,
+                         MetricsClock clock) {
+        this(options.getPrefix(), options.getDefaultTags(), options, errorHandler, clock);
+    }
+
+    private MetricsParser(String prefix, String defaultTags, OpenTsDbOptions options,
+                          BiConsumer<Message<JsonObject>, String> errorHandler, MetricsClock clock) {
+        this.clock = clock;
+        maxTimestampSkew = options.getMaxTimestampSkew();
+        secondPrecision = options.getTimestampPrecision() == TimeUnit.SECONDS;
+        alignInterval = options.isAlignTimestamps() ? options.getFlushInterval() : 0;
+        encoder = new PutEncoder(prefix);
         this.defaultTags = defaultTags == null ? "" : defaultTags;
+        seriesKeys = new SeriesKeyCache(options.getSeriesCacheSize(), encoder, this.defaultTags);
         this.errorHandler = errorHandler;
     }
 
@@ -60,29 +101,219 @@ public class MetricsParser {
      * @param metric the metric object
      * @return the metric string or null if it is invalid
      */
-    @SuppressWarnings("unchecked")
     public String createMetricString(Message message, JsonObject metric) {
+        Buffer buffer = Buffer.buffer();
+        return appendMetric(message, metric, buffer) ? buffer.toString() : null;
+    }
+
+    /**
+     * Given a event bus message take the metric data from it and encode it as an OpenTsDb 'put' line directly onto
+     *  the end of the supplied buffer.
+     *
+     * @param message the event bus message
+     * @param metric the metric object
+     * @param out the buffer to append the encoded metric to
+     * @return true if the metric was valid and appended, false otherwise
+     */
+    public boolean appendMetric(Message message, JsonObject metric, Buffer out) {
+        int length = encodeMetric(message, metric);
+        if (length < 0) { return false; }
+
+        out.appendBytes(getEncodedLine(), 0, length);
+        return true;
+    }
+
+    /**
+     * Given a event bus message take the metric data from it and encode it as an OpenTsDb 'put' line, or a 'histogram'
+     *  line for a metric with a serialized histogram, the line is available from {@link #getEncodedLine()} until the
+     *  next metric is encoded.
+     *
+     * @param message the event bus message
+     * @param metric the metric object
+     * @return the length of the encoded line or -1 if the metric is invalid
+     */
+    public int encodeMetric(Message message, JsonObject metric) {
+        long timestamp = parse(message, metric);
+        if (timestamp < 0) { return -1; }
+
+        if (encodedHistogram != null) {
+            return encoder.encodeHistogram(encodedSeries, toWireTimestamp(timestamp), encodedHistogramId,
+                    encodedHistogram);
+        }
+        return encoder.encode(encodedSeries, toWireTimestamp(timestamp), metric.getString(VALUE_FIELD));
+    }
+
+    /**
+     * @param metric the metric object
+     * @return true if the metric carries a serialized histogram rather than a value
+     */
+    public static boolean isHistogram(JsonObject metric) { return metric.containsKey(HISTOGRAM_FIELD); }
+
+    /**
+     * Given a event bus message take the metric data from it and validate it without encoding a line.
+     *
+     * @param message the event bus message
+     * @param metric the metric object
+     * @return the series of the metric or null if it is invalid
+     */
+    public SeriesKey parseSeries(Message message, JsonObject metric) {
+        return parse(message, metric) < 0 ? null : encodedSeries;
+    }
+
+    /**
+     * Encode a data point for an already known series, the line is available from {@link #getEncodedLine()} until the
+     *  next metric is encoded.
+     *
+     * @param key the series of the data point
+     * @param timestamp the timestamp of the data point in milliseconds
+     * @param value the value of the data point
+     * @return the length of the encoded line
+     */
+    public int encodePoint(SeriesKey key, long timestamp, String value) {
+        return encoder.encode(key, toWireTimestamp(timestamp), value);
+    }
+
+    /**
+     * Encode a rolled up data point for an already known series, the line is available from {@link #getEncodedLine()}
+     *  until the next metric is encoded.
+     *
+     * @param key the series of the data point
+     * @param spec the rollup interval and aggregator, ie '1m-sum'
+     * @param timestamp the start of the rollup interval in milliseconds
+     * @param value the aggregated value
+     * @return the length of the encoded line
+     */
+    public int encodeRollup(SeriesKey key, String spec, long timestamp, String value) {
+        return encoder.encodeRollup(key, spec, toWireTimestamp(timestamp), value);
+    }
+
+    /**
+     * Validate a metric and look up its series, which is left in encodedSeries.
+     *
+     * @return the timestamp of the metric in milliseconds or -1 if it is invalid
+     */
+    @SuppressWarnings("unchecked")
+    private long parse(Message message, JsonObject metric) {
         String metricName = metric.getString(NAME_FIELD, "");
         if (StringUtils.isEmpty(metricName)) {
             errorHandler.accept(message, "All metrics need a 'name' field");
-            return null;
+            return -1;
         }
 
-        String metricValue = metric.getString(VALUE_FIELD, "");
-        if (metricValue.length() == 0) {
+        encodedHistogram = null;
+        if (isHistogram(metric)) {
+            if (!parseHistogram(metric)) {
+                errorHandler.accept(message, "The 'histogram' field must hold a codec 'id' and a base64 'value'");
+                return -1;
+            }
+            if (metric.containsKey(TYPE_FIELD)) {
+                errorHandler.accept(message, "A 'histogram' metric can't have a 'type'");
+                return -1;
+            }
+        } else if (metric.getString(VALUE_FIELD, "").length() == 0) {
             errorHandler.accept(message, "All metrics need a 'value' field");
-            return null;
+            return -1;
         }
 
-        String tags = getTagString(metric.getJsonObject(TAGS_FIELD));
+        JsonObject tags = metric.getJsonObject(TAGS_FIELD);
 
         // this is an OpenTsDB requirement
-        if (StringUtils.isEmpty(tags.trim())) {
+        if (StringUtils.isBlank(defaultTags) && (tags == null || tags.size() == 0)) {
             errorHandler.accept(message, "You must specify at least one tag");
-            return null;
+            return -1;
+        }
+
+        Object onChange = metric.getValue(ON_CHANGE_FIELD);
+        if (onChange != null && !(onChange instanceof Boolean)) {
+            errorHandler.accept(message, "The 'on_change' field must be true or false");
+            return -1;
+        }
+
+        long timestamp = getTimestamp(message, metric);
+        if (timestamp < 0) { return -1; }
+
+        encodedSeries = seriesKeys.get(metricName, tags);
+        encodedTimestamp = timestamp;
+        return timestamp;
+    }
+
+    /**
+     * Pull the codec id and serialized histogram, as written to TSD's '/api/histogram', out of the metric.
+     *
+     * @return true if the histogram is valid
+     */
+    private boolean parseHistogram(JsonObject metric) {
+        Object histogram = metric.getValue(HISTOGRAM_FIELD);
+        if (!(histogram instanceof JsonObject)) { return false; }
+
+        Object id = ((JsonObject) histogram).getValue(HISTOGRAM_ID_FIELD);
+        if (!(id instanceof Integer) || (Integer) id < 0) { return false; }
+        try {
+            byte[] data = ((JsonObject) histogram).getBinary(VALUE_FIELD);
+            if (data == null || data.length == 0) { return false; }
+            encodedHistogram = data;
+        } catch (ClassCastException | IllegalArgumentException ex) {
+            return false;
+        }
+        encodedHistogramId = (Integer) id;
+        return true;
+    }
+
+    /**
+     * @return the series of the most recently encoded or parsed metric
+     */
+    public SeriesKey getEncodedSeries() { return encodedSeries; }
+
+    /**
+     * @return the timestamp in milliseconds of the most recently encoded or parsed metric
+     */
+    public long getEncodedTimestamp() { return encodedTimestamp; }
+
+    /**
+     * @return the most recently encoded line, only valid up to the length returned by {@link #encodeMetric}
+     */
+    public byte[] getEncodedLine() { return encoder.getLine(); }
+
+    /**
+     * Get the timestamp for a data point, either the one supplied by the publisher or the current time.
+     *
+     * @param message the event bus message
+     * @param metric the metric object
+     * @return the timestamp in milliseconds or -1 if the supplied timestamp is invalid
+     */
+    @SuppressWarnings("unchecked")
+    private long getTimestamp(Message message, JsonObject metric) {
+        Object supplied = metric.getValue(TIMESTAMP_FIELD);
+        long now = clock.now();
+        if (supplied == null) { return now; }
+
+        if (!(supplied instanceof Integer || supplied instanceof Long) || ((Number) supplied).longValue() <= 0) {
+            errorHandler.accept(message, "The 'timestamp' field must be a positive whole number of seconds or " +
+                    "milliseconds since the epoch");
+            return -1;
+        }
+
+        long timestamp = ((Number) supplied).longValue();
+        if (timestamp <= MAX_SECONDS_TIMESTAMP) { timestamp *= 1000; }
+
+        if (Math.abs(now - timestamp) > maxTimestampSkew) {
+            errorHandler.accept(message, String.format("The 'timestamp' %d is more than %d(ms) away from the " +
+                    "current time", supplied, maxTimestampSkew));
+            return -1;
         }
 
-        return getMetricString(metricName, metricValue, tags);
+        return timestamp;
+    }
+
+    /**
+     * Snap a timestamp down to the alignment interval, if there is one, and convert it to the configured precision.
+     *
+     * @param timestamp the timestamp in milliseconds
+     * @return the timestamp to put on the wire
+     */
+    private long toWireTimestamp(long timestamp) {
+        if (alignInterval > 0) { timestamp -= timestamp % alignInterval; }
+        return secondPrecision ? timestamp / 1000 : timestamp;
     }
 
     /**
@@ -94,9 +325,9 @@ public class MetricsParser {
      * @return an OpenTsDb metric string
      */
     public String getMetricString(String name, String value, String tags) {
-        long timestamp = DateTime.now(DateTimeZone.UTC).toDate().getTime();
-        return (hasPrefix) ? String.format("put %s.%s %d %s %s\n", prefix, name, timestamp, value, tags)
-                           : String.format("put %s %d %s %s\n", name, timestamp, value, tags);
+        Buffer buffer = Buffer.buffer();
+        encoder.encode(buffer, name, toWireTimestamp(clock.now()), value, tags);
+        return buffer.toString();
     }
 
     /**
@@ -114,4 +345,14 @@ public class MetricsParser {
 
         return tagsStr;
     }
+
+    /**
+     * @return the cache of pre-encoded series keys
+     */
+    public SeriesKeyCache getSeriesKeyCache() { return seriesKeys; }
+
+    public void dumpStats() {
+        logger.info(String.format("series key cache size: %d hits: %d misses: %d evictions: %d", seriesKeys.size(),
+                seriesKeys.getHits(), seriesKeys.getMisses(), seriesKeys.getEvictions()));
+    }
 }
@@ -16,13 +16,13 @@ package com.cyngn.vertx.opentsdb.service;
 
 import com.cyngn.vertx.opentsdb.client.EventBusMessage;
 import com.cyngn.vertx.opentsdb.service.client.MetricsSender;
-import io.vertx.core.buffer.Buffer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.json.JsonObject;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Handles chunking metric data into optimal sizes to OpenTsdb
@@ -30,72 +30,252 @@ import java.util.concurrent.LinkedBlockingQueue;
  * @author truelove@cyngn.com (Jeremy Truelove) 11/10/14
  */
 public class MetricsProcessor {
+
+    /**
+     * How a flush is split up across the senders.
+     */
+    public enum Sharding {
+        /** contiguous slices of each flush go to each sender in turn */
+        ROUND_ROBIN,
+        /** every series sticks to one sender, picked off a consistent hash ring of the senders */
+        CONSISTENT_HASH
+    }
+
     private final List<MetricsSender> metricsSenders;
     private final int maxBufferSizeInBytes;
     private final EventBus bus;
+    private final Sharding sharding;
+    private final int virtualNodes;
+    private final SenderHealth health;
+    private final SenderRing.Admission admission;
+    private final SenderRing.Admission anyAvailable;
+    private final RetryQueue.Target retryTarget;
 
+    // per flush state, the processor is only ever driven from the service's event loop
+    private int currentSender;
+    // outbound buffers are allocated on first use and owned by the sender once written
+    private ByteBuf[] outputs;
+    private boolean[] written;
+    private boolean[] failed;
+    // bytes each sender can still take this flush, taken from the sender's write budget at the start of the flush
+    private long[] budgets;
+    private SenderRing senderRing;
+    private ByteBufAllocator allocator = UnpooledByteBufAllocator.DEFAULT;
+    private RetryQueue retries;
 
     public MetricsProcessor(List<MetricsSender> metricsSenders, int maxBufferSizeInBytes, EventBus bus) {
+        this(metricsSenders, maxBufferSizeInBytes, bus, Sharding.ROUND_ROBIN, SenderRing.DEFAULT_VIRTUAL_NODES,
+                SenderHealth.DEFAULT_RECOVERY_FLUSHES);
+    }
+
+    public MetricsProcessor(List<MetricsSender> metricsSenders, int maxBufferSizeInBytes, EventBus bus,
+                            Sharding sharding, int virtualNodes, int recoveryFlushes) {
         this.metricsSenders = metricsSenders;
         this.maxBufferSizeInBytes = maxBufferSizeInBytes;
         this.bus = bus;
+        this.sharding = sharding;
+        this.virtualNodes = virtualNodes;
+        health = new SenderHealth(recoveryFlushes);
+        admission = this::admit;
+        anyAvailable = (sender, shardHash) -> health.isAvailable(sender) && budgets[sender] > 0;
+        retryTarget = new RetryQueue.Target() {
+            @Override
+            public int pick(int lastSender, int length) { return pickRetrySender(lastSender); }
+
+            @Override
+            public boolean write(int sender, ByteBuf data) {
+                budgets[sender] -= data.readableBytes();
+                written[sender] = true;
+                return metricsSenders.get(sender).write(data);
+            }
+        };
     }
 
     /**
-     * Given a queue of metrics to send, process the metrics into the right format and send them over a socket
+     * Given a ring of encoded metrics to send, chunk the metrics into the right size and send them over a socket. Only
+     *  senders that are connected are used and each is handed no more than its write budget, whatever the senders
+     *  can't take right now stays queued in the ring for the next flush. Buffers that failed on an earlier flush are
+     *  retried ahead of anything new.
      *
-     * @param metrics the metrics queue to work off
+     * @param metrics the ring of encoded 'put' lines to drain
+     * @return the number of metrics sent
      */
-    public void processMetrics(LinkedBlockingQueue<String> metrics) {
+    public int processMetrics(MetricsRing metrics) {
         int metricCount = metrics.size();
-        if (metricCount == 0) {return;}
-        List<String> drainedMetrics = new ArrayList<>();
+        if (metricCount == 0 && !hasRetries()) {return 0;}
 
-        metrics.drainTo(drainedMetrics);
-        Buffer outputBuffer = Buffer.buffer();
+        health.update(metricsSenders);
+        if (health.getAvailableCount() == 0) { return 0; }
+        prepareOutputs();
 
-        int senderPos = 0;
-        MetricsSender currentSender = metricsSenders.get(senderPos);
+        long totalBudget = 0;
+        for (int i = 0; i < budgets.length; i++) {
+            budgets[i] = health.isAvailable(i) ? metricsSenders.get(i).getWriteBudget() : 0;
+            totalBudget = saturatedAdd(totalBudget, budgets[i]);
+        }
+        // every sender is backed up, stop pulling from the ring until one of them drains
+        if (totalBudget == 0) { return 0; }
 
-        int nextRotateIndex = drainedMetrics.size() / metricsSenders.size();
-        int switchInterval = nextRotateIndex + 1;
+        if (hasRetries()) {
+            retries.retry(retryTarget);
+            totalBudget = 0;
+            for (long budget : budgets) { totalBudget = saturatedAdd(totalBudget, Math.max(0, budget)); }
+        }
 
-        // loop through and serialize the metrics and send them as we fill the buffer up to max buffer
-        for (int i = 0; i < drainedMetrics.size(); i++) {
-            // TODO ponder if one of the host is disconnected and stays that way
-            if (i == nextRotateIndex) {
-                // flush the current remaining data queued before moving to the next sender
-                outputBuffer = write(currentSender, outputBuffer);
+        int drained;
+        if (sharding == Sharding.CONSISTENT_HASH) {
+            drained = metrics.drain(metricCount, totalBudget, this::appendSharded);
+        } else {
+            drained = drainRoundRobin(metrics, metricCount);
+        }
 
-                senderPos++;
-                currentSender = metricsSenders.get(senderPos);
-                nextRotateIndex += switchInterval;
+        // send whatever is left in the buffers then have each sender push everything it was handed out in one go
+        for (int i = 0; i < outputs.length; i++) {
+            if (outputs[i] != null) { write(i); }
+            if (written[i]) {
+                metricsSenders.get(i).flush();
+                written[i] = false;
             }
+            failed[i] = false;
+        }
+        return drained;
+    }
+
+    private int drainRoundRobin(MetricsRing metrics, int metricCount) {
+        // each available sender takes a slice in proportion to its weight, the last one picks up the rounding
+        double totalWeight = 0;
+        int lastSender = -1;
+        for (int i = 0; i < metricsSenders.size(); i++) {
+            if (budgets[i] > 0) {
+                totalWeight += health.weight(i);
+                lastSender = i;
+            }
+        }
 
-            String metric = drainedMetrics.get(i);
-            byte[] bytes = metric.getBytes();
+        int remaining = metricCount;
+        for (int senderPos = 0; remaining > 0 && senderPos <= lastSender; senderPos++) {
+            if (budgets[senderPos] <= 0) { continue; }
+
+            int linesForSender = senderPos == lastSender ? remaining
+                    : (int) (metricCount * health.weight(senderPos) / totalWeight);
+            if (linesForSender > 0) {
+                currentSender = senderPos;
+                int drained = metrics.drain(Math.min(linesForSender, remaining), budgets[senderPos], this::append);
+
+                // flush the current remaining data queued before moving to the next sender
+                if (outputs[senderPos] != null) { write(senderPos); }
 
-            // if this would exceed the max buffer to send go ahead and pass to the sender
-            if (bytes.length + outputBuffer.length() > maxBufferSizeInBytes) {
-                outputBuffer = write(currentSender, outputBuffer);
+                // anything a sender didn't have the budget for is left at the head of the ring for the next sender
+                remaining -= drained;
             }
+        }
+        return metricCount - remaining;
+    }
+
+    private void append(ByteBuf data, int index, int length, int shardHash) {
+        append(currentSender, data, index, length);
+    }
+
+    private void appendSharded(ByteBuf data, int index, int length, int shardHash) {
+        int sender = senderRing.indexFor(shardHash, admission);
+        // only recovering senders are up and none of them took the series, it goes to one of them anyway
+        if (sender < 0) { sender = senderRing.indexFor(shardHash, anyAvailable); }
+        append(sender, data, index, length);
+    }
 
-            outputBuffer.appendBytes(bytes);
+    /**
+     * A recovering sender only takes back the fraction of its series matching its weight, the rest carry on going to
+     *  the sender that covered for it. A sender that has used up its budget for the flush is passed over the same way.
+     */
+    private boolean admit(int sender, int shardHash) {
+        if (!health.isAvailable(sender) || budgets[sender] <= 0) { return false; }
+        double weight = health.weight(sender);
+        // the low bits of the hash pick the bucket the ring position is taken from the high bits
+        return weight >= 1 || (shardHash & 0xFFFF) < weight * 0x10000;
+    }
+
+    private void append(int sender, ByteBuf data, int index, int length) {
+        ByteBuf output = outputs[sender];
+        // if this would exceed the max buffer to send go ahead and pass to the sender
+        if (output != null && length + output.readableBytes() > maxBufferSizeInBytes) {
+            write(sender);
+            output = null;
         }
 
-        // send whatever is left in the buffer
-        if (outputBuffer.length() > 0) {
-            write(currentSender, outputBuffer);
+        if (output == null) {
+            output = allocator.heapBuffer(Math.max(maxBufferSizeInBytes, length));
+            outputs[sender] = output;
         }
+        // lines are copied straight from the ring's slabs into the outbound buffer
+        output.writeBytes(data, index, length);
+        budgets[sender] -= length;
     }
 
-    private Buffer write(MetricsSender sender, Buffer data) {
-        boolean success = sender.write(data);
-        if(!success) {
+    /**
+     * Senders can be added after the processor is created, so size the per sender state for the current senders.
+     */
+    private void prepareOutputs() {
+        int senderCount = metricsSenders.size();
+        if (outputs == null || outputs.length != senderCount) {
+            outputs = new ByteBuf[senderCount];
+            written = new boolean[senderCount];
+            failed = new boolean[senderCount];
+            budgets = new long[senderCount];
+        }
+
+        if (sharding == Sharding.CONSISTENT_HASH && (senderRing == null || senderRing.size() != senderCount)) {
+            senderRing = new SenderRing(metricsSenders, virtualNodes);
+        }
+    }
+
+    private void write(int sender) {
+        ByteBuf output = outputs[sender];
+        outputs[sender] = null;
+
+        // the sender takes ownership and releases the buffer once it is done with it, keep a reference of our own to
+        //  hand to the retry queue if the write fails
+        if (retries != null) { output.retain(); }
+        boolean success = metricsSenders.get(sender).write(output);
+        if (retries != null) {
+            if (success) { output.release(); }
+            else { retries.add(output, sender); }
+        }
+        // a sender that fails once will likely fail every write of the flush, only report it the once
+        if(!success && !failed[sender]) {
+            failed[sender] = true;
             bus.send(OpenTsDbService.ERROR_MESSAGE_ADDRESS, new JsonObject().put("error",
                     EventBusMessage.WRITE_FAILURE.toString()));
         }
+        written[sender] = true;
+    }
+
+    /**
+     * Retries go back to the sender they failed on if it can take them, otherwise to the next sender that can.
+     */
+    private int pickRetrySender(int lastSender) {
+        int senderCount = metricsSenders.size();
+        for (int i = 0; i < senderCount; i++) {
+            int sender = (lastSender + i) % senderCount;
+            if (budgets[sender] > 0) { return sender; }
+        }
+        return -1;
+    }
+
+    private boolean hasRetries() { return retries != null && !retries.isEmpty(); }
 
-        return Buffer.buffer();
+    private static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
     }
+
+    /**
+     * @param allocator where to take outbound heap buffers from, defaults to the unpooled allocator
+     */
+    public void setAllocator(ByteBufAllocator allocator) { this.allocator = allocator; }
+
+    /**
+     * @param retries where to hold buffers the senders reject until they can be sent again, without one rejected
+     *  buffers are discarded
+     */
+    public void setRetryQueue(RetryQueue retries) { this.retries = retries; }
 }
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi producer / single consumer ring of encoded 'put' lines. Claiming a slot is a single CAS on
+ *  the tail and doubles as the capacity check, a producer that finds the ring full is told so straight away rather
+ *  than blocking. The ring can also be bounded by the encoded bytes it holds, so long lines can't use more memory than
+ *  budgeted just because there are free slots.
+ *
+ * Every slot carries a sequence number, a slot is free for the producer at position p when its sequence is p and
+ *  readable by the consumer once it has been published as p + 1.
+ *
+ * Lines are held off heap so a large backlog isn't scanned by the GC. Slot storage is a direct slab per chunk of slots,
+ *  each slot a fixed number of bytes, taken from the allocator when the ring moves into the chunk and handed back once
+ *  the consumer has moved past it, so a burst doesn't leave the ring holding slabs it no longer needs. The chunk the
+ *  tail is in is always kept, a ring that stays within one chunk allocates nothing after the first line. The rare line
+ *  longer than a slot is held on heap. Call {@link #release()} to hand the slabs back when done with the ring.
+ *
+ * A slab is only handed back while no producer is offering, producers that show up while the consumer is doing so
+ *  wait for it to finish, which only takes as long as clearing a few references. The consumer never waits, when
+ *  producers are busy it tries again after its next drain.
+ *
+ * Several rings can share a {@link BacklogLimit}, in which case the bytes are bounded across all of them.
+ *
+ * Any number of threads can offer, only one thread at a time may drain.
+ */
+public class MetricsRing {
+
+    /**
+     * The largest ring supported, used when the backlog is configured as unlimited.
+     */
+    public static final int MAX_CAPACITY = 1 << 24;
+    public static final int DEFAULT_SLOT_BYTES = 256;
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final int capacity;
+    private final long maxBytes;
+    // null unless the byte bound is shared with other rings
+    private final BacklogLimit limit;
+    private final int slotBytes;
+    private final ByteBufAllocator allocator;
+    private final AtomicReferenceArray<Chunk> chunks;
+    private final AtomicLong tail = new AtomicLong();
+    // only ever written by the consumer
+    private volatile long head;
+    private final AtomicLong slabBytes = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong oversizedLines = new AtomicLong();
+    // producers in the middle of an offer, a slab can only be handed back while there are none
+    private final AtomicInteger producers = new AtomicInteger();
+    private volatile boolean reclaiming;
+    // only touched by the consumer, set once it has moved past a chunk that may now be idle
+    private boolean reclaimPending;
+
+    /**
+     * Receives lines as they are drained, the data is owned by the ring and only valid for the duration of the call.
+     */
+    @FunctionalInterface
+    public interface LineConsumer {
+        void accept(ByteBuf data, int index, int length, int shardHash);
+    }
+
+    /**
+     * @param capacity the max number of lines the ring can hold
+     */
+    public MetricsRing(int capacity) {
+        this(capacity, DEFAULT_SLOT_BYTES, PooledByteBufAllocator.DEFAULT);
+    }
+
+    /**
+     * @param capacity the max number of lines the ring can hold
+     * @param slotBytes the number of bytes of slab to set aside for each line
+     * @param allocator where to allocate the direct slabs from
+     */
+    public MetricsRing(int capacity, int slotBytes, ByteBufAllocator allocator) {
+        this(capacity, Long.MAX_VALUE, slotBytes, allocator);
+    }
+
+    /**
+     * @param capacity the max number of lines the ring can hold
+     * @param maxBytes the max number of encoded bytes the ring can hold
+     * @param slotBytes the number of bytes of slab to set aside for each line
+     * @param allocator where to allocate the direct slabs from
+     */
+    public MetricsRing(int capacity, long maxBytes, int slotBytes, ByteBufAllocator allocator) {
+        this(capacity, maxBytes, null, slotBytes, allocator);
+    }
+
+    /**
+     * @param capacity the max number of lines the ring can hold
+     * @param limit the bound on encoded bytes this ring shares with other rings
+     * @param slotBytes the number of bytes of slab to set aside for each line
+     * @param allocator where to allocate the direct slabs from
+     */
+    public MetricsRing(int capacity, BacklogLimit limit, int slotBytes, ByteBufAllocator allocator) {
+        this(capacity, Long.MAX_VALUE, limit, slotBytes, allocator);
+    }
+
+    private MetricsRing(int capacity, long maxBytes, BacklogLimit limit, int slotBytes, ByteBufAllocator allocator) {
+        if (capacity < 1 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("The ring capacity must be between 1 and " + MAX_CAPACITY);
+        }
+        if (slotBytes < 1) { throw new IllegalArgumentException("The ring slot size must be at least 1 byte"); }
+        if (maxBytes < 1) { throw new IllegalArgumentException("The ring must be able to hold at least 1 byte"); }
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.limit = limit;
+        this.slotBytes = slotBytes;
+        this.allocator = allocator;
+        chunks = new AtomicReferenceArray<>(((capacity - 1) >> CHUNK_SHIFT) + 1);
+    }
+
+    /**
+     * Copy a line into the next free slot.
+     *
+     * @param line the encoded line
+     * @param length the number of bytes of the line to copy
+     * @return true if the line was queued, false if the ring is full
+     */
+    public boolean offer(byte[] line, int length) {
+        return offer(line, length, 0);
+    }
+
+    /**
+     * Copy a line into the next free slot.
+     *
+     * @param line the encoded line
+     * @param length the number of bytes of the line to copy
+     * @param shardHash the hash of the line's series, see {@link SeriesKey#shardHash()}
+     * @return true if the line was queued, false if the ring is full
+     */
+    public boolean offer(byte[] line, int length, int shardHash) {
+        return offer(line, 0, length, shardHash);
+    }
+
+    /**
+     * Copy a line into the next free slot.
+     *
+     * @param line the buffer holding the encoded line
+     * @param offset where the line starts in the buffer
+     * @param length the number of bytes of the line to copy
+     * @param shardHash the hash of the line's series, see {@link SeriesKey#shardHash()}
+     * @return true if the line was queued, false if the ring is full
+     */
+    public boolean offer(byte[] line, int offset, int length, int shardHash) {
+        // the bytes are reserved up front so concurrent producers can't overshoot the byte limit between them
+        if (limit != null && !limit.tryReserve(length)) { return false; }
+        if (bytes.addAndGet(length) > maxBytes) {
+            bytes.addAndGet(-length);
+            return false;
+        }
+
+        boolean queued = false;
+        enter();
+        try {
+            long pos = tail.get();
+            for (;;) {
+                int index = (int) (pos % capacity);
+                Chunk chunk = chunk(index >> CHUNK_SHIFT, pos);
+                int slot = index & CHUNK_MASK;
+                long diff = chunk.sequence.get(slot) - pos;
+
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        if (!chunk.write(slot, line, offset, length)) { oversizedLines.incrementAndGet(); }
+                        chunk.shardHash[slot] = shardHash;
+                        chunk.sequence.lazySet(slot, pos + 1);
+                        queued = true;
+                        return true;
+                    }
+                    pos = tail.get();
+                } else if (diff < 0) {
+                    // the consumer hasn't freed this slot from the last lap yet
+                    return false;
+                } else {
+                    // another producer claimed it first
+                    pos = tail.get();
+                }
+            }
+        } finally {
+            producers.decrementAndGet();
+            // hand back the reservation if the line wasn't queued, including when a slab couldn't be allocated
+            if (!queued) {
+                bytes.addAndGet(-length);
+                if (limit != null) { limit.release(length); }
+            }
+        }
+    }
+
+    /**
+     * Register as a producer, waiting out the consumer if it is handing slabs back.
+     */
+    private void enter() {
+        for (;;) {
+            producers.incrementAndGet();
+            if (!reclaiming) { return; }
+            producers.decrementAndGet();
+            while (reclaiming) { Thread.yield(); }
+        }
+    }
+
+    /**
+     * Hand published lines to the consumer in the order they were claimed, stopping early at the first slot that has
+     *  been claimed but not yet published.
+     *
+     * @param max the max number of lines to drain
+     * @param consumer the consumer of the lines
+     * @return the number of lines drained
+     */
+    public int drain(int max, LineConsumer consumer) {
+        return drain(max, Long.MAX_VALUE, consumer);
+    }
+
+    /**
+     * Hand published lines to the consumer in the order they were claimed, stopping early at the first slot that has
+     *  been claimed but not yet published or once the byte budget has been used up. The line that crosses the budget
+     *  is still handed over, so the budget can be overshot by at most one line.
+     *
+     * @param max the max number of lines to drain
+     * @param maxBytes the max number of bytes to drain
+     * @param consumer the consumer of the lines
+     * @return the number of lines drained
+     */
+    public int drain(int max, long maxBytes, LineConsumer consumer) {
+        long pos = head;
+        int drained = 0;
+        long drainedBytes = 0;
+        while (drained < max && drainedBytes < maxBytes) {
+            int index = (int) (pos % capacity);
+            Chunk chunk = chunks.get(index >> CHUNK_SHIFT);
+            int slot = index & CHUNK_MASK;
+            if (chunk == null || chunk.sequence.get(slot) != pos + 1) { break; }
+
+            int length = chunk.length[slot];
+            if (length <= slotBytes) {
+                consumer.accept(chunk.slab, slot * slotBytes, length, chunk.shardHash[slot]);
+            } else {
+                consumer.accept(chunk.oversized[slot], 0, length, chunk.shardHash[slot]);
+                chunk.oversized[slot] = null;
+            }
+            chunk.sequence.lazySet(slot, pos + capacity);
+            pos++;
+            drained++;
+            drainedBytes += length;
+            if (slot == chunk.length.length - 1) { reclaimPending = true; }
+        }
+        head = pos;
+        bytes.addAndGet(-drainedBytes);
+        if (limit != null) { limit.release(drainedBytes); }
+        if (reclaimPending) { reclaim(); }
+        return drained;
+    }
+
+    /**
+     * Hand back the slabs of every chunk that holds no queued lines and isn't the one the tail is in, provided no
+     *  producer is offering. Called by the consumer.
+     */
+    private void reclaim() {
+        reclaiming = true;
+        try {
+            // a producer that got in first may be writing to any chunk, leave it for the next drain
+            if (producers.get() != 0) { return; }
+
+            // with no producers the tail can't move, the lines from the head up to and including the tail's slot are
+            //  the only ones that need slabs
+            long from = head;
+            long count = tail.get() - from + 1;
+            if (count >= capacity) { return; }
+            int first = (int) (from % capacity);
+            int last = (int) ((first + count - 1) % capacity);
+            for (int i = 0; i < chunks.length(); i++) {
+                Chunk chunk = chunks.get(i);
+                if (chunk == null) { continue; }
+                int base = i << CHUNK_SHIFT;
+                int end = base + chunk.length.length - 1;
+                boolean inUse = first <= last ? base <= last && end >= first : base <= last || end >= first;
+                if (!inUse) {
+                    chunks.set(i, null);
+                    chunk.slab.release();
+                    slabBytes.addAndGet(-chunk.slab.capacity());
+                }
+            }
+            reclaimPending = false;
+        } finally {
+            reclaiming = false;
+        }
+    }
+
+    /**
+     * @return the number of lines claimed and not yet drained, this is a snapshot when producers are active
+     */
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public boolean isEmpty() { return size() == 0; }
+
+    /**
+     * @return the number of encoded bytes queued, this is a snapshot when producers are active
+     */
+    public long getBytes() { return bytes.get(); }
+
+    /**
+     * @return the max number of encoded bytes the ring will hold, Long.MAX_VALUE if only the line capacity limits it.
+     *  For a ring that shares its limit this is the max across every ring sharing it.
+     */
+    public long getMaxBytes() { return limit == null ? maxBytes : limit.getMaxBytes(); }
+
+    /**
+     * @return the number of encoded bytes counted against {@link #getMaxBytes()}, for a ring that shares its limit
+     *  this includes the bytes queued on every ring sharing it
+     */
+    public long getLimitedBytes() { return limit == null ? bytes.get() : limit.getBytes(); }
+
+    public int capacity() { return capacity; }
+
+    /**
+     * @return the number of off heap bytes allocated for slabs
+     */
+    public long getSlabBytes() { return slabBytes.get(); }
+
+    /**
+     * @return the number of slab bytes currently holding queued lines
+     */
+    public long getSlabBytesInUse() { return (long) size() * slotBytes; }
+
+    /**
+     * @return the number of lines too long for a slot that were held on heap instead
+     */
+    public long getOversizedLines() { return oversizedLines.get(); }
+
+    /**
+     * Hand all slabs back to the allocator, any lines still queued are lost. The ring must not be used afterwards.
+     */
+    public void release() {
+        // whatever is still queued no longer counts against a shared limit
+        if (limit != null) { limit.release(bytes.getAndSet(0)); }
+        for (int i = 0; i < chunks.length(); i++) {
+            Chunk chunk = chunks.getAndSet(i, null);
+            if (chunk != null) {
+                chunk.slab.release();
+                slabBytes.addAndGet(-chunk.slab.capacity());
+            }
+        }
+    }
+
+    /**
+     * @param chunkIndex the chunk to get
+     * @param pos the position the producer is claiming, a chunk created for it starts at the same lap
+     */
+    private Chunk chunk(int chunkIndex, long pos) {
+        Chunk chunk = chunks.get(chunkIndex);
+        if (chunk == null) {
+            int base = chunkIndex << CHUNK_SHIFT;
+            int size = Math.min(CHUNK_SIZE, capacity - base);
+            // the position of the chunk's first slot on the producer's lap
+            long start = pos - ((int) (pos % capacity) - base);
+            Chunk created = new Chunk(start, (int) (pos % capacity) - base, size,
+                    allocator.directBuffer(size * slotBytes, size * slotBytes));
+            if (chunks.compareAndSet(chunkIndex, null, created)) {
+                slabBytes.addAndGet(created.slab.capacity());
+            } else {
+                created.slab.release();
+            }
+            chunk = chunks.get(chunkIndex);
+        }
+        return chunk;
+    }
+
+    private class Chunk {
+        private final AtomicLongArray sequence;
+        private final ByteBuf slab;
+        private final int[] length;
+        private final int[] shardHash;
+        // lines that don't fit in a slot, only allocated if one ever shows up
+        private ByteBuf[] oversized;
+
+        /**
+         * @param start the position of the first slot on the lap the chunk is created in
+         * @param next the slot the tail is at, slots before it were already used on this lap and are next free on the
+         *  following one
+         */
+        Chunk(long start, int next, int size, ByteBuf slab) {
+            sequence = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) { sequence.set(i, i < next ? start + i + capacity : start + i); }
+            this.slab = slab;
+            length = new int[size];
+            shardHash = new int[size];
+        }
+
+        /**
+         * @return true if the line fit in the slab, false if it had to go on heap
+         */
+        boolean write(int slot, byte[] line, int offset, int lineLength) {
+            length[slot] = lineLength;
+            if (lineLength <= slotBytes) {
+                // setBytes on a direct buffer goes through a temporary nio buffer shared by every caller, producers
+                //  write concurrently so each write gets its own view of its slot
+                slab.nioBuffer(slot * slotBytes, lineLength).put(line, offset, lineLength);
+                return true;
+            }
+
+            // multiple producers can land here for different slots of the same chunk
+            synchronized (this) {
+                if (oversized == null) { oversized = new ByteBuf[length.length]; }
+                oversized[slot] = Unpooled.copiedBuffer(line, offset, lineLength);
+            }
+            return false;
+        }
+    }
+}
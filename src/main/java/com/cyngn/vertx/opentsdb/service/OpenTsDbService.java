@@ -15,25 +15,33 @@
 package com.cyngn.vertx.opentsdb.service;
 
 import com.cyngn.vertx.opentsdb.OpenTsDbOptions;
+import com.cyngn.vertx.opentsdb.Util;
+import com.cyngn.vertx.opentsdb.client.EventBusMessage;
+import com.cyngn.vertx.opentsdb.client.MetricPublisher;
+import com.cyngn.vertx.opentsdb.service.client.EventLoopSender;
 import com.cyngn.vertx.opentsdb.service.client.MetricsSender;
 import com.cyngn.vertx.opentsdb.service.client.OpenTsDbClient;
-import com.google.common.collect.Queues;
+import com.cyngn.vertx.opentsdb.service.client.OpenTsDbHttpClient;
+import com.cyngn.vertx.opentsdb.service.client.SenderPool;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 import io.vertx.core.shareddata.LocalMap;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
@@ -50,10 +58,24 @@ public class OpenTsDbService extends AbstractVerticle implements Handler<Message
     public static final String ADD_COMMAND = "add";
     public static final String ADD_ALL_COMMAND = "add_all";
     public static final String ACTION_FIELD = "action";
+    public static final String SLAB_BYTES_METRIC = "opentsdb.backlog.slab_bytes";
+    public static final String SLAB_BYTES_IN_USE_METRIC = "opentsdb.backlog.slab_bytes_in_use";
     private static int FIVE_MINUTES_MILLI = 1000 * 60 * 5;
     private static final String OK_REPLY = "ok";
 
-    private LinkedBlockingQueue<String> metrics;
+    private MetricsRing metrics;
+    private RetryQueue retries;
+    private SpillWorker spill;
+    private long lastReplay;
+    private OverloadPolicy overload;
+    private SeriesCoalescer coalescer;
+    private ChangeFilter changeFilter;
+    private SeriesAggregator aggregator;
+    private RollupStage rollups;
+    private final EncodedBatch batch = new EncodedBatch();
+    private MessageConsumer<JsonObject> consumer;
+    private MessageConsumer<JsonObject> instanceConsumer;
+    private boolean paused;
 
     private Map<String, Consumer<Message<JsonObject>>> handlers;
     private List<MetricsSender> workers;
@@ -62,56 +84,138 @@ public class OpenTsDbService extends AbstractVerticle implements Handler<Message
     private long flushTimerId = -1;
     private MetricsProcessor processor;
     private long reportingTimerId = -1;
+    private long backlogMetricsTimerId = -1;
+    private boolean shutdownFlushed;
     private OpenTsDbOptions options;
+    private MetricsClock clock;
+    private FlushPolicy flushPolicy;
+    private long sizeFlushesAtLastTick;
 
-    private String SINGLETON_GUARD_TOPIC = "startup_guard";
-    private String THREAD_KEY = "thread_id";
+    // every instance deployed on the same address shares a group, each has its own index in it
+    private ServiceGroup group;
+    private int instances;
+    private int index;
 
     @Override
     public void start(final Future<Void> startedResult) {
-        boolean hasLock = obtainLock();
-        if(!hasLock) {
-            logger.warn("It appears someone has already deployed the verticle you only need one instance initialized");
-            startedResult.fail("Multiple instances should not be started of the service");
-            return;
-        }
-
         JsonObject config = context.config();
         options = new OpenTsDbOptions(config);
+        instances = context.getInstanceCount();
+        if (instances > 1 && !options.getRollupWindows().isEmpty()) {
+            startedResult.fail("rollup_windows can't be used with more than one instance, each instance would write " +
+                    "its own partial rollup of the same series and window");
+            return;
+        }
+        group = ServiceGroup.join(groups(), options.getAddress(), context.deploymentID(), options.getMaxBacklogBytes());
+        if (group == null) {
+            startedResult.fail("another deployment of the service already consumes from " + options.getAddress() +
+                    ", deploy more instances with DeploymentOptions.setInstances instead");
+            return;
+        }
+        index = group.nextIndex();
         eventBus = vertx.eventBus();
-        metricsParser = new MetricsParser(options.getPrefix(), options.getDefaultTags(), this::sendError);
+        clock = createClock();
+        metricsParser = new MetricsParser(options, this::sendError, clock);
+        overload = new OverloadPolicy(options.getOverloadPolicy(), options.getOverloadSampleRate());
+        if (options.isCoalesce()) { coalescer = new SeriesCoalescer(options.getCoalesceMaxSeries()); }
+        changeFilter = new ChangeFilter(options.getOnChangeMaxSeries(), options.getOnChangeHeartbeat(),
+                options.getOnChangePatterns());
+        aggregator = new SeriesAggregator(options.getAggregateMaxSeries(), metricsParser.getSeriesKeyCache());
+        if (!options.getRollupWindows().isEmpty()) {
+            rollups = new RollupStage(options.getRollupWindows(), options.getRollupMaxSeries(), this::queueRollup);
+        }
+        flushPolicy = new FlushPolicy(options.getFlushInterval(), options.getMinFlushInterval(),
+                options.getMaxFlushInterval(), options.getFlushThresholdBytes(), options.getMaxBufferBytes(),
+                options.isAdaptiveFlush());
 
         // create the list of workers
         workers = new ArrayList<>(options.getHosts().size());
-        metrics = Queues.newLinkedBlockingQueue();
+        metrics = createBacklog();
+
+        if (options.getSpillDir() == null) {
+            startServing(startedResult);
+            return;
+        }
+        // the spill directory is read on a worker like every other disk access, the event loop never waits on disk
+        SpillWorker.open(context, spillDir(), options.getSpillMaxBytes(), options.getSpillSegmentBytes(), opened -> {
+            if (opened.failed()) {
+                logger.error("Failed to open the spill directory", opened.cause());
+                metrics.release();
+                group.leave(groups(), options.getAddress());
+                startedResult.fail(opened.cause());
+                return;
+            }
+            spill = opened.result();
+            lastReplay = System.currentTimeMillis();
+            startServing(startedResult);
+        });
+    }
 
+    private void startServing(Future<Void> startedResult) {
         initializeWorkers(startedResult);
         createMessageHandlers();
 
-        eventBus.consumer(options.getAddress(), this);
+        // publishers are spread round robin across the instances on the shared address, the instance's own address
+        //  takes the metrics other instances hand over
+        consumer = eventBus.consumer(options.getAddress(), this);
+        if (instances > 1) { instanceConsumer = eventBus.consumer(instanceAddress(index), this); }
+    }
+
+    private LocalMap<String, ServiceGroup> groups() { return vertx.sharedData().getLocalMap(ServiceGroup.MAP_NAME); }
+
+    /**
+     * Each instance has a backlog of its own, the line capacity is split evenly between the instances and the bytes
+     *  are bounded across all of them by the group's shared limit.
+     */
+    private MetricsRing createBacklog() {
+        int maxBacklog = options.getMaxBacklog();
+        int capacity = maxBacklog == Integer.MIN_VALUE ? MetricsRing.MAX_CAPACITY
+                : Math.max(1, (maxBacklog + instances - 1) / instances);
+        BacklogLimit limit = group.getBacklogLimit();
+        if (limit == null) {
+            return new MetricsRing(capacity, options.getBacklogSlotBytes(), PooledByteBufAllocator.DEFAULT);
+        }
+        return new MetricsRing(capacity, limit, options.getBacklogSlotBytes(), PooledByteBufAllocator.DEFAULT);
+    }
+
+    /**
+     * @return the first instance spills to the configured directory, any others to a directory of their own under it
+     */
+    private File spillDir() {
+        File dir = new File(options.getSpillDir());
+        return index == 0 ? dir : new File(dir, "instance-" + index);
     }
 
-    private boolean obtainLock() {
-        synchronized (vertx) {
-            LocalMap<String, Long> map = vertx.sharedData().getLocalMap(SINGLETON_GUARD_TOPIC);
-            Long result = map.putIfAbsent(THREAD_KEY, Thread.currentThread().getId());
+    private String instanceAddress(int instance) { return options.getAddress() + "." + instance; }
+
+    /**
+     * @return the index of the instance that aggregates the series
+     */
+    private int ownerOf(SeriesKey series) { return Math.floorMod(series.shardHash(), instances); }
 
-            // if put was null then that means we succeeded in getting the lock, if it isn't then it means either
-            //  someone else beat us there or it has already been initialized by this thread
-            return result == null;
+    private MetricsClock createClock() {
+        switch (options.getClockType()) {
+            case COARSE: return CachedClock.coarse(vertx, options.getClockResolution());
+            case BATCH: return CachedClock.perBatch();
+            default: return MetricsClock.SYSTEM;
         }
     }
 
     private void initializeWorkers(Future<Void> startedResult) {
         final AtomicInteger count = new AtomicInteger();
-        processor = new MetricsProcessor(workers, options.getMaxBufferBytes(), vertx.eventBus());
+        processor = new MetricsProcessor(workers, options.getMaxBufferBytes(), vertx.eventBus(), options.getSharding(),
+                options.getVirtualNodes(), options.getRecoveryFlushes());
+        if (options.getRetryMaxBytes() > 0) {
+            retries = new RetryQueue(options.getRetryMaxBytes(), options.getRetryMaxAttempts(),
+                    options.getRetryMaxAge(), clock);
+            processor.setRetryQueue(retries);
+        }
         JsonArray hosts = options.getHosts();
         for (int i = 0; i < hosts.size(); i++) {
             JsonObject jsonHost = hosts.getJsonObject(i);
 
-            // we setup one worker dedicated to each endpoint, the same worker always rights to the same outbound socket
-            OpenTsDbClient worker = new OpenTsDbClient(jsonHost.getString("host"), jsonHost.getInteger("port"), vertx,
-              success -> {
+            // we setup one worker dedicated to each endpoint, it owns every outbound connection to that host
+            Consumer<Boolean> onInitialized = success -> {
                 if(!success) {
                     String error = String.format("Failed to connect to host: %s", jsonHost.encode());
                     logger.error(error);
@@ -122,29 +226,182 @@ public class OpenTsDbService extends AbstractVerticle implements Handler<Message
 
                 count.incrementAndGet();
                 if(count.get() == hosts.size()) {
-                    flushTimerId = vertx.setPeriodic(options.getFlushInterval(),
-                            timerId -> processor.processMetrics(metrics));
+                    scheduleFlush();
                     logger.info(options);
                     startReporter();
+                    if (options.isBacklogMetrics()) { startBacklogMetrics(); }
                     startedResult.complete();
                 }
+            };
+            MetricsSender worker = createWorker(jsonHost, onInitialized);
+            // a backed up host stops taking data, pick up where we left off as soon as it has room again
+            worker.drainHandler(aVoid -> {
+                if (flushTimerId != -1) { flushMetrics(FlushPolicy.Trigger.DRAIN); }
             });
             workers.add(worker);
         }
     }
 
+    private MetricsSender createWorker(JsonObject jsonHost, Consumer<Boolean> onInitialized) {
+        int connections = jsonHost.getInteger("connections_per_host", options.getConnectionsPerHost());
+        int standby = jsonHost.getInteger("standby_connections", options.getStandbyConnections());
+        if (connections == 1 && standby == 0) { return createConnection(jsonHost, onInitialized); }
+        return SenderPool.open(connections, standby, onConnected -> createConnection(jsonHost, onConnected),
+                onInitialized);
+    }
+
+    private MetricsSender createConnection(JsonObject jsonHost, Consumer<Boolean> onInitialized) {
+        if (!options.isSenderEventLoops()) { return openConnection(jsonHost, onInitialized); }
+        // the connection is opened on an event loop of its own and fed from this one
+        EventLoopSender sender = new EventLoopSender(vertx, jsonHost.getString("host") + ":" +
+                jsonHost.getInteger("port"), onConnected -> openConnection(jsonHost, onConnected), onInitialized);
+        // it is undeployed ahead of us, the backlog has to be handed over before it closes
+        sender.stopHandler(aVoid -> flushForShutdown());
+        return sender;
+    }
+
+    private MetricsSender openConnection(JsonObject jsonHost, Consumer<Boolean> onInitialized) {
+        String host = jsonHost.getString("host");
+        int port = jsonHost.getInteger("port");
+        int maxInflightBytes = jsonHost.getInteger("max_inflight_bytes", options.getMaxInflightBytes());
+        if (OpenTsDbOptions.HTTP_PROTOCOL.equals(jsonHost.getString("protocol"))) {
+            return new OpenTsDbHttpClient(host, port, vertx, maxInflightBytes,
+                    jsonHost.getInteger("max_pool_size", OpenTsDbHttpClient.DEFAULT_MAX_POOL_SIZE), onInitialized);
+        }
+        return new OpenTsDbClient(host, port, vertx, maxInflightBytes, onInitialized);
+    }
+
     private void startReporter() {
-        reportingTimerId = vertx.setPeriodic(FIVE_MINUTES_MILLI, timerId ->
-                workers.forEach(MetricsSender::dumpStats));
+        reportingTimerId = vertx.setPeriodic(FIVE_MINUTES_MILLI, timerId -> {
+            workers.forEach(MetricsSender::dumpStats);
+            metricsParser.dumpStats();
+            logger.info(flushPolicy);
+            logger.info(String.format("backlog: %d of %d metrics, %d of %s bytes, slab bytes allocated: %d " +
+                    "in use: %d, oversized lines: %d", metrics.size(), metrics.capacity(), metrics.getLimitedBytes(),
+                    metrics.getMaxBytes() == Long.MAX_VALUE ? "INFINITY" : metrics.getMaxBytes(),
+                    metrics.getSlabBytes(), metrics.getSlabBytesInUse(), metrics.getOversizedLines()));
+            if (retries != null) { logger.info(retries); }
+            if (spill != null) { logger.info(spill); }
+            logger.info(overload);
+            if (coalescer != null) { logger.info(coalescer); }
+            logger.info(changeFilter);
+            logger.info(aggregator);
+            if (rollups != null) { logger.info(rollups); }
+        });
+    }
+
+    /**
+     * Publish the slab bytes the backlog has allocated and is using through the service like any other metric, so
+     *  off heap memory can be graphed and alerted on.
+     */
+    private void startBacklogMetrics() {
+        MetricPublisher publisher = new MetricPublisher(eventBus, options.getAddress());
+        // each instance has a backlog of its own, and a metric needs at least one tag
+        JsonObject tags = new JsonObject().put("instance", String.valueOf(index));
+        backlogMetricsTimerId = vertx.setPeriodic(options.getSpiPublishInterval(), timerId ->
+                publisher.sendMetricBatch(Arrays.asList(
+                        Util.createRawMetric(SLAB_BYTES_METRIC, String.valueOf(metrics.getSlabBytes()), tags),
+                        Util.createRawMetric(SLAB_BYTES_IN_USE_METRIC, String.valueOf(metrics.getSlabBytesInUse()),
+                                tags))));
     }
 
     @Override
-    public void stop() {
+    public void stop(Future<Void> stopFuture) {
         logger.info("Shutting down vertx-opentsdb...");
+        flushForShutdown();
+        workers.forEach(MetricsSender::close);
+        if (retries != null) { retries.clear(); }
+        if (spill != null) {
+            // whatever couldn't be sent is picked up from disk on the next start, all of it however far behind the
+            //  disk is
+            spill.startClose();
+            spillBacklog();
+        }
+        metrics.release();
+        if (clock instanceof CachedClock) { ((CachedClock) clock).stop(vertx); }
+        group.leave(groups(), options.getAddress());
+        if (spill != null) {
+            spill.close(aVoid -> stopFuture.complete());
+        } else {
+            stopFuture.complete();
+        }
+    }
+
+    /**
+     * Hand everything still queued to the hosts, only the first call does anything.
+     */
+    private void flushForShutdown() {
+        if (shutdownFlushed) { return; }
+        shutdownFlushed = true;
         if(flushTimerId != -1) { vertx.cancelTimer(flushTimerId); }
         if(reportingTimerId != -1) { vertx.cancelTimer(reportingTimerId); }
-        if(metrics.size() > 0) { processor.processMetrics(metrics); }
-        workers.forEach(MetricsSender::close);
+        if (backlogMetricsTimerId != -1) { vertx.cancelTimer(backlogMetricsTimerId); }
+        // nothing more is flushed on size or drain, what comes in from here on stays in the backlog
+        flushTimerId = -1;
+        flushMetrics(FlushPolicy.Trigger.SHUTDOWN);
+    }
+
+    private void scheduleFlush() {
+        flushTimerId = vertx.setTimer(flushPolicy.getInterval(), timerId -> {
+            if (spill != null) { spillOrReplay(); }
+            long queuedBytes = metrics.getBytes();
+            flushMetrics(FlushPolicy.Trigger.TIMER);
+
+            long sizeFlushes = flushPolicy.getCount(FlushPolicy.Trigger.SIZE);
+            flushPolicy.adapt(queuedBytes, sizeFlushes - sizeFlushesAtLastTick);
+            sizeFlushesAtLastTick = sizeFlushes;
+            scheduleFlush();
+        });
+    }
+
+    /**
+     * While every host is down the backlog goes to disk rather than piling up in memory, once a host is back the
+     *  spilled metrics are fed back into the backlog at the configured rate.
+     */
+    private void spillOrReplay() {
+        long now = System.currentTimeMillis();
+        if (workers.stream().noneMatch(MetricsSender::isConnected)) {
+            spillBacklog();
+        } else if (!spill.isEmpty()) {
+            long rate = options.getSpillReplayBytesPerSecond();
+            long allowance = Math.min(rate, rate * (now - lastReplay) / 1000);
+            spill.replay(allowance, (line, offset, length) ->
+                    metrics.offer(line, offset, length, SeriesKey.shardHash(line, offset, length)));
+        }
+        lastReplay = now;
+    }
+
+    private void spillBacklog() {
+        // the drain can go one line over, leave room for it so nothing taken off the ring is lost
+        long room = spill.getRemainingBytes() - options.getBacklogSlotBytes();
+        if (!metrics.isEmpty() && room > 0) {
+            metrics.drain(metrics.size(), room, (data, index, length, shardHash) -> spill.append(data, index, length));
+        }
+        // written out on a worker, a slow disk takes less off the ring on the next tick
+        spill.sync();
+    }
+
+    private void flushMetrics(FlushPolicy.Trigger trigger) {
+        // a per batch clock only moves with traffic, aggregates, rollup windows and retry ages need the time now
+        clock.startBatch();
+        // aggregates are emitted once per flush interval no matter how often the backlog is flushed in between
+        if (trigger == FlushPolicy.Trigger.TIMER || trigger == FlushPolicy.Trigger.SHUTDOWN) {
+            aggregator.drainTo(this::queueAggregate);
+            if (rollups != null) {
+                if (trigger == FlushPolicy.Trigger.SHUTDOWN) {
+                    rollups.drainAll();
+                } else {
+                    rollups.drain(clock.now());
+                }
+            }
+        }
+        if (coalescer != null) { coalescer.drainTo(this::queue); }
+        if (!metrics.isEmpty() || (retries != null && !retries.isEmpty())) {
+            if (processor.processMetrics(metrics) > 0) { flushPolicy.record(trigger); }
+        }
+
+        // checked even when there was nothing to flush, spilling to disk can have emptied the backlog
+        if (paused && overload.shouldResume(metrics)) { resumePublishers(); }
     }
 
     private void createMessageHandlers() {
@@ -161,22 +418,163 @@ public class OpenTsDbService extends AbstractVerticle implements Handler<Message
                     message.body());
             logger.warn(errMsg);
             sendError(message, errMsg);
+            return;
         }
 
-        // roll through and add all the metrics
+        // encode the whole batch before queueing any of it, a batch is either taken or failed as a whole
+        batch.clear();
         for (int i = 0; i < metricsObjects.size(); i++) {
-            String metric = metricsParser.createMetricString(message, metricsObjects.getJsonObject(i));
-            if (metric != null) {
-                if (!addMetric(null, metric)) {
-                    reportFullBacklog(message);
-                    break;
+            JsonObject metric = metricsObjects.getJsonObject(i);
+            String type = metric.getString(MetricsParser.TYPE_FIELD);
+            if (type != null) {
+                SeriesKey series = metricsParser.parseSeries(message, metric);
+                if (series == null) { return; }
+                if (ownedElsewhere(series, metric)) {
+                    batch.addHandedOff(series);
+                } else if (canAggregate(message, metric, type, series)) {
+                    batch.addAggregated(series);
+                } else {
+                    return;
                 }
-            } else {
-                // something is bad in the batch, the parsers error handler will reply to the message as failed
-                return;
+                continue;
+            }
+
+            int length = metricsParser.encodeMetric(message, metric);
+            // something is bad in the batch, the message has already been failed
+            if (length < 0) { return; }
+            if (ownedElsewhere(metricsParser.getEncodedSeries(), metric)) {
+                batch.addHandedOff(metricsParser.getEncodedSeries());
+                continue;
+            }
+            batch.add(metricsParser.getEncodedSeries(), metricsParser.getEncodedLine(), length,
+                    metricsParser.getEncodedTimestamp());
+        }
+
+        if (overload.rejectsWholeBatches() && !fits(batch)) {
+            overload.recordRejected(batch.size());
+            reportFullBacklog(message);
+            return;
+        }
+
+        boolean rejected = false;
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.isHandedOff(i)) { continue; }
+            JsonObject metric = metricsObjects.getJsonObject(i);
+            if (batch.isAggregated(i)) {
+                aggregator.record(batch.key(i), metric.getString(MetricsParser.TYPE_FIELD),
+                        metric.getString(MetricsParser.VALUE_FIELD), metric.getJsonObject(MetricsParser.TAGS_FIELD));
+                continue;
+            }
+            if (!changed(batch.key(i), metric)) { continue; }
+            OverloadPolicy.Outcome outcome = enqueue(batch.key(i), metric, batch.lines(), batch.offset(i),
+                    batch.length(i));
+            if (outcome != OverloadPolicy.Outcome.QUEUED) { changeFilter.forget(batch.key(i)); }
+            if (outcome == OverloadPolicy.Outcome.REJECTED) {
+                batch.reject(i);
+                rejected = true;
+            }
+        }
+
+        // rolled up once the batch is queued, finished windows encoded while rolling up would otherwise take the room
+        //  the batch was checked against
+        if (rollups != null) {
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.isHandedOff(i) || batch.isAggregated(i) || batch.isRejected(i)) { continue; }
+                rollUp(batch.key(i), batch.timestamp(i), metricsObjects.getJsonObject(i));
             }
         }
-        message.reply(OK_REPLY);
+
+        // instances sharing the backlog can fill it after the check, the lines that were taken stay queued
+        if (rejected) {
+            reportFullBacklog(message);
+            return;
+        }
+        handOffAndReply(message, metricsObjects);
+    }
+
+    /**
+     * Hand the metrics in a batch that other instances own over to them, the batch is only acknowledged once they have
+     *  all been taken. The rest of the batch is already queued here, so a failure from another instance only covers
+     *  the metrics handed to it.
+     */
+    private void handOffAndReply(Message<JsonObject> message, JsonArray metricsObjects) {
+        JsonArray[] handOffs = null;
+        int pending = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if (!batch.isHandedOff(i)) { continue; }
+            if (handOffs == null) { handOffs = new JsonArray[instances]; }
+            int owner = ownerOf(batch.key(i));
+            if (handOffs[owner] == null) {
+                handOffs[owner] = new JsonArray();
+                pending++;
+            }
+            handOffs[owner].add(metricsObjects.getJsonObject(i));
+        }
+        if (handOffs == null) {
+            message.reply(OK_REPLY);
+            return;
+        }
+
+        // replies come back on this instance's event loop
+        int[] outstanding = {pending};
+        String[] error = {null};
+        for (int owner = 0; owner < handOffs.length; owner++) {
+            if (handOffs[owner] == null) { continue; }
+            JsonObject handOff = new JsonObject().put(ACTION_FIELD, ADD_ALL_COMMAND)
+                    .put(MetricsParser.METRICS_FIELD, handOffs[owner]);
+            eventBus.send(instanceAddress(owner), handOff, reply -> {
+                if (reply.failed() && error[0] == null) { error[0] = reply.cause().getMessage(); }
+                if (--outstanding[0] > 0) { return; }
+                if (error[0] == null) { message.reply(OK_REPLY); } else { sendError(message, error[0]); }
+            });
+        }
+    }
+
+    /**
+     * With more than one instance typed metrics are aggregated, and on change series compared with the last value sent,
+     *  by the instance that owns their series, so every series has a single aggregate and a single last value. A metric
+     *  owned by another instance is handed to it and its reply passed back.
+     *
+     * @return true if the message was failed or handed to another instance, false if this instance takes it
+     */
+    private boolean handedOff(Message<JsonObject> message) {
+        JsonObject metric = message.body();
+        if (instances == 1) { return false; }
+        // plain metrics that can't be on change are taken wherever they land without parsing them twice
+        if (metric.getString(MetricsParser.TYPE_FIELD) == null && (MetricsParser.isHistogram(metric)
+                || !changeFilter.mayApply(metric.getBoolean(MetricsParser.ON_CHANGE_FIELD)))) {
+            return false;
+        }
+
+        SeriesKey series = metricsParser.parseSeries(message, metric);
+        if (series == null) { return true; }
+        if (!ownedElsewhere(series, metric)) { return false; }
+
+        eventBus.send(instanceAddress(ownerOf(series)), metric, reply -> {
+            if (reply.succeeded()) { message.reply(reply.result().body()); }
+            else { sendError(message, reply.cause().getMessage()); }
+        });
+        return true;
+    }
+
+    /**
+     * @return true if the metric has state kept by the instance that owns its series and that is another instance
+     */
+    private boolean ownedElsewhere(SeriesKey series, JsonObject metric) {
+        if (instances == 1 || ownerOf(series) == index) { return false; }
+        if (metric.getString(MetricsParser.TYPE_FIELD) != null) { return true; }
+        return !MetricsParser.isHistogram(metric)
+                && changeFilter.isChangeOnly(series, metric.getBoolean(MetricsParser.ON_CHANGE_FIELD));
+    }
+
+    /**
+     * @return true if the whole batch fits in the backlog, or failing that in the spill
+     */
+    private boolean fits(EncodedBatch batch) {
+        long freeSlots = metrics.capacity() - metrics.size();
+        long freeBytes = metrics.getMaxBytes() - metrics.getLimitedBytes();
+        return (freeSlots >= batch.size() && freeBytes >= batch.bytes())
+                || (spill != null && spill.getRemainingBytes() >= batch.bytes());
     }
 
     private void processMetric(Message<JsonObject> message) {
@@ -186,29 +584,121 @@ public class OpenTsDbService extends AbstractVerticle implements Handler<Message
             sendError(message, "You specified too many tags");
             return;
         }
+        if (handedOff(message)) { return; }
 
-        String metricStr = metricsParser.createMetricString(message, message.body());
-        if (metricStr != null) {
-            addMetric(message, metricStr);
+        if (addMetric(message, message.body())) {
+            message.reply(OK_REPLY);
         }
     }
 
-    private boolean addMetric(Message message, String metric) {
-        boolean added = true;
-        if(isNotFull()) {
-            // put the metric in the work queue
-            metrics.add(metric);
-            if (message != null) { message.reply(OK_REPLY); }
-        } else {
-            if(message != null) { reportFullBacklog(message); }
-            added = false;
+    private boolean addMetric(Message message, JsonObject metric) {
+        String type = metric.getString(MetricsParser.TYPE_FIELD);
+        if (type != null) {
+            SeriesKey series = checkAggregate(message, metric, type);
+            if (series == null) { return false; }
+            aggregator.record(series, type, metric.getString(MetricsParser.VALUE_FIELD),
+                    metric.getJsonObject(MetricsParser.TAGS_FIELD));
+            return true;
+        }
+
+        int length = metricsParser.encodeMetric(message, metric);
+        if (length < 0) { return false; }
+
+        SeriesKey series = metricsParser.getEncodedSeries();
+        long timestamp = metricsParser.getEncodedTimestamp();
+        // an unchanged value is accepted and simply not sent
+        if (changed(series, metric)) {
+            OverloadPolicy.Outcome outcome = enqueue(series, metric, metricsParser.getEncodedLine(), 0, length);
+            if (outcome != OverloadPolicy.Outcome.QUEUED) { changeFilter.forget(series); }
+            if (outcome == OverloadPolicy.Outcome.REJECTED) {
+                reportFullBacklog(message);
+                return false;
+            }
+        }
+        rollUp(series, timestamp, metric);
+        return true;
+    }
+
+    /**
+     * Record an accepted metric in the rollups, this has to come after the metric's line is queued as rolling up can
+     *  encode finished windows over it.
+     */
+    private void rollUp(SeriesKey series, long timestamp, JsonObject metric) {
+        if (rollups != null && !MetricsParser.isHistogram(metric)) {
+            rollups.record(series, timestamp, metric.getString(MetricsParser.VALUE_FIELD));
         }
-        return added;
+    }
+
+    private void queueRollup(SeriesKey series, String spec, long timestamp, String value) {
+        int length = metricsParser.encodeRollup(series, spec, timestamp, value);
+        queue(metricsParser.getEncodedLine(), 0, length, series.shardHash());
+    }
+
+    /**
+     * Validate a typed metric, failing the message if it can't be aggregated.
+     *
+     * @return the series of the metric or null if it is invalid
+     */
+    private SeriesKey checkAggregate(Message message, JsonObject metric, String type) {
+        SeriesKey series = metricsParser.parseSeries(message, metric);
+        return series != null && canAggregate(message, metric, type, series) ? series : null;
+    }
+
+    /**
+     * @return true if the metric can be aggregated, otherwise the message is failed
+     */
+    private boolean canAggregate(Message message, JsonObject metric, String type, SeriesKey series) {
+        String error = aggregator.check(series, type, metric.getString(MetricsParser.VALUE_FIELD));
+        if (error != null) {
+            sendError(message, error);
+            return false;
+        }
+        return true;
+    }
+
+    private void queueAggregate(SeriesKey series, String value) {
+        int length = metricsParser.encodePoint(series, clock.now(), value);
+        queue(metricsParser.getEncodedLine(), 0, length, series.shardHash());
+    }
+
+    /**
+     * @return true if the metric should be sent, false if it repeats the last value sent for a change only series
+     */
+    private boolean changed(SeriesKey series, JsonObject metric) {
+        // a histogram covers the interval it was recorded over, there is no last value to repeat
+        if (MetricsParser.isHistogram(metric)) { return true; }
+        return changeFilter.shouldSend(series, metric.getString(MetricsParser.VALUE_FIELD), clock.now(),
+                metric.getBoolean(MetricsParser.ON_CHANGE_FIELD));
+    }
+
+    private OverloadPolicy.Outcome enqueue(SeriesKey series, JsonObject metric, byte[] line, int offset, int length) {
+        // only the latest point per series in a flush window is kept
+        if (coalescer != null && canCoalesce(metric) && coalescer.add(series, line, offset, length)) {
+            return OverloadPolicy.Outcome.QUEUED;
+        }
+        return queue(line, offset, length, series.shardHash());
+    }
+
+    /**
+     * @return true if a later point for the same series can replace the metric, a point with a timestamp of its own
+     *  or a histogram of an interval is data that no other point stands in for
+     */
+    private static boolean canCoalesce(JsonObject metric) {
+        return metric.getValue(MetricsParser.TIMESTAMP_FIELD) == null && !MetricsParser.isHistogram(metric);
+    }
+
+    private OverloadPolicy.Outcome queue(byte[] line, int offset, int length, int shardHash) {
+        // claiming a slot in the ring is the capacity check, when it is full the metric goes to disk if we can
+        if (metrics.offer(line, offset, length, shardHash)
+                || (spill != null && spill.append(line, offset, length))) {
+            return OverloadPolicy.Outcome.QUEUED;
+        }
+        return overload.onFull(metrics, line, offset, length, shardHash);
     }
 
     private void reportFullBacklog(Message message) {
-        String errMsg = String.format("Backlog is at max defined capacity of %d, discarding metric",
-                metrics.size());
+        String errMsg = String.format("Backlog is at max defined capacity with %d metrics and %d bytes queued, " +
+                "discarding metric", metrics.size(), metrics.getLimitedBytes());
         logger.warn(errMsg);
         sendError(message, errMsg);
     }
@@ -217,10 +707,6 @@ public class OpenTsDbService extends AbstractVerticle implements Handler<Message
         return tags != null && options.getDefaultTagCount() + tags.size() > options.getMaxTags();
     }
 
-    private boolean isNotFull() {
-        return options.getMaxBacklog() == Integer.MIN_VALUE || metrics.size() < options.getMaxBacklog();
-    }
-
     /**
      * Handles processing metric requests off the event bus
      *
@@ -234,9 +720,41 @@ public class OpenTsDbService extends AbstractVerticle implements Handler<Message
 
         Consumer<Message<JsonObject>> handler = handlers.get(action);
 
-        if (handler != null) { handler.accept(message); }
+        if (handler != null) {
+            clock.startBatch();
+            handler.accept(message);
+
+            // don't wait on the timer if enough has piled up to fill a good number of writes, once we are running
+            if (flushTimerId != -1 && flushPolicy.isOverThreshold(metrics.getBytes())) {
+                flushMetrics(FlushPolicy.Trigger.SIZE);
+            }
+
+            if (!paused && overload.shouldPause(metrics)) { pausePublishers(); }
+        }
         else { sendError(message, "Invalid action: " + action + " specified."); }
     }
 
+    /**
+     * Stop taking messages off the event bus until the backlog drains, publishers waiting on replies slow down and
+     *  anyone listening for errors is told the backlog is full. Metrics handed over by the other instances wait too,
+     *  they would otherwise keep filling this instance's backlog.
+     */
+    private void pausePublishers() {
+        logger.warn("Backlog is nearly full, pausing publishers");
+        paused = true;
+        overload.recordPause();
+        consumer.pause();
+        if (instanceConsumer != null) { instanceConsumer.pause(); }
+        eventBus.publish(ERROR_MESSAGE_ADDRESS, new JsonObject().put("error",
+                EventBusMessage.BACKLOG_FULL.toString()));
+    }
+
+    private void resumePublishers() {
+        logger.info("Backlog has drained, resuming publishers");
+        paused = false;
+        consumer.resume();
+        if (instanceConsumer != null) { instanceConsumer.resume(); }
+    }
+
     private void sendError(Message message, String error) { message.fail(-1, error); }
 }
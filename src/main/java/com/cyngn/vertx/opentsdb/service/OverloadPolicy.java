@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import java.util.Random;
+
+/**
+ * Decides what happens to a data point that arrives when the backlog is full, and counts what gets dropped.
+ *
+ * Evicting from the backlog drains it, so it must only be called from the thread that flushes the backlog.
+ */
+public class OverloadPolicy {
+
+    public static final double DEFAULT_SAMPLE_RATE = 0.5;
+    // publishers are paused above the high water mark and resumed once the backlog is back under the low
+    private static final double HIGH_WATER = 0.9;
+    private static final double LOW_WATER = 0.5;
+
+    /**
+     * What to do with data that doesn't fit in the backlog.
+     */
+    public enum Type {
+        /** fail the message that carried the point */
+        REJECT,
+        /** drop the point that doesn't fit, keeping the oldest data */
+        DROP_NEWEST,
+        /** evict the oldest points to make room, keeping the newest data */
+        DROP_OLDEST,
+        /** keep a random share of new points, evicting the oldest for each one kept */
+        SAMPLE,
+        /** stop taking messages off the event bus while the backlog is nearly full */
+        BLOCK_PUBLISHER
+    }
+
+    /**
+     * What happened to the point.
+     */
+    public enum Outcome {
+        /** it was queued */
+        QUEUED,
+        /** it, or older data in its place, was dropped and the publisher shouldn't be told */
+        DROPPED,
+        /** it wasn't queued and the publisher should be told */
+        REJECTED
+    }
+
+    private static final MetricsRing.LineConsumer DISCARD = (data, index, length, shardHash) -> {};
+
+    private final Type type;
+    private final double sampleRate;
+    private final Random random = new Random();
+
+    private long rejected;
+    private long droppedNewest;
+    private long droppedOldest;
+    private long pauses;
+
+    /**
+     * @param type the policy
+     * @param sampleRate the share of new points kept when sampling, between 0 and 1
+     */
+    public OverloadPolicy(Type type, double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) { throw new IllegalArgumentException("sampleRate must be 0 to 1"); }
+        this.type = type;
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Handle a point the backlog had no room for.
+     *
+     * @param ring the full backlog
+     * @param line the encoded line
+     * @param offset where the line starts
+     * @param length the length of the line
+     * @param shardHash the hash of the line's series
+     * @return what happened to the point
+     */
+    public Outcome onFull(MetricsRing ring, byte[] line, int offset, int length, int shardHash) {
+        switch (type) {
+            case DROP_NEWEST:
+                droppedNewest++;
+                return Outcome.DROPPED;
+            case DROP_OLDEST:
+                return evictFor(ring, line, offset, length, shardHash);
+            case SAMPLE:
+                if (random.nextDouble() < sampleRate) { return evictFor(ring, line, offset, length, shardHash); }
+                droppedNewest++;
+                return Outcome.DROPPED;
+            default:
+                rejected++;
+                return Outcome.REJECTED;
+        }
+    }
+
+    private Outcome evictFor(MetricsRing ring, byte[] line, int offset, int length, int shardHash) {
+        // a line can need more than one eviction when the backlog is bounded by bytes
+        while (ring.drain(1, DISCARD) == 1) {
+            droppedOldest++;
+            if (ring.offer(line, offset, length, shardHash)) { return Outcome.QUEUED; }
+        }
+        // the line is bigger than the whole backlog
+        droppedNewest++;
+        return Outcome.DROPPED;
+    }
+
+    /**
+     * Whether a batch of points is all or nothing, a policy that tells the publisher about dropped points takes none
+     *  of a batch rather than part of it.
+     *
+     * @return true if batches that don't fit should be rejected whole
+     */
+    public boolean rejectsWholeBatches() { return type == Type.REJECT || type == Type.BLOCK_PUBLISHER; }
+
+    /**
+     * @return true if the publishers should be paused
+     */
+    public boolean shouldPause(MetricsRing ring) {
+        return type == Type.BLOCK_PUBLISHER && occupancy(ring) >= HIGH_WATER;
+    }
+
+    /**
+     * @return true if paused publishers can be resumed
+     */
+    public boolean shouldResume(MetricsRing ring) { return occupancy(ring) < LOW_WATER; }
+
+    /**
+     * @return how full the backlog is against whichever of its limits it is closest to, 0 to 1
+     */
+    private static double occupancy(MetricsRing ring) {
+        double points = (double) ring.size() / ring.capacity();
+        double bytes = ring.getMaxBytes() == Long.MAX_VALUE ? 0 : (double) ring.getLimitedBytes() / ring.getMaxBytes();
+        return Math.max(points, bytes);
+    }
+
+    public void recordPause() { pauses++; }
+
+    /**
+     * @param points the number of points in a batch rejected whole
+     */
+    public void recordRejected(int points) { rejected += points; }
+
+    public Type getType() { return type; }
+
+    /**
+     * @return the number of points rejected back to the publisher
+     */
+    public long getRejected() { return rejected; }
+
+    /**
+     * @return the number of incoming points dropped
+     */
+    public long getDroppedNewest() { return droppedNewest; }
+
+    /**
+     * @return the number of queued points evicted to make room
+     */
+    public long getDroppedOldest() { return droppedOldest; }
+
+    /**
+     * @return the number of times the publishers were paused
+     */
+    public long getPauses() { return pauses; }
+
+    @Override
+    public String toString() {
+        return String.format("overload policy: %s rejected: %d dropped newest: %d dropped oldest: %d pauses: %d",
+                type.name().toLowerCase(), rejected, droppedNewest, droppedOldest, pauses);
+    }
+}
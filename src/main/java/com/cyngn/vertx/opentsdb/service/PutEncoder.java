@@ -0,0 +1,290 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Encodes OpenTsDb 'put' lines straight to bytes, ie 'put [prefix.]name timestamp value tags\n', without building any
+ *  intermediate strings, along with the OpenTsDb 2.4 'rollup' and 'histogram' lines. Each line is assembled in a
+ *  scratch array that is reused for every call and then copied in one shot into the destination buffer.
+ *
+ * Not thread safe, every parser should own its own encoder.
+ */
+public class PutEncoder {
+
+    public static final byte NEW_LINE = '\n';
+    private static final byte SPACE = ' ';
+    private static final byte DOT = '.';
+    private static final byte[] PUT = {'p', 'u', 't', ' '};
+    private static final byte[] ROLLUP = {'r', 'o', 'l', 'l', 'u', 'p', ' '};
+    private static final byte[] HISTOGRAM = {'h', 'i', 's', 't', 'o', 'g', 'r', 'a', 'm', ' '};
+    static final int DEFAULT_LINE_SIZE = 256;
+
+    private final String prefix;
+    private final boolean hasPrefix;
+    private byte[] line;
+    private int position;
+
+    /**
+     * @param prefix the prefix to put on all metrics, can be null
+     */
+    public PutEncoder(String prefix) {
+        this.prefix = prefix;
+        hasPrefix = prefix != null && prefix.length() > 0;
+        line = new byte[DEFAULT_LINE_SIZE];
+    }
+
+    /**
+     * Encode a single data point and append it to the output buffer.
+     *
+     * @param out the buffer to append the line to
+     * @param name the metric name
+     * @param timestamp the timestamp of the data point
+     * @param value the metric value
+     * @param tags the tags string for this data point
+     * @return the number of bytes appended
+     */
+    public int encode(Buffer out, String name, long timestamp, String value, String tags) {
+        position = 0;
+        writeHead(name);
+        writeLong(timestamp);
+        writeByte(SPACE);
+        writeChars(value);
+        writeTail(tags);
+
+        out.appendBytes(line, 0, position);
+        return position;
+    }
+
+    /**
+     * Encode a single data point for an already encoded series and append it to the output buffer.
+     *
+     * @param out the buffer to append the line to
+     * @param key the series the data point belongs to
+     * @param timestamp the timestamp of the data point
+     * @param value the metric value
+     * @return the number of bytes appended
+     */
+    public int encode(Buffer out, SeriesKey key, long timestamp, String value) {
+        encode(key, timestamp, value);
+        out.appendBytes(line, 0, position);
+        return position;
+    }
+
+    /**
+     * Encode a single data point for an already encoded series into this encoder's line, the line is only valid until
+     *  the next call to the encoder.
+     *
+     * @param key the series the data point belongs to
+     * @param timestamp the timestamp of the data point
+     * @param value the metric value
+     * @return the length of the encoded line, see {@link #getLine()}
+     */
+    public int encode(SeriesKey key, long timestamp, String value) {
+        position = 0;
+        writeBytes(key.head);
+        writeLong(timestamp);
+        writeByte(SPACE);
+        writeChars(value);
+        writeBytes(key.tail);
+        return position;
+    }
+
+    /**
+     * Encode a pre-aggregated data point for a rollup table, ie 'rollup 1h-sum [prefix.]name timestamp value tags\n',
+     *  into this encoder's line. The line is only valid until the next call to the encoder.
+     *
+     * @param key the series the data point belongs to
+     * @param spec the rollup interval and aggregator, ie '1h-sum'
+     * @param timestamp the timestamp of the start of the interval
+     * @param value the aggregated value
+     * @return the length of the encoded line, see {@link #getLine()}
+     */
+    public int encodeRollup(SeriesKey key, String spec, long timestamp, String value) {
+        position = 0;
+        writeBytes(ROLLUP);
+        writeChars(spec);
+        writeByte(SPACE);
+        writeName(key);
+        writeLong(timestamp);
+        writeByte(SPACE);
+        writeChars(value);
+        writeBytes(key.tail);
+        return position;
+    }
+
+    /**
+     * Encode a histogram data point, ie 'histogram [prefix.]name timestamp id data tags\n', into this encoder's line.
+     *  The line is only valid until the next call to the encoder.
+     *
+     * @param key the series the data point belongs to
+     * @param timestamp the timestamp of the data point
+     * @param codecId the id TSD has configured for the codec the histogram was serialized with
+     * @param data the serialized histogram, written base64 encoded
+     * @return the length of the encoded line, see {@link #getLine()}
+     */
+    public int encodeHistogram(SeriesKey key, long timestamp, int codecId, byte[] data) {
+        position = 0;
+        writeBytes(HISTOGRAM);
+        writeName(key);
+        writeLong(timestamp);
+        writeByte(SPACE);
+        writeLong(codecId);
+        writeByte(SPACE);
+        byte[] encoded = Base64.getEncoder().encode(data);
+        writeBytes(encoded);
+        writeBytes(key.tail);
+        return position;
+    }
+
+    /**
+     * @return the most recently encoded line, only the bytes up to the length returned from the encode call are valid
+     */
+    public byte[] getLine() { return line; }
+
+    /**
+     * @param name the metric name
+     * @return the bytes that lead every line for this metric, ie 'put [prefix.]name '
+     */
+    public byte[] encodeHead(String name) {
+        position = 0;
+        writeHead(name);
+        return Arrays.copyOf(line, position);
+    }
+
+    /**
+     * @param tags the full tags string
+     * @return the bytes that end every line for these tags, ie ' tags\n'
+     */
+    public byte[] encodeTail(String tags) {
+        position = 0;
+        writeTail(tags);
+        return Arrays.copyOf(line, position);
+    }
+
+    private void writeHead(String name) {
+        writeBytes(PUT);
+        if (hasPrefix) {
+            writeChars(prefix);
+            writeByte(DOT);
+        }
+        writeChars(name);
+        writeByte(SPACE);
+    }
+
+    /**
+     * Write '[prefix.]name ' by taking the 'put ' off the front of the series' head.
+     */
+    private void writeName(SeriesKey key) {
+        int length = key.head.length - PUT.length;
+        ensureCapacity(length);
+        System.arraycopy(key.head, PUT.length, line, position, length);
+        position += length;
+    }
+
+    private void writeTail(String tags) {
+        writeByte(SPACE);
+        writeChars(tags);
+        writeByte(NEW_LINE);
+    }
+
+    private void writeByte(byte b) {
+        ensureCapacity(1);
+        line[position++] = b;
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, line, position, bytes.length);
+        position += bytes.length;
+    }
+
+    /**
+     * OpenTsDb names, values and tags are all ASCII in practice, anything outside of that gets UTF-8 encoded.
+     */
+    private void writeChars(String str) {
+        int length = str.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                line[position++] = (byte) c;
+            } else {
+                writeNonAscii(str, i);
+                if (Character.isHighSurrogate(c) && i + 1 < length) { i++; }
+                ensureCapacity(length - i);
+            }
+        }
+    }
+
+    private void writeNonAscii(String str, int index) {
+        int codePoint = str.codePointAt(index);
+        ensureCapacity(4);
+        if (codePoint < 0x800) {
+            line[position++] = (byte) (0xC0 | (codePoint >> 6));
+        } else if (codePoint < 0x10000) {
+            line[position++] = (byte) (0xE0 | (codePoint >> 12));
+            line[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        } else {
+            line[position++] = (byte) (0xF0 | (codePoint >> 18));
+            line[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            line[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        }
+        line[position++] = (byte) (0x80 | (codePoint & 0x3F));
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeChars(Long.toString(value));
+            return;
+        }
+
+        if (value < 0) {
+            writeByte((byte) '-');
+            value = -value;
+        }
+
+        int digits = digitCount(value);
+        ensureCapacity(digits);
+        int pos = position + digits;
+        do {
+            line[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        position += digits;
+    }
+
+    private static int digitCount(long value) {
+        int digits = 1;
+        long limit = 10;
+        while (digits < 19 && value >= limit) {
+            digits++;
+            limit *= 10;
+        }
+        return digits;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (position + needed > line.length) {
+            byte[] bigger = new byte[Math.max(line.length * 2, position + needed)];
+            System.arraycopy(line, 0, bigger, 0, position);
+            line = bigger;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayDeque;
+
+/**
+ * Holds encoded buffers a sender rejected so they can be sent again on a later flush, to the same host if it can take
+ *  them or to another one if not. The buffers are already encoded so a retry is just another write.
+ *
+ * The queue is bounded by bytes, when it is full the oldest buffers are evicted to make room. A buffer is given up on
+ *  once it has failed too many times or has been waiting too long.
+ *
+ * Not thread safe, owned by the processor.
+ */
+public class RetryQueue {
+
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_MAX_AGE = 30000;
+
+    private final long maxBytes;
+    private final int maxRetries;
+    private final long maxAge;
+    private final MetricsClock clock;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private long bytes;
+
+    private long retriedBytes;
+    private long recoveredBytes;
+    private long expiredBytes;
+    private long evictedBytes;
+
+    /**
+     * Where retries get sent.
+     */
+    public interface Target {
+        /**
+         * @param lastSender the sender the buffer last failed on
+         * @param length the size of the buffer
+         * @return the sender to retry on or -1 if none can take it right now
+         */
+        int pick(int lastSender, int length);
+
+        /**
+         * @param sender the sender to write to
+         * @param data the buffer, ownership passes to the sender the same as {@link
+         *  com.cyngn.vertx.opentsdb.service.client.MetricsSender#write(ByteBuf)}
+         * @return true if the sender accepted the buffer
+         */
+        boolean write(int sender, ByteBuf data);
+    }
+
+    /**
+     * @param maxBytes the max number of bytes to hold
+     * @param maxRetries the number of retries a buffer gets before it is discarded
+     * @param maxAge how long in milliseconds a buffer can wait before it is discarded
+     * @param clock the clock to age buffers by
+     */
+    public RetryQueue(long maxBytes, int maxRetries, long maxAge, MetricsClock clock) {
+        if (maxBytes < 1) { throw new IllegalArgumentException("The retry queue must hold at least 1 byte"); }
+        if (maxRetries < 1) { throw new IllegalArgumentException("Buffers must get at least 1 retry"); }
+        this.maxBytes = maxBytes;
+        this.maxRetries = maxRetries;
+        this.maxAge = maxAge;
+        this.clock = clock;
+    }
+
+    /**
+     * Hold on to a rejected buffer, the queue takes ownership of it.
+     *
+     * @param data the rejected buffer
+     * @param sender the sender that rejected it
+     * @return true if it was queued, false if it is bigger than the whole queue and was discarded
+     */
+    public boolean add(ByteBuf data, int sender) {
+        int length = data.readableBytes();
+        if (length > maxBytes) {
+            evictedBytes += length;
+            data.release();
+            return false;
+        }
+
+        while (bytes + length > maxBytes) {
+            Entry oldest = entries.pollFirst();
+            evictedBytes += oldest.length;
+            discard(oldest);
+        }
+        entries.addLast(new Entry(data, sender, clock.now()));
+        bytes += length;
+        return true;
+    }
+
+    /**
+     * Send as many queued buffers as the target will take, oldest first. Stops at the first buffer no sender can take
+     *  so buffers go out in the order they failed.
+     *
+     * @param target where to send the buffers
+     */
+    public void retry(Target target) {
+        long now = clock.now();
+        for (int i = entries.size(); i > 0; i--) {
+            Entry entry = entries.peekFirst();
+            if (now - entry.firstFailed > maxAge) {
+                entries.pollFirst();
+                expiredBytes += entry.length;
+                discard(entry);
+                continue;
+            }
+
+            int sender = target.pick(entry.sender, entry.length);
+            if (sender < 0) { break; }
+
+            entries.pollFirst();
+            retriedBytes += entry.length;
+            // the target releases the buffer either way, hold a reference in case it has to go back on the queue
+            entry.data.retain();
+            if (target.write(sender, entry.data)) {
+                recoveredBytes += entry.length;
+                discard(entry);
+            } else if (++entry.attempts >= maxRetries) {
+                expiredBytes += entry.length;
+                discard(entry);
+            } else {
+                entry.sender = sender;
+                entries.addLast(entry);
+            }
+        }
+    }
+
+    /**
+     * Discard everything queued.
+     */
+    public void clear() {
+        Entry entry;
+        while ((entry = entries.pollFirst()) != null) { discard(entry); }
+    }
+
+    private void discard(Entry entry) {
+        bytes -= entry.length;
+        entry.data.release();
+    }
+
+    public boolean isEmpty() { return entries.isEmpty(); }
+
+    public int size() { return entries.size(); }
+
+    /**
+     * @return the number of bytes queued
+     */
+    public long getBytes() { return bytes; }
+
+    /**
+     * @return the number of bytes that have been resent, each attempt counts
+     */
+    public long getRetriedBytes() { return retriedBytes; }
+
+    /**
+     * @return the number of bytes that were accepted on a retry
+     */
+    public long getRecoveredBytes() { return recoveredBytes; }
+
+    /**
+     * @return the number of bytes given up on for failing too many times or waiting too long
+     */
+    public long getExpiredBytes() { return expiredBytes; }
+
+    /**
+     * @return the number of bytes pushed out to make room for newer failures
+     */
+    public long getEvictedBytes() { return evictedBytes; }
+
+    @Override
+    public String toString() {
+        return String.format("retry queue: %d buffers %d bytes, retried: %d recovered: %d expired: %d evicted: %d",
+                entries.size(), bytes, retriedBytes, recoveredBytes, expiredBytes, evictedBytes);
+    }
+
+    private static class Entry {
+        private final ByteBuf data;
+        private final int length;
+        private final long firstFailed;
+        private int sender;
+        private int attempts;
+
+        Entry(ByteBuf data, int sender, long firstFailed) {
+            this.data = data;
+            this.length = data.readableBytes();
+            this.sender = sender;
+            this.firstFailed = firstFailed;
+        }
+    }
+}
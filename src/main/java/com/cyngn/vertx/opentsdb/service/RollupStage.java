@@ -0,0 +1,237 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rolls the raw points of every series up into the sum, count, min and max over fixed windows, ie 1m and 10m, to be
+ *  written to OpenTsDb's rollup tables with the 'rollup' command so queries over long ranges don't have to downsample
+ *  the raw data. Windows are aligned to multiples of their width and a point goes in the windows its own timestamp
+ *  falls in.
+ *
+ * A window is handed out once the time passes its end, or as soon as a point for a later window of the series shows
+ *  up. A point for a window that has already been handed out is late and left out of the rollups, the raw point is
+ *  still sent. Non numeric values are skipped.
+ *
+ * Not thread safe, owned by the service.
+ */
+public class RollupStage {
+
+    public static final int DEFAULT_MAX_SERIES = 16384;
+    private static final String[] AGGREGATORS = {"sum", "count", "min", "max"};
+
+    /**
+     * Receives the rolled up points.
+     */
+    @FunctionalInterface
+    public interface Sink {
+        /**
+         * @param key the series that was rolled up
+         * @param spec the rollup interval and aggregator, ie '1m-sum'
+         * @param timestamp the start of the window in milliseconds
+         * @param value the aggregated value
+         */
+        void accept(SeriesKey key, String spec, long timestamp, String value);
+    }
+
+    private final long[] widths;
+    // the specs of each window in the order of AGGREGATORS
+    private final String[][] specs;
+    private final int maxSeries;
+    private final Sink sink;
+    private final Map<SeriesKey, Window[]> series = new HashMap<>();
+
+    private long recorded;
+    private long late;
+    private long skipped;
+    private long overflowed;
+    private long emitted;
+
+    /**
+     * @param windows the windows to roll up over, ie '1m' and '10m', see {@link #parseWindow(String)}
+     * @param maxSeries the max number of series to roll up at once
+     * @param sink the receiver of the rolled up points
+     */
+    public RollupStage(List<String> windows, int maxSeries, Sink sink) {
+        if (windows.isEmpty()) { throw new IllegalArgumentException("At least one rollup window is needed"); }
+        if (maxSeries < 1) { throw new IllegalArgumentException("maxSeries must be at least 1"); }
+        widths = new long[windows.size()];
+        specs = new String[windows.size()][];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = parseWindow(windows.get(i));
+            specs[i] = new String[AGGREGATORS.length];
+            for (int j = 0; j < AGGREGATORS.length; j++) { specs[i][j] = windows.get(i) + "-" + AGGREGATORS[j]; }
+        }
+        this.maxSeries = maxSeries;
+        this.sink = sink;
+    }
+
+    /**
+     * @param window a whole number followed by a unit of s, m, h or d, ie '10m', the same form OpenTsDb's rollup
+     *               intervals are configured in
+     * @return the width of the window in milliseconds
+     */
+    public static long parseWindow(String window) {
+        long unit;
+        switch (window.isEmpty() ? ' ' : window.charAt(window.length() - 1)) {
+            case 's': unit = 1000; break;
+            case 'm': unit = 1000 * 60; break;
+            case 'h': unit = 1000 * 60 * 60; break;
+            case 'd': unit = 1000 * 60 * 60 * 24; break;
+            default:
+                throw new IllegalArgumentException("Invalid rollup window '" + window + "', must end in s, m, h or d");
+        }
+
+        try {
+            long count = Long.parseLong(window.substring(0, window.length() - 1));
+            if (count < 1) { throw new IllegalArgumentException("Rollup window '" + window + "' must be positive"); }
+            return count * unit;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid rollup window '" + window + "', must start with a number");
+        }
+    }
+
+    /**
+     * @param key the series of the point
+     * @param timestamp the timestamp of the point in milliseconds
+     * @param value the value of the point
+     */
+    public void record(SeriesKey key, long timestamp, String value) {
+        double parsed;
+        try {
+            parsed = Double.parseDouble(value);
+        } catch (NumberFormatException ex) {
+            parsed = Double.NaN;
+        }
+        if (Double.isNaN(parsed) || Double.isInfinite(parsed)) {
+            skipped++;
+            return;
+        }
+
+        Window[] windows = series.get(key);
+        if (windows == null) {
+            if (series.size() >= maxSeries) {
+                overflowed++;
+                return;
+            }
+            windows = new Window[widths.length];
+            for (int i = 0; i < windows.length; i++) { windows[i] = new Window(); }
+            series.put(key, windows);
+        }
+
+        for (int i = 0; i < windows.length; i++) {
+            Window window = windows[i];
+            long start = timestamp - Math.floorMod(timestamp, widths[i]);
+            if (window.count > 0 && start != window.start) {
+                if (start < window.start) {
+                    late++;
+                    continue;
+                }
+                emit(key, i, window);
+            }
+            if (window.count == 0 && start < window.emittedUpTo) {
+                late++;
+                continue;
+            }
+            window.add(start, parsed);
+        }
+        recorded++;
+    }
+
+    /**
+     * Hand out every window that has ended, series that had nothing to hand out are dropped.
+     *
+     * @param now the current time in milliseconds
+     */
+    public void drain(long now) {
+        Iterator<Map.Entry<SeriesKey, Window[]>> iterator = series.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<SeriesKey, Window[]> entry = iterator.next();
+            Window[] windows = entry.getValue();
+            boolean idle = true;
+            for (int i = 0; i < windows.length; i++) {
+                Window window = windows[i];
+                if (window.count == 0) { continue; }
+                idle = false;
+                if (window.start + widths[i] <= now) { emit(entry.getKey(), i, window); }
+            }
+            if (idle) { iterator.remove(); }
+        }
+    }
+
+    /**
+     * Hand out every window with points in it whether it has ended or not, for shutting down.
+     */
+    public void drainAll() {
+        drain(Long.MAX_VALUE);
+    }
+
+    private void emit(SeriesKey key, int index, Window window) {
+        String[] windowSpecs = specs[index];
+        sink.accept(key, windowSpecs[0], window.start, SeriesAggregator.format(window.sum));
+        sink.accept(key, windowSpecs[1], window.start, Long.toString(window.count));
+        sink.accept(key, windowSpecs[2], window.start, SeriesAggregator.format(window.min));
+        sink.accept(key, windowSpecs[3], window.start, SeriesAggregator.format(window.max));
+        emitted += AGGREGATORS.length;
+        window.emittedUpTo = window.start + widths[index];
+        window.count = 0;
+    }
+
+    public int size() { return series.size(); }
+
+    /**
+     * @return the number of points left out of a window because it had already been handed out
+     */
+    public long getLate() { return late; }
+
+    /**
+     * @return the number of rolled up points handed out
+     */
+    public long getEmitted() { return emitted; }
+
+    @Override
+    public String toString() {
+        return String.format("rollups: series: %d of %d recorded: %d late: %d skipped: %d overflowed: %d emitted: %d",
+                series.size(), maxSeries, recorded, late, skipped, overflowed, emitted);
+    }
+
+    private static final class Window {
+        private long start;
+        // the end of the last window handed out, anything before it is late
+        private long emittedUpTo = Long.MIN_VALUE;
+        private long count;
+        private double sum;
+        private double min;
+        private double max;
+
+        void add(long windowStart, double value) {
+            if (count == 0) {
+                start = windowStart;
+                sum = 0;
+                min = value;
+                max = value;
+            } else {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            sum += value;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import com.cyngn.vertx.opentsdb.service.client.MetricsSender;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Tracks which senders can take data, checked once per flush. A sender that is disconnected gets no data, once it is
+ *  connected again its share ramps back up over a number of flushes rather than it taking a full share straight away.
+ *  A connected sender with a full write queue is still healthy, it is just slow, the processor holds back data for it
+ *  using its write budget instead.
+ *
+ * Not thread safe, owned by the processor.
+ */
+public class SenderHealth {
+
+    public static final int DEFAULT_RECOVERY_FLUSHES = 5;
+
+    private final int recoveryFlushes;
+    // consecutive healthy flushes per sender capped at recoveryFlushes, 0 means unhealthy
+    private int[] healthyFlushes = new int[0];
+    private int availableCount;
+    private Logger logger = LoggerFactory.getLogger(SenderHealth.class);
+
+    /**
+     * @param recoveryFlushes the number of healthy flushes it takes a recovered sender to get back to a full share
+     */
+    public SenderHealth(int recoveryFlushes) {
+        if (recoveryFlushes < 1) { throw new IllegalArgumentException("recoveryFlushes must be at least 1"); }
+        this.recoveryFlushes = recoveryFlushes;
+    }
+
+    /**
+     * Check the senders, call once at the start of every flush.
+     *
+     * @param senders the senders, in the same order every call
+     */
+    public void update(List<MetricsSender> senders) {
+        if (healthyFlushes.length != senders.size()) {
+            int[] resized = new int[senders.size()];
+            for (int i = 0; i < resized.length; i++) {
+                // senders we haven't seen before start with a full share
+                resized[i] = i < healthyFlushes.length ? healthyFlushes[i] : recoveryFlushes;
+            }
+            healthyFlushes = resized;
+        }
+
+        availableCount = 0;
+        for (int i = 0; i < healthyFlushes.length; i++) {
+            MetricsSender sender = senders.get(i);
+            boolean healthy = sender.isConnected();
+            if (!healthy) {
+                if (healthyFlushes[i] > 0) { logger.warn("Taking sender " + sender.getId() + " out of rotation"); }
+                healthyFlushes[i] = 0;
+            } else {
+                if (healthyFlushes[i] == 0) { logger.info("Putting sender " + sender.getId() + " back in rotation"); }
+                if (healthyFlushes[i] < recoveryFlushes) { healthyFlushes[i]++; }
+                availableCount++;
+            }
+        }
+    }
+
+    /**
+     * @return true if the sender can take data
+     */
+    public boolean isAvailable(int sender) { return healthyFlushes[sender] > 0; }
+
+    /**
+     * @return the share of a full load the sender should take, between 0 for unhealthy and 1 for fully recovered
+     */
+    public double weight(int sender) { return (double) healthyFlushes[sender] / recoveryFlushes; }
+
+    /**
+     * @return the number of senders that can take data
+     */
+    public int getAvailableCount() { return availableCount; }
+}
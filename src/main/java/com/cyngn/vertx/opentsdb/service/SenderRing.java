@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import com.cyngn.vertx.opentsdb.service.client.MetricsSender;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Consistent hash ring of senders. Every sender is placed on the ring at a number of virtual nodes derived from its id
+ *  and a series goes to the first node at or after its hash, so a series sticks to one host and adding or removing a
+ *  host only moves the series that land on that host's nodes.
+ *
+ * Immutable, build a new ring when the senders change.
+ */
+public class SenderRing {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final List<MetricsSender> senders;
+    // node hashes in ascending order and the index of the sender that owns each one
+    private final int[] points;
+    private final int[] owners;
+
+    /**
+     * @param senders the senders to place on the ring
+     * @param virtualNodes the number of nodes per sender, more nodes spread the series more evenly
+     */
+    public SenderRing(List<MetricsSender> senders, int virtualNodes) {
+        if (senders.isEmpty()) { throw new IllegalArgumentException("The ring needs at least one sender"); }
+        if (virtualNodes < 1) { throw new IllegalArgumentException("The ring needs at least one node per sender"); }
+        this.senders = senders;
+
+        long[] nodes = new long[senders.size() * virtualNodes];
+        for (int i = 0; i < senders.size(); i++) {
+            String id = senders.get(i).getId();
+            for (int node = 0; node < virtualNodes; node++) {
+                int hash = Hashing.murmur3_32().hashString(id + "#" + node, StandardCharsets.UTF_8).asInt();
+                // hash in the high bits and owner in the low bits so one primitive sort orders both
+                nodes[i * virtualNodes + node] = ((long) hash << 32) | i;
+            }
+        }
+        Arrays.sort(nodes);
+
+        points = new int[nodes.length];
+        owners = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            points[i] = (int) (nodes[i] >> 32);
+            owners[i] = (int) nodes[i];
+        }
+    }
+
+    /**
+     * Decides if a sender will take a series, lets the caller route around senders that are down.
+     */
+    @FunctionalInterface
+    public interface Admission {
+        boolean admit(int sender, int shardHash);
+    }
+
+    /**
+     * @param shardHash the hash of the series, see {@link SeriesKey#shardHash()}
+     * @return the index of the sender that owns the series
+     */
+    public int indexFor(int shardHash) {
+        return owners[firstNode(shardHash)];
+    }
+
+    /**
+     * Find the owner of a series, walking on around the ring past any sender that won't admit it, so the series of
+     *  a sender that is down spread out over the rest of the ring.
+     *
+     * @param shardHash the hash of the series, see {@link SeriesKey#shardHash()}
+     * @param admission decides which senders can take the series
+     * @return the index of the sender to use or -1 if no sender will admit the series
+     */
+    public int indexFor(int shardHash, Admission admission) {
+        int pos = firstNode(shardHash);
+        for (int i = 0; i < points.length; i++) {
+            if (admission.admit(owners[pos], shardHash)) { return owners[pos]; }
+            if (++pos == points.length) { pos = 0; }
+        }
+        return -1;
+    }
+
+    private int firstNode(int shardHash) {
+        int pos = Arrays.binarySearch(points, shardHash);
+        if (pos < 0) { pos = -pos - 1; }
+        // wrap around past the last node
+        return pos == points.length ? 0 : pos;
+    }
+
+    /**
+     * @param shardHash the hash of the series, see {@link SeriesKey#shardHash()}
+     * @return the sender that owns the series
+     */
+    public MetricsSender senderFor(int shardHash) { return senders.get(indexFor(shardHash)); }
+
+    public int size() { return senders.size(); }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Aggregates typed metrics per series in memory, statsd style, and hands out one set of points per flush so TSD load
+ *  follows the number of series rather than the rate metrics are reported at.
+ *
+ *  - counter, the values are summed
+ *  - gauge, the last value wins
+ *  - timer, emitted as the count, min, max and mean of the values under the metric name suffixed with '.count',
+ *      '.min', '.max' and '.mean'
+ *  - set, the number of distinct values
+ *  - histogram, the values go into a {@link Histogram} emitted as its p50, p90, p99, p999, max and count under the
+ *      metric name suffixed with '.p50', '.p90', '.p99', '.p999', '.max' and '.count'
+ *
+ * A series keeps its type and its entry for as long as it keeps reporting, entries that see nothing for a whole flush
+ *  are dropped.
+ *
+ * Not thread safe, owned by the service.
+ */
+public class SeriesAggregator {
+
+    public static final int DEFAULT_MAX_SERIES = 16384;
+    private static final String[] TIMER_SUFFIXES = {".count", ".min", ".max", ".mean"};
+
+    public enum Type {
+        COUNTER,
+        GAUGE,
+        TIMER,
+        SET,
+        HISTOGRAM;
+
+        /**
+         * @param type the type as given on a metric
+         * @return the matching type or null if there isn't one
+         */
+        public static Type parse(String type) {
+            switch (type) {
+                case "counter": return COUNTER;
+                case "gauge": return GAUGE;
+                case "timer": return TIMER;
+                case "set": return SET;
+                case "histogram": return HISTOGRAM;
+                default: return null;
+            }
+        }
+    }
+
+    /**
+     * Receives the aggregated points on a drain.
+     */
+    @FunctionalInterface
+    public interface Sink {
+        void accept(SeriesKey key, String value);
+    }
+
+    private final int maxSeries;
+    private final SeriesKeyCache seriesKeys;
+    private final Map<SeriesKey, Aggregate> aggregates = new HashMap<>();
+
+    private long aggregated;
+    private long emitted;
+
+    /**
+     * @param maxSeries the max number of series to aggregate at once
+     * @param seriesKeys where to get the keys of the series a timer is emitted as
+     */
+    public SeriesAggregator(int maxSeries, SeriesKeyCache seriesKeys) {
+        if (maxSeries < 1) { throw new IllegalArgumentException("maxSeries must be at least 1"); }
+        this.maxSeries = maxSeries;
+        this.seriesKeys = seriesKeys;
+    }
+
+    /**
+     * Check a typed metric can be aggregated without recording it.
+     *
+     * @param key the series of the metric
+     * @param type the type given on the metric
+     * @param value the value of the metric
+     * @return null if the metric can be recorded, otherwise why not
+     */
+    public String check(SeriesKey key, String type, String value) {
+        Type parsed = Type.parse(type);
+        if (parsed == null) {
+            return "Unknown 'type' '" + type + "', must be one of counter, gauge, timer, set or histogram";
+        }
+
+        Aggregate aggregate = aggregates.get(key);
+        if (aggregate == null && aggregates.size() >= maxSeries) {
+            return String.format("Already aggregating the max of %d series", maxSeries);
+        }
+        if (aggregate != null && aggregate.type != parsed) {
+            return String.format("The metric '%s' is already aggregated as a %s", key.getName(),
+                    aggregate.type.name().toLowerCase());
+        }
+        if (parsed != Type.GAUGE && parsed != Type.SET && Double.isNaN(parse(value))) {
+            return "The 'value' of a " + type + " must be a finite number";
+        }
+        return null;
+    }
+
+    /**
+     * Record a metric that has passed {@link #check}.
+     *
+     * @param key the series of the metric
+     * @param type the type given on the metric
+     * @param value the value of the metric
+     * @param tags the tags given on the metric
+     */
+    public void record(SeriesKey key, String type, String value, JsonObject tags) {
+        Aggregate aggregate = aggregates.get(key);
+        if (aggregate == null) {
+            aggregate = new Aggregate(Type.parse(type), key, tags);
+            aggregates.put(key, aggregate);
+        }
+
+        switch (aggregate.type) {
+            case COUNTER:
+                aggregate.sum += parse(value);
+                break;
+            case GAUGE:
+                aggregate.last = value;
+                break;
+            case TIMER:
+                double timing = parse(value);
+                aggregate.sum += timing;
+                aggregate.min = Math.min(aggregate.min, timing);
+                aggregate.max = Math.max(aggregate.max, timing);
+                break;
+            case SET:
+                aggregate.members.add(value);
+                break;
+            case HISTOGRAM:
+                aggregate.histogram.record(Math.round(parse(value)));
+                break;
+        }
+        aggregate.count++;
+        aggregated++;
+    }
+
+    /**
+     * Hand out the aggregated points of every series that reported since the last drain and start a new window.
+     *
+     * @param sink the receiver of the points
+     */
+    public void drainTo(Sink sink) {
+        Iterator<Aggregate> iterator = aggregates.values().iterator();
+        while (iterator.hasNext()) {
+            Aggregate aggregate = iterator.next();
+            if (aggregate.count == 0) {
+                iterator.remove();
+                continue;
+            }
+
+            switch (aggregate.type) {
+                case COUNTER:
+                    sink.accept(aggregate.keys[0], format(aggregate.sum));
+                    break;
+                case GAUGE:
+                    sink.accept(aggregate.keys[0], aggregate.last);
+                    break;
+                case TIMER:
+                    sink.accept(aggregate.keys[0], Integer.toString(aggregate.count));
+                    sink.accept(aggregate.keys[1], format(aggregate.min));
+                    sink.accept(aggregate.keys[2], format(aggregate.max));
+                    sink.accept(aggregate.keys[3], format(aggregate.sum / aggregate.count));
+                    break;
+                case SET:
+                    sink.accept(aggregate.keys[0], Integer.toString(aggregate.members.size()));
+                    break;
+                case HISTOGRAM:
+                    SeriesKey[] keys = aggregate.keys;
+                    aggregate.histogram.forEachStat((stat, value) -> sink.accept(keys[stat], Long.toString(value)));
+                    break;
+            }
+            emitted += aggregate.keys.length;
+            aggregate.reset();
+        }
+    }
+
+    public int size() { return aggregates.size(); }
+
+    /**
+     * @return the number of metrics recorded
+     */
+    public long getAggregated() { return aggregated; }
+
+    /**
+     * @return the number of points handed out
+     */
+    public long getEmitted() { return emitted; }
+
+    @Override
+    public String toString() {
+        return String.format("aggregator: series: %d of %d aggregated: %d emitted: %d", aggregates.size(), maxSeries,
+                aggregated, emitted);
+    }
+
+    /**
+     * @return the value as a double or NaN if it isn't a finite number
+     */
+    private static double parse(String value) {
+        try {
+            double parsed = Double.parseDouble(value);
+            return Double.isInfinite(parsed) ? Double.NaN : parsed;
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Whole numbers are written without a fraction so counters of integers stay integers in OpenTsDb.
+     */
+    static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) { return Long.toString((long) value); }
+        return Double.toString(value);
+    }
+
+    private final class Aggregate {
+        private final Type type;
+        // the series the aggregate is emitted as
+        private final SeriesKey[] keys;
+        private int count;
+        private double sum;
+        private double min;
+        private double max;
+        private String last;
+        private Set<String> members;
+        private Histogram histogram;
+
+        Aggregate(Type type, SeriesKey key, JsonObject tags) {
+            this.type = type;
+            if (type == Type.TIMER) {
+                keys = suffixed(key, TIMER_SUFFIXES, tags);
+            } else if (type == Type.HISTOGRAM) {
+                keys = suffixed(key, Histogram.STAT_SUFFIXES, tags);
+                histogram = new Histogram();
+            } else {
+                keys = new SeriesKey[] {key};
+            }
+            if (type == Type.SET) { members = new HashSet<>(); }
+            reset();
+        }
+
+        void reset() {
+            count = 0;
+            sum = 0;
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+            last = null;
+            if (members != null) { members.clear(); }
+            if (histogram != null) { histogram.reset(); }
+        }
+
+        private SeriesKey[] suffixed(SeriesKey key, String[] suffixes, JsonObject tags) {
+            SeriesKey[] suffixedKeys = new SeriesKey[suffixes.length];
+            for (int i = 0; i < suffixes.length; i++) {
+                suffixedKeys[i] = seriesKeys.get(key.getName() + suffixes[i], tags);
+            }
+            return suffixedKeys;
+        }
+    }
+}
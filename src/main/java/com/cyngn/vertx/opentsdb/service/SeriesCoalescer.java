@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import java.util.Arrays;
+
+/**
+ * Keeps only the latest encoded point per series between flushes, a series reported many times in a flush window is
+ *  written to OpenTsDb once. Backed by an open addressing table with linear probing whose slots, and the line buffers
+ *  in them, are reused from window to window so coalescing a point allocates nothing once the table has warmed up.
+ *
+ * The table holds a fixed number of series, points for new series that arrive once it is full aren't coalesced and
+ *  are handed back to the caller to queue as normal.
+ *
+ * Not thread safe, owned by the service.
+ */
+public class SeriesCoalescer {
+
+    public static final int DEFAULT_MAX_SERIES = 16384;
+
+    private final int maxSeries;
+    private final int mask;
+    private final SeriesKey[] keys;
+    private final byte[][] lines;
+    private final int[] lengths;
+    // slots in use in the order their series first showed up in the window
+    private final int[] occupied;
+    private int size;
+
+    private long coalesced;
+    private long overflowed;
+
+    /**
+     * Receives the coalesced points on a drain.
+     */
+    @FunctionalInterface
+    public interface Sink {
+        void accept(byte[] line, int offset, int length, int shardHash);
+    }
+
+    /**
+     * @param maxSeries the max number of series to coalesce per window
+     */
+    public SeriesCoalescer(int maxSeries) {
+        if (maxSeries < 1) { throw new IllegalArgumentException("maxSeries must be at least 1"); }
+        this.maxSeries = maxSeries;
+        // keep the table at most half full so probes stay short
+        int tableSize = Integer.highestOneBit(maxSeries * 2 - 1) << 1;
+        mask = tableSize - 1;
+        keys = new SeriesKey[tableSize];
+        lines = new byte[tableSize][];
+        lengths = new int[tableSize];
+        occupied = new int[maxSeries];
+    }
+
+    /**
+     * Hold a point, replacing any earlier point for the same series in this window.
+     *
+     * @param key the series of the point
+     * @param line the buffer holding the encoded line
+     * @param offset where the line starts
+     * @param length the length of the line
+     * @return true if the point is held, false if the table is full and the caller should queue it
+     */
+    public boolean add(SeriesKey key, byte[] line, int offset, int length) {
+        int slot = key.hashCode() & mask;
+        SeriesKey existing;
+        while ((existing = keys[slot]) != null) {
+            if (existing == key || existing.equals(key)) {
+                coalesced++;
+                copy(slot, line, offset, length);
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == maxSeries) {
+            overflowed++;
+            return false;
+        }
+        keys[slot] = key;
+        occupied[size++] = slot;
+        copy(slot, line, offset, length);
+        return true;
+    }
+
+    private void copy(int slot, byte[] line, int offset, int length) {
+        byte[] held = lines[slot];
+        if (held == null || held.length < length) {
+            held = held == null ? new byte[Math.max(length, PutEncoder.DEFAULT_LINE_SIZE)]
+                    : Arrays.copyOf(held, Math.max(length, held.length * 2));
+            lines[slot] = held;
+        }
+        System.arraycopy(line, offset, held, 0, length);
+        lengths[slot] = length;
+    }
+
+    /**
+     * Hand every held point to the sink, in the order their series first showed up, and start a new window.
+     *
+     * @param sink where to hand the points
+     * @return the number of points handed over
+     */
+    public int drainTo(Sink sink) {
+        int drained = size;
+        for (int i = 0; i < drained; i++) {
+            int slot = occupied[i];
+            sink.accept(lines[slot], 0, lengths[slot], keys[slot].shardHash());
+            keys[slot] = null;
+        }
+        size = 0;
+        return drained;
+    }
+
+    public boolean isEmpty() { return size == 0; }
+
+    /**
+     * @return the number of series held in this window
+     */
+    public int size() { return size; }
+
+    /**
+     * @return the number of points replaced by a later point for the same series
+     */
+    public long getCoalesced() { return coalesced; }
+
+    /**
+     * @return the number of points passed straight through because the table was full
+     */
+    public long getOverflowed() { return overflowed; }
+
+    @Override
+    public String toString() {
+        return String.format("coalescer: %d series held, coalesced: %d overflowed: %d", size, coalesced, overflowed);
+    }
+}
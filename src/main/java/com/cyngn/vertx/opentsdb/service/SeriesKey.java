@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import com.google.common.hash.Hashing;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * A time series identity, the metric name plus its canonical (sorted) tag set, along with the pre-encoded bytes that
+ *  surround the timestamp and value in a 'put' line.
+ */
+public final class SeriesKey {
+
+    private static final byte[] PUT = {'p', 'u', 't', ' '};
+
+    private final String name;
+    private final SortedMap<String, String> tags;
+    private final int hash;
+    private final int shardHash;
+
+    // 'put [prefix.]name '
+    final byte[] head;
+    // ' [defaultTags ]tags\n'
+    final byte[] tail;
+    // whether the series' name matches a change only pattern, worked out by the change filter the first time it sees
+    //  the key, 0 not yet known, 1 yes, 2 no
+    byte changeOnly;
+
+    SeriesKey(String name, SortedMap<String, String> tags, byte[] head, byte[] tail) {
+        this.name = name;
+        this.tags = tags;
+        this.head = head;
+        this.tail = tail;
+        hash = hash(name, tags);
+        shardHash = Hashing.murmur3_32().newHasher().putBytes(head).putBytes(tail).hash().asInt();
+    }
+
+    public String getName() { return name; }
+
+    public SortedMap<String, String> getTags() { return tags; }
+
+    /**
+     * @return a well mixed hash of the encoded series, stable across restarts, used to pick the host for the series
+     */
+    public int shardHash() { return shardHash; }
+
+    /**
+     * Work out the shard hash of an already encoded line, the same hash {@link #shardHash()} gives its series. Works
+     *  for 'rollup' and 'histogram' lines too, so they land on the same host as the raw points of their series.
+     *
+     * @param line the buffer holding the line
+     * @param offset where the line starts
+     * @param length the length of the line including its trailing new line
+     * @return the shard hash of the line's series
+     */
+    public static int shardHash(byte[] line, int offset, int length) {
+        // 'put name timestamp value tags\n', 'rollup spec name timestamp value tags\n' or
+        //  'histogram name timestamp id data tags\n', hashed as the head 'put name ' and the tail ' tags\n'
+        int nameSpace = 1;
+        int tailSpace = 4;
+        if (line[offset] == 'r') {
+            nameSpace = 2;
+            tailSpace = 5;
+        } else if (line[offset] == 'h') {
+            tailSpace = 5;
+        }
+
+        int end = offset + length;
+        int spaces = 0;
+        int nameStart = end;
+        int nameEnd = end;
+        int tailStart = end;
+        for (int i = offset; i < end && spaces < tailSpace; i++) {
+            if (line[i] == ' ') {
+                spaces++;
+                if (spaces == nameSpace) { nameStart = i + 1; }
+                else if (spaces == nameSpace + 1) { nameEnd = i + 1; }
+                else if (spaces == tailSpace) { tailStart = i; }
+            }
+        }
+        return Hashing.murmur3_32().newHasher().putBytes(PUT).putBytes(line, nameStart, nameEnd - nameStart)
+                .putBytes(line, tailStart, end - tailStart).hash().asInt();
+    }
+
+    /**
+     * @return the number of bytes this key contributes to every encoded data point
+     */
+    public int encodedLength() { return head.length + tail.length; }
+
+    /**
+     * Tags hash the same way regardless of the iteration order of the map they come from.
+     */
+    static int hash(String name, Map<String, ?> tags) {
+        int tagHash = 0;
+        if (tags != null) {
+            for (Map.Entry<String, ?> entry : tags.entrySet()) {
+                tagHash += entry.getKey().hashCode() ^ String.valueOf(entry.getValue()).hashCode();
+            }
+        }
+        return 31 * name.hashCode() + tagHash;
+    }
+
+    /**
+     * Does this key represent the same series as the name and tags passed in, regardless of tag order.
+     */
+    boolean matches(String otherName, Map<String, ?> otherTags) {
+        int otherSize = otherTags == null ? 0 : otherTags.size();
+        if (!name.equals(otherName) || tags.size() != otherSize) { return false; }
+
+        if (otherTags != null) {
+            for (Map.Entry<String, ?> entry : otherTags.entrySet()) {
+                if (!String.valueOf(entry.getValue()).equals(tags.get(entry.getKey()))) { return false; }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) { return true; }
+        if (!(o instanceof SeriesKey)) { return false; }
+        SeriesKey other = (SeriesKey) o;
+        return hash == other.hash && matches(other.name, other.tags);
+    }
+
+    @Override
+    public int hashCode() { return hash; }
+
+    @Override
+    public String toString() { return "SeriesKey[name=" + name + ", tags=" + tags + "]"; }
+}
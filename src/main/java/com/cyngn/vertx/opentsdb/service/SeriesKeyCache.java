@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Bounded LRU cache of pre-encoded series keys, so a repeat data point costs a single lookup instead of rebuilding the
+ *  metric name and tag string every time. Keys are matched on metric name plus tag set, independent of tag order.
+ *
+ * Not thread safe, every parser should own its own cache.
+ */
+public class SeriesKeyCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private final int maxSize;
+    private final PutEncoder encoder;
+    private final String defaultTags;
+    private final LinkedHashMap<Object, SeriesKey> cache;
+    // reused for every lookup so a cache hit allocates nothing
+    private final Probe probe = new Probe();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxSize the max number of series keys to hold on to
+     * @param encoder the encoder used to pre-encode new keys
+     * @param defaultTags the default tags to put on all metrics
+     */
+    public SeriesKeyCache(int maxSize, PutEncoder encoder, String defaultTags) {
+        if (maxSize < 1) { throw new IllegalArgumentException("The series key cache needs a size of at least 1"); }
+        this.maxSize = maxSize;
+        this.encoder = encoder;
+        this.defaultTags = defaultTags == null ? "" : defaultTags;
+        cache = new LinkedHashMap<Object, SeriesKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, SeriesKey> eldest) {
+                boolean evict = size() > SeriesKeyCache.this.maxSize;
+                if (evict) { evictions++; }
+                return evict;
+            }
+        };
+    }
+
+    /**
+     * Get the series key for a metric name and its tags, creating and caching it if it isn't already present.
+     *
+     * @param name the metric name
+     * @param tags the tags for this data point, can be null
+     * @return the series key
+     */
+    public SeriesKey get(String name, JsonObject tags) {
+        Map<String, Object> tagMap = tags != null ? tags.getMap() : null;
+        probe.set(name, tagMap);
+        SeriesKey key = cache.get(probe);
+        probe.set(null, null);
+
+        if (key != null) {
+            hits++;
+            return key;
+        }
+
+        misses++;
+        key = create(name, tagMap);
+        cache.put(key, key);
+        return key;
+    }
+
+    private SeriesKey create(String name, Map<String, Object> tagMap) {
+        SortedMap<String, String> sortedTags = new TreeMap<>();
+        if (tagMap != null) {
+            for (Map.Entry<String, Object> entry : tagMap.entrySet()) {
+                sortedTags.put(entry.getKey(), String.valueOf(entry.getValue()));
+            }
+        }
+
+        StringBuilder tagString = new StringBuilder(defaultTags);
+        for (Map.Entry<String, String> entry : sortedTags.entrySet()) {
+            if (tagString.length() > 0) { tagString.append(' '); }
+            tagString.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+
+        return new SeriesKey(name, sortedTags, encoder.encodeHead(name), encoder.encodeTail(tagString.toString()));
+    }
+
+    public int size() { return cache.size(); }
+
+    public long getHits() { return hits; }
+
+    public long getMisses() { return misses; }
+
+    public long getEvictions() { return evictions; }
+
+    /**
+     * Lookup only key, compares equal to any {@link SeriesKey} with the same name and tag set.
+     */
+    private static class Probe {
+        private String name;
+        private Map<String, ?> tags;
+        private int hash;
+
+        void set(String name, Map<String, ?> tags) {
+            this.name = name;
+            this.tags = tags;
+            hash = name == null ? 0 : SeriesKey.hash(name, tags);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SeriesKey && o.hashCode() == hash && ((SeriesKey) o).matches(name, tags);
+        }
+
+        @Override
+        public int hashCode() { return hash; }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The state shared by every instance of the service deployed on the same address, kept in a local map so instances
+ *  running on different event loops find the same one. Everything in it is coordinated with atomics.
+ */
+final class ServiceGroup implements Shareable {
+
+    static final String MAP_NAME = "vertx-opentsdb.groups";
+
+    private final String deploymentId;
+    private final BacklogLimit backlogLimit;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+    private final AtomicInteger live = new AtomicInteger();
+
+    private ServiceGroup(String deploymentId, long maxBacklogBytes) {
+        this.deploymentId = deploymentId;
+        backlogLimit = maxBacklogBytes == Long.MAX_VALUE ? null : new BacklogLimit(maxBacklogBytes);
+    }
+
+    /**
+     * Join the group for an address, creating it if this is the first instance on the address. Only the instances of
+     *  one deployment can share an address, series are split between them by the deployment's instance count.
+     *
+     * @param groups the map holding the groups
+     * @param address the address the instance consumes from
+     * @param deploymentId the deployment the instance belongs to
+     * @param maxBacklogBytes the max bytes for the backlogs of the whole group, only used when creating it
+     * @return the group or null if another deployment already consumes from the address
+     */
+    static ServiceGroup join(LocalMap<String, ServiceGroup> groups, String address, String deploymentId,
+                             long maxBacklogBytes) {
+        ServiceGroup created = new ServiceGroup(deploymentId, maxBacklogBytes);
+        ServiceGroup existing = groups.putIfAbsent(address, created);
+        ServiceGroup group = existing == null ? created : existing;
+        if (!group.deploymentId.equals(deploymentId)) { return null; }
+        group.live.incrementAndGet();
+        return group;
+    }
+
+    /**
+     * Leave the group, the last instance to leave removes it so a later deployment starts afresh.
+     */
+    void leave(LocalMap<String, ServiceGroup> groups, String address) {
+        if (live.decrementAndGet() == 0) { groups.removeIfPresent(address, this); }
+    }
+
+    /**
+     * @return the index of a newly started instance, instances are numbered from 0 in the order they start
+     */
+    int nextIndex() { return nextIndex.getAndIncrement(); }
+
+    /**
+     * @return the bound on backlog bytes shared by the group, null if backlog bytes are unbounded
+     */
+    BacklogLimit getBacklogLimit() { return backlogLimit; }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Spills encoded 'put' lines to segment files on local disk when they can't be held in memory, and hands them back at
+ *  a capped rate once they can be sent. Segments are kept until they have been fully replayed, so whatever is left on
+ *  disk when the service stops is picked up again when it next starts with the same directory.
+ *
+ * Each segment starts with an 8 byte header holding the offset replay has reached, followed by the lines as they were
+ *  sent over the wire. Writes are buffered in memory and go to disk when the buffer fills or on {@link #sync()}. Lines
+ *  are read back without being taken off the spill and the offset is only moved on once they are
+ *  {@link #consume(long) consumed}, so a crash replays at most the lines of the last replay a second time.
+ *
+ * Not thread safe and every call can block on the disk, the service only calls it from a worker through
+ *  {@link SpillWorker}.
+ */
+public class SpillQueue implements Closeable {
+
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_REPLAY_BYTES_PER_SECOND = 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "spill-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int HEADER_BYTES = 8;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final byte NEW_LINE = '\n';
+
+    private final File dir;
+    private final long maxBytes;
+    private final long segmentBytes;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_BYTES);
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    private byte[] readBuffer = new byte[BUFFER_BYTES];
+    private ByteBuf replayBuffer;
+    private Segment writeSegment;
+    private long nextSequence;
+    // unread bytes on disk plus whatever is buffered
+    private long bytes;
+
+    private long spilledBytes;
+    private long replayedBytes;
+    private long rejectedBytes;
+    private Logger logger = LoggerFactory.getLogger(SpillQueue.class);
+
+    /**
+     * Receives replayed lines.
+     */
+    @FunctionalInterface
+    public interface LineSink {
+        /**
+         * @return true if the line was taken, false to stop the replay, the line will be replayed again next time
+         */
+        boolean offer(byte[] line, int offset, int length);
+    }
+
+    /**
+     * Open the spill directory, creating it if needed, and pick up any segments left from a previous run.
+     *
+     * @param dir the directory to hold the segments in
+     * @param maxBytes the max number of unreplayed bytes to hold
+     * @param segmentBytes the size at which a new segment is started
+     * @throws IOException if the directory or the existing segments can't be opened
+     */
+    public SpillQueue(File dir, long maxBytes, long segmentBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) { throw new IOException("Failed to create spill directory " + dir); }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+
+        File[] files = dir.listFiles((parent, name) ->
+                name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        // the sequence is zero padded so name order is write order
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+            nextSequence = Math.max(nextSequence, sequence + 1);
+
+            Segment segment = Segment.open(file);
+            if (segment.trimmed > 0) {
+                logger.warn(String.format("Skipping %d bytes of partial line in %s", segment.trimmed, file));
+            }
+            if (segment.readPos >= segment.size) {
+                segment.delete();
+                continue;
+            }
+            segments.addLast(segment);
+            bytes += segment.size - segment.readPos;
+        }
+
+        if (bytes > 0) { logger.info(String.format("Restored %d spilled bytes from %s", bytes, dir)); }
+    }
+
+    /**
+     * @param line the buffer holding the encoded line
+     * @param offset where the line starts
+     * @param length the length of the line
+     * @return true if the line was spilled, false if the spill is full or the disk write failed
+     */
+    public boolean append(byte[] line, int offset, int length) {
+        if (!reserve(length)) { return false; }
+        if (length > writeBuffer.capacity()) { return writeDirect(ByteBuffer.wrap(line, offset, length)); }
+        writeBuffer.put(line, offset, length);
+        return true;
+    }
+
+    /**
+     * @param data the buffer holding the encoded line
+     * @param index where the line starts
+     * @param length the length of the line
+     * @return true if the line was spilled, false if the spill is full or the disk write failed
+     */
+    public boolean append(ByteBuf data, int index, int length) {
+        if (!reserve(length)) { return false; }
+        if (length > writeBuffer.capacity()) { return writeDirect(data.nioBuffer(index, length)); }
+        data.getBytes(index, writeBuffer.array(), writeBuffer.position(), length);
+        writeBuffer.position(writeBuffer.position() + length);
+        return true;
+    }
+
+    /**
+     * Make room in the write buffer for a line and count it.
+     */
+    private boolean reserve(int length) {
+        if (bytes + length > maxBytes || (length > writeBuffer.remaining() && !sync())) {
+            rejectedBytes += length;
+            return false;
+        }
+        bytes += length;
+        spilledBytes += length;
+        return true;
+    }
+
+    private boolean writeDirect(ByteBuffer line) {
+        int length = line.remaining();
+        try {
+            write(line);
+            return true;
+        } catch (IOException ex) {
+            logger.error("Failed to spill to " + dir, ex);
+            bytes -= length;
+            spilledBytes -= length;
+            rejectedBytes += length;
+            return false;
+        }
+    }
+
+    /**
+     * Write anything buffered out to disk.
+     *
+     * @return true if the buffered lines were written, false if they were lost to a disk error
+     */
+    public boolean sync() {
+        if (writeBuffer.position() == 0) { return true; }
+        writeBuffer.flip();
+        int length = writeBuffer.remaining();
+        try {
+            write(writeBuffer);
+            return true;
+        } catch (IOException ex) {
+            logger.error(String.format("Failed to spill %d bytes to %s", length, dir), ex);
+            bytes -= length;
+            spilledBytes -= length;
+            rejectedBytes += length;
+            return false;
+        } finally {
+            writeBuffer.clear();
+        }
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        if (writeSegment == null || (writeSegment.size > HEADER_BYTES
+                && writeSegment.size + data.remaining() > segmentBytes)) {
+            writeSegment = Segment.create(new File(dir, String.format("%s%019d%s", SEGMENT_PREFIX, nextSequence++,
+                    SEGMENT_SUFFIX)));
+            segments.addLast(writeSegment);
+        }
+        while (data.hasRemaining()) {
+            writeSegment.size += writeSegment.channel.write(data, writeSegment.size);
+        }
+    }
+
+    /**
+     * Hand spilled lines to the sink, oldest first, until the byte allowance is used up or the sink stops taking them.
+     *  The line that crosses the allowance is still handed over. The lines are read into memory first, so the
+     *  allowance should be kept to what the sink can take.
+     *
+     * @param maxBytes the max number of bytes to replay
+     * @param sink where to hand the lines
+     * @return the number of bytes replayed
+     */
+    public long replay(long maxBytes, LineSink sink) {
+        if (replayBuffer == null) { replayBuffer = Unpooled.buffer(BUFFER_BYTES); }
+        replayBuffer.clear();
+        int read = (int) read(maxBytes, replayBuffer);
+
+        byte[] lines = replayBuffer.array();
+        int consumed = 0;
+        for (int i = 0; i < read; i++) {
+            if (lines[i] != NEW_LINE && i != read - 1) { continue; }
+            if (!sink.offer(lines, consumed, i + 1 - consumed)) { break; }
+            consumed = i + 1;
+        }
+        consume(consumed);
+        return consumed;
+    }
+
+    /**
+     * Read spilled lines, oldest first, without taking them off the spill. Whole lines are read until the byte
+     *  allowance is used up, the line that crosses it is still read. The lines stay on disk, and are read again by the
+     *  next call, until they are {@link #consume(long) consumed}.
+     *
+     * @param maxBytes the max number of bytes to read
+     * @param out where to write the lines
+     * @return the number of bytes read
+     */
+    public long read(long maxBytes, ByteBuf out) {
+        sync();
+        long read = 0;
+        try {
+            for (Segment segment : segments) {
+                long pos = segment.readPos;
+                while (read < maxBytes && pos < segment.size) {
+                    long available = segment.size - pos;
+                    int length = (int) Math.min(available, readBuffer.length);
+                    ByteBuffer target = ByteBuffer.wrap(readBuffer, 0, length);
+                    while (target.hasRemaining()) { segment.channel.read(target, pos + target.position()); }
+
+                    int whole = 0;
+                    for (int i = 0; i < length && read + whole < maxBytes; i++) {
+                        if (readBuffer[i] == NEW_LINE) { whole = i + 1; }
+                    }
+                    if (whole == 0) {
+                        if (length < available) {
+                            // the line is longer than the read buffer
+                            readBuffer = new byte[readBuffer.length * 2];
+                            continue;
+                        }
+                        // segments only ever end on a whole line, but never get stuck on one that doesn't
+                        whole = length;
+                    }
+                    out.writeBytes(readBuffer, 0, whole);
+                    pos += whole;
+                    read += whole;
+                }
+                if (read >= maxBytes) { break; }
+            }
+        } catch (IOException ex) {
+            logger.error("Failed to replay spilled metrics from " + dir, ex);
+        }
+        return read;
+    }
+
+    /**
+     * Take lines handed out by {@link #read(long, ByteBuf)} off the spill, segments are deleted once all of their lines
+     *  have been consumed.
+     *
+     * @param consumed the number of bytes from the start of the last read to take off
+     */
+    public void consume(long consumed) {
+        bytes -= consumed;
+        replayedBytes += consumed;
+        long remaining = consumed;
+        try {
+            while (remaining > 0 && !segments.isEmpty()) {
+                Segment segment = segments.peekFirst();
+                long taken = Math.min(remaining, segment.size - segment.readPos);
+                segment.readPos += taken;
+                remaining -= taken;
+                if (segment.readPos == segment.size) {
+                    retire(segment);
+                } else {
+                    segment.writeHeader(header);
+                }
+            }
+        } catch (IOException ex) {
+            logger.error("Failed to record the replay position in " + dir, ex);
+        }
+    }
+
+    /**
+     * Delete a fully replayed segment.
+     */
+    private void retire(Segment segment) throws IOException {
+        segments.pollFirst();
+        if (segment == writeSegment) { writeSegment = null; }
+        if (!segment.delete()) { logger.warn("Failed to delete spill segment " + segment.file); }
+    }
+
+    public boolean isEmpty() { return bytes == 0; }
+
+    /**
+     * @return the number of bytes waiting to be replayed
+     */
+    public long getBytes() { return bytes; }
+
+    /**
+     * @return the number of bytes that can be spilled before the spill is full
+     */
+    public long getRemainingBytes() { return Math.max(0, maxBytes - bytes); }
+
+    public long getSpilledBytes() { return spilledBytes; }
+
+    public long getReplayedBytes() { return replayedBytes; }
+
+    /**
+     * @return the number of bytes that couldn't be spilled because it was full or the disk write failed
+     */
+    public long getRejectedBytes() { return rejectedBytes; }
+
+    /**
+     * Write out anything buffered and close the segments, they stay on disk to be restored on the next start.
+     */
+    @Override
+    public void close() {
+        sync();
+        for (Segment segment : segments) {
+            try {
+                segment.channel.close();
+            } catch (IOException ex) {
+                logger.warn("Failed to close spill segment " + segment.file, ex);
+            }
+        }
+        segments.clear();
+        writeSegment = null;
+        if (replayBuffer != null) {
+            replayBuffer.release();
+            replayBuffer = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("spill: %d bytes in %d segments, spilled: %d replayed: %d rejected: %d", bytes,
+                segments.size(), spilledBytes, replayedBytes, rejectedBytes);
+    }
+
+    private static class Segment {
+        private final File file;
+        private final FileChannel channel;
+        private long readPos;
+        private long size;
+        // bytes of a partial line cut off the end when the segment was opened
+        private long trimmed;
+
+        private Segment(File file, FileChannel channel, long readPos, long size) {
+            this.file = file;
+            this.channel = channel;
+            this.readPos = readPos;
+            this.size = size;
+        }
+
+        static Segment create(File file) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(file, channel, HEADER_BYTES, HEADER_BYTES);
+            segment.writeHeader(ByteBuffer.allocate(HEADER_BYTES));
+            return segment;
+        }
+
+        /**
+         * Open a segment left from a previous run, cutting off any partial line a crash mid write left at its end.
+         */
+        static Segment open(File file) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = channel.size();
+            long readPos = HEADER_BYTES;
+            if (size >= HEADER_BYTES) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                while (header.hasRemaining() && channel.read(header, header.position()) >= 0) { }
+                header.flip();
+                readPos = Math.max(HEADER_BYTES, Math.min(size, header.getLong()));
+            }
+
+
+            long end = lineEnd(channel, readPos, size);
+            if (end < size) { channel.truncate(end); }
+            Segment segment = new Segment(file, channel, readPos, end);
+            segment.trimmed = size - end;
+            return segment;
+        }
+
+        /**
+         * @return the position just past the last new line between the read position and the end of the segment
+         */
+        private static long lineEnd(FileChannel channel, long readPos, long size) throws IOException {
+            ByteBuffer tail = ByteBuffer.allocate(4096);
+            long end = size;
+            while (end > readPos) {
+                int length = (int) Math.min(tail.capacity(), end - readPos);
+                tail.clear();
+                tail.limit(length);
+                while (tail.hasRemaining() && channel.read(tail, end - length + tail.position()) >= 0) { }
+                for (int i = length - 1; i >= 0; i--) {
+                    if (tail.get(i) == NEW_LINE) { return end - length + i + 1; }
+                }
+                end -= length;
+            }
+            return readPos;
+        }
+
+        /**
+         * Close and delete the segment.
+         *
+         * @return true if the file was deleted
+         */
+        boolean delete() throws IOException {
+            channel.close();
+            return file.delete();
+        }
+
+        void writeHeader(ByteBuffer header) throws IOException {
+            header.clear();
+            header.putLong(readPos).flip();
+            while (header.hasRemaining()) { channel.write(header, header.position()); }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Keeps the disk work of a {@link SpillQueue} off the event loop. Lines to spill are staged in memory and handed to a
+ *  worker a buffer at a time, replayed lines are read on the worker and offered to the sink back on the event loop, and
+ *  only the lines the sink took are then consumed from the spill. The worker runs the disk work one task at a time in
+ *  the order it was handed over, so lines are read back in the order they were spilled.
+ *
+ * The spilled bytes are counted here as lines are staged, so the room left can be checked without waiting on the disk.
+ *  A disk that falls behind is treated as full once a few MB are waiting to be written.
+ *
+ * Not thread safe, owned by the service and only called from its event loop.
+ */
+public class SpillWorker {
+
+    // staged lines are handed to the worker once there are this many bytes of them
+    private static final int STAGE_BYTES = 64 * 1024;
+    private static final int MAX_WAITING_BYTES = 64 * STAGE_BYTES;
+
+    private final Context context;
+    private final SpillQueue queue;
+    private final long maxBytes;
+    private ByteBuf staged;
+    // bytes handed to the worker and not yet written out
+    private long writing;
+    // unreplayed bytes on disk, on the way there or staged
+    private long bytes;
+    // lines read back that the sink hasn't taken yet, nothing more is read until it has taken them all
+    private ByteBuf replayed;
+    private boolean reading;
+    private boolean closing;
+    private boolean closed;
+
+    private long spilledBytes;
+    private long replayedBytes;
+    private long rejectedBytes;
+    private Logger logger = LoggerFactory.getLogger(SpillWorker.class);
+
+    private SpillWorker(Context context, SpillQueue queue, long maxBytes) {
+        this.context = context;
+        this.queue = queue;
+        this.maxBytes = maxBytes;
+        bytes = queue.getBytes();
+    }
+
+    /**
+     * Open the spill directory on a worker, picking up any segments left from a previous run.
+     *
+     * @param context the context of the event loop that will own the spill
+     * @param dir the directory to hold the segments in
+     * @param maxBytes the max number of unreplayed bytes to hold
+     * @param segmentBytes the size at which a new segment is started
+     * @param handler called on the context with the spill or the reason it couldn't be opened
+     */
+    public static void open(Context context, File dir, long maxBytes, long segmentBytes,
+                            Handler<AsyncResult<SpillWorker>> handler) {
+        context.<SpillQueue>executeBlocking(future -> {
+            try {
+                future.complete(new SpillQueue(dir, maxBytes, segmentBytes));
+            } catch (IOException ex) {
+                future.fail(ex);
+            }
+        }, true, result -> handler.handle(result.succeeded()
+                ? Future.succeededFuture(new SpillWorker(context, result.result(), maxBytes))
+                : Future.failedFuture(result.cause())));
+    }
+
+    /**
+     * @param line the buffer holding the encoded line
+     * @param offset where the line starts
+     * @param length the length of the line
+     * @return true if the line was taken, false if the spill is full
+     */
+    public boolean append(byte[] line, int offset, int length) {
+        if (!reserve(length)) { return false; }
+        staged.writeBytes(line, offset, length);
+        if (staged.readableBytes() >= STAGE_BYTES) { sync(); }
+        return true;
+    }
+
+    /**
+     * @param data the buffer holding the encoded line
+     * @param index where the line starts
+     * @param length the length of the line
+     * @return true if the line was taken, false if the spill is full
+     */
+    public boolean append(ByteBuf data, int index, int length) {
+        if (!reserve(length)) { return false; }
+        staged.writeBytes(data, index, length);
+        if (staged.readableBytes() >= STAGE_BYTES) { sync(); }
+        return true;
+    }
+
+    private boolean reserve(int length) {
+        if (closed || length > getRemainingBytes()) {
+            rejectedBytes += length;
+            return false;
+        }
+        if (staged == null) { staged = Unpooled.buffer(Math.max(STAGE_BYTES, length)); }
+        bytes += length;
+        spilledBytes += length;
+        return true;
+    }
+
+    /**
+     * Hand the staged lines to the worker to write out.
+     */
+    public void sync() {
+        if (staged == null || !staged.isReadable()) { return; }
+        ByteBuf lines = staged;
+        staged = null;
+        int length = lines.readableBytes();
+        writing += length;
+
+        context.<Boolean>executeBlocking(future -> {
+            try {
+                future.complete(queue.append(lines.array(), lines.arrayOffset() + lines.readerIndex(), length)
+                        && queue.sync());
+            } finally {
+                lines.release();
+            }
+        }, true, result -> {
+            writing -= length;
+            if (result.failed() || !result.result()) {
+                // the queue has logged why
+                bytes -= length;
+                spilledBytes -= length;
+                rejectedBytes += length;
+            }
+        });
+    }
+
+    /**
+     * Offer spilled lines to the sink, oldest first. Lines read back earlier that the sink didn't take are offered
+     *  again, otherwise up to the allowance of lines is read on the worker and offered once they have been read. The
+     *  line that crosses the allowance is still read.
+     *
+     * @param maxBytes the max number of bytes to read back
+     * @param sink where to hand the lines, lines it doesn't take are offered again on the next replay
+     */
+    public void replay(long maxBytes, SpillQueue.LineSink sink) {
+        if (replayed != null) {
+            offer(sink);
+            return;
+        }
+        if (reading || closing || bytes == 0 || maxBytes <= 0) { return; }
+
+        // lines still staged are written out first, the worker reads them back in order behind the rest
+        sync();
+        reading = true;
+        context.<ByteBuf>executeBlocking(future -> {
+            ByteBuf lines = Unpooled.buffer((int) Math.min(maxBytes, STAGE_BYTES));
+            queue.read(maxBytes, lines);
+            future.complete(lines);
+        }, true, result -> {
+            reading = false;
+            if (result.failed()) {
+                logger.error("Failed to read spilled metrics", result.cause());
+                return;
+            }
+            ByteBuf lines = result.result();
+            if (closing || !lines.isReadable()) {
+                lines.release();
+                return;
+            }
+            replayed = lines;
+            offer(sink);
+        });
+    }
+
+    private void offer(SpillQueue.LineSink sink) {
+        byte[] lines = replayed.array();
+        int start = replayed.arrayOffset() + replayed.readerIndex();
+        int end = start + replayed.readableBytes();
+        int taken = start;
+        for (int i = start; i < end; i++) {
+            if (lines[i] != '\n' && i != end - 1) { continue; }
+            if (!sink.offer(lines, taken, i + 1 - taken)) { break; }
+            taken = i + 1;
+        }
+
+        int consumed = taken - start;
+        if (consumed > 0) {
+            replayed.skipBytes(consumed);
+            bytes -= consumed;
+            replayedBytes += consumed;
+            context.executeBlocking(future -> {
+                queue.consume(consumed);
+                future.complete();
+            }, true, null);
+        }
+        if (!replayed.isReadable()) {
+            replayed.release();
+            replayed = null;
+        }
+    }
+
+    public boolean isEmpty() { return bytes == 0; }
+
+    /**
+     * @return the number of bytes waiting to be replayed
+     */
+    public long getBytes() { return bytes; }
+
+    /**
+     * @return the number of bytes that can be spilled before the spill is full, or the disk too far behind
+     */
+    public long getRemainingBytes() {
+        long remaining = maxBytes - bytes;
+        if (!closing) {
+            long waiting = writing + (staged == null ? 0 : staged.readableBytes());
+            remaining = Math.min(remaining, MAX_WAITING_BYTES - waiting);
+        }
+        return Math.max(0, remaining);
+    }
+
+    public long getSpilledBytes() { return spilledBytes; }
+
+    public long getReplayedBytes() { return replayedBytes; }
+
+    /**
+     * @return the number of bytes that couldn't be spilled because it was full or the disk write failed
+     */
+    public long getRejectedBytes() { return rejectedBytes; }
+
+    /**
+     * Start closing, replays stop and the lines spilled from here on are taken however far behind the disk is, as at
+     *  shutdown they have nowhere else to go.
+     */
+    public void startClose() {
+        closing = true;
+        if (replayed != null) {
+            // never consumed, they are read again on the next start
+            replayed.release();
+            replayed = null;
+        }
+    }
+
+    /**
+     * Write out everything staged and close the spill, what is on disk is restored on the next start.
+     *
+     * @param handler called on the context once the spill is closed
+     */
+    public void close(Handler<Void> handler) {
+        startClose();
+        sync();
+        closed = true;
+        context.executeBlocking(future -> {
+            queue.close();
+            future.complete();
+        }, true, result -> handler.handle(null));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("spill: %d bytes, %d waiting on the disk, spilled: %d replayed: %d rejected: %d", bytes,
+                writing + (staged == null ? 0 : staged.readableBytes()), spilledBytes, replayedBytes, rejectedBytes);
+    }
+}
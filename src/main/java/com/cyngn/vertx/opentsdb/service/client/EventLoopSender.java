@@ -0,0 +1,249 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service.client;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs a sender on an event loop of its own, so socket I/O for each connection is spread across cores instead of
+ *  competing with ingestion on the service's event loop. The sender is created by a verticle of its own, which Vert.x
+ *  hands an event loop round robin, and every socket it opens stays on that loop. Deployed from a verticle it is
+ *  undeployed along with it, and anything the sender leaves open is cleaned up with the deployment.
+ *
+ * The processor keeps calling in from the service's event loop. Encoded buffers are handed across to the sender's loop
+ *  as they are, in order, and the sender's state is published back after everything it does so the processor can
+ *  check it without a hop. The published budget is what the sender last reported less whatever has been handed across
+ *  and not yet written to it, so it can only err on the low side. Drain notifications and the result of the first
+ *  connection attempt are delivered back on the service's event loop.
+ *
+ * Vert.x undeploys the sender ahead of the verticle that deployed it, so before closing the sender calls the stop
+ *  handler on the service's event loop to give it the chance to hand over its last writes.
+ */
+public class EventLoopSender implements MetricsSender {
+
+    /**
+     * How often the sender's connection state is published when nothing is being written to it.
+     */
+    public static final long STATE_REFRESH_MILLI = 100;
+
+    private final Vertx vertx;
+    private final String id;
+    private final Context owner;
+    // the sender's event loop, set once its verticle has started
+    private volatile Context context;
+    private Logger logger = LoggerFactory.getLogger(EventLoopSender.class);
+
+    // only touched on the sender's event loop
+    private MetricsSender sender;
+    private long timerId = -1;
+    private long lostBytes;
+
+    // written on the sender's event loop, read on the service's
+    private volatile boolean connected;
+    private volatile boolean writeQueueFull;
+    private volatile long budget;
+    private final AtomicLong handedOff = new AtomicLong();
+
+    // only touched on the service's event loop
+    private Handler<Void> drainHandler;
+    private Handler<Void> stopHandler;
+    private String deploymentId;
+    private boolean closed;
+
+    /**
+     * @param vertx the vertx instance, must be called from the context the sender will be driven from
+     * @param id the identity of the host behind the sender, see {@link MetricsSender#getId()}
+     * @param connect creates the sender, it is called on the new event loop and handed the callback for the result of
+     *  the first connection attempt
+     * @param onInitialized called on the calling context with the result of the first connection attempt
+     */
+    public EventLoopSender(Vertx vertx, String id, Function<Consumer<Boolean>, MetricsSender> connect,
+                           Consumer<Boolean> onInitialized) {
+        this.vertx = vertx;
+        this.id = id;
+        owner = vertx.getOrCreateContext();
+
+        vertx.deployVerticle(new SenderVerticle(connect, onInitialized), result -> {
+            if (result.failed()) {
+                logger.error(String.format("Failed to deploy the sender for host: %s, ex: ", id), result.cause());
+                onInitialized.accept(false);
+                return;
+            }
+            deploymentId = result.result();
+            if (closed) { vertx.undeploy(deploymentId); }
+        });
+    }
+
+    /**
+     * Creates the sender on the verticle's event loop and closes it once the verticle is undeployed.
+     */
+    private class SenderVerticle extends AbstractVerticle {
+
+        private final Function<Consumer<Boolean>, MetricsSender> connect;
+        private final Consumer<Boolean> onInitialized;
+
+        SenderVerticle(Function<Consumer<Boolean>, MetricsSender> connect, Consumer<Boolean> onInitialized) {
+            this.connect = connect;
+            this.onInitialized = onInitialized;
+        }
+
+        @Override
+        public void start() {
+            Context loop = context;
+            EventLoopSender.this.context = loop;
+            // the result is reported from a fresh task, the sender may report before it has been handed back to us
+            sender = connect.apply(success -> loop.runOnContext(aVoid -> {
+                publish();
+                owner.runOnContext(x -> onInitialized.accept(success));
+            }));
+            sender.drainHandler(aVoid -> {
+                publish();
+                owner.runOnContext(x -> { if (drainHandler != null) { drainHandler.handle(null); } });
+            });
+            timerId = vertx.setPeriodic(STATE_REFRESH_MILLI, timer -> publish());
+        }
+
+        @Override
+        public void stop(Future<Void> stopFuture) {
+            Context loop = context;
+            // whatever the stop handler writes is queued on this loop ahead of the close
+            owner.runOnContext(v -> {
+                closed = true;
+                if (stopHandler != null) { stopHandler.handle(null); }
+                loop.runOnContext(x -> {
+                    if (timerId != -1) {
+                        vertx.cancelTimer(timerId);
+                        timerId = -1;
+                    }
+                    sender.close();
+                    publish();
+                    stopFuture.complete();
+                });
+            });
+        }
+    }
+
+    private void publish() {
+        connected = sender.isConnected();
+        writeQueueFull = sender.isWriteQueueFull();
+        budget = sender.getWriteBudget();
+    }
+
+    @Override
+    public boolean write(Buffer data) {
+        if (!connected) { return false; }
+        Context context = this.context;
+        int length = data.length();
+        handedOff.addAndGet(length);
+        context.runOnContext(v -> {
+            if (!sender.write(data)) { lostBytes += length; }
+            publish();
+            handedOff.addAndGet(-length);
+        });
+        return true;
+    }
+
+    @Override
+    public boolean write(ByteBuf data) {
+        if (!connected) {
+            data.release();
+            return false;
+        }
+        int length = data.readableBytes();
+        Context context = this.context;
+        handedOff.addAndGet(length);
+        // the sender releases the buffer whether or not its write succeeds
+        context.runOnContext(v -> {
+            if (!sender.write(data)) { lostBytes += length; }
+            publish();
+            handedOff.addAndGet(-length);
+        });
+        return true;
+    }
+
+    @Override
+    public void flush() {
+        Context context = this.context;
+        if (context == null) { return; }
+        context.runOnContext(v -> {
+            sender.flush();
+            publish();
+        });
+    }
+
+    @Override
+    public boolean isConnected() { return connected; }
+
+    @Override
+    public boolean isWriteQueueFull() { return writeQueueFull || getWriteBudget() == 0; }
+
+    @Override
+    public long getWriteBudget() {
+        if (!connected) { return 0; }
+        long current = budget;
+        // an unlimited sender stays unlimited
+        if (current == Long.MAX_VALUE) { return current; }
+        return Math.max(0, current - handedOff.get());
+    }
+
+    @Override
+    public void drainHandler(Handler<Void> handler) { drainHandler = handler; }
+
+    /**
+     * @param handler called on the calling context once the sender is being undeployed, before it is closed, anything
+     *  written from the handler still goes out
+     */
+    public void stopHandler(Handler<Void> handler) { stopHandler = handler; }
+
+    /**
+     * Closes the sender after everything already handed to it has been written, by undeploying its verticle.
+     */
+    @Override
+    public void close() {
+        if (closed) { return; }
+        closed = true;
+        // still deploying, it is undeployed as soon as it is up
+        if (deploymentId != null) { vertx.undeploy(deploymentId); }
+    }
+
+    @Override
+    public void dumpStats() {
+        Context context = this.context;
+        if (context == null) { return; }
+        context.runOnContext(v -> {
+            sender.dumpStats();
+            if (lostBytes > 0) {
+                logger.warn(String.format("host: %s lost %d bytes the sender rejected after they were handed to it",
+                        id, lostBytes));
+                lostBytes = 0;
+            }
+        });
+    }
+
+    @Override
+    public String getId() { return id; }
+}
@@ -14,6 +14,9 @@
  */
 package com.cyngn.vertx.opentsdb.service.client;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Handler;
 import io.vertx.core.buffer.Buffer;
 
 /**
@@ -23,7 +26,52 @@ import io.vertx.core.buffer.Buffer;
  */
 public interface MetricsSender {
     boolean write(Buffer data);
+
+    /**
+     * Write an outbound buffer, the sender takes ownership of the buffer and must release it once it is done with it
+     *  whether or not the write succeeds. Senders that can hand the buffer straight to the socket should, the default
+     *  copies it into a Buffer and releases it.
+     *
+     * @param data the data to write
+     * @return true if the data was accepted for write
+     */
+    default boolean write(ByteBuf data) {
+        try {
+            return write(Buffer.buffer(Unpooled.copiedBuffer(data)));
+        } finally {
+            data.release();
+        }
+    }
+
+    /**
+     * Push out everything written since the last flush, called once at the end of every flush so a sender can gather
+     *  all its writes into one.
+     */
+    default void flush() {}
+
     boolean isConnected();
+
+    /**
+     * @return true if the sender can't take any more data right now
+     */
+    default boolean isWriteQueueFull() { return false; }
+
+    /**
+     * @return how many more bytes the sender will take before it is over its in flight budget, callers should stop
+     *  handing it data once this runs out and wait on the {@link #drainHandler(Handler)}
+     */
+    default long getWriteBudget() { return Long.MAX_VALUE; }
+
+    /**
+     * @param handler called when a sender that had used up its budget has room again
+     */
+    default void drainHandler(Handler<Void> handler) {}
+
     void close();
     void dumpStats();
+
+    /**
+     * @return a stable identity for the host behind this sender, used to place it on the consistent hash ring
+     */
+    default String getId() { return toString(); }
 }
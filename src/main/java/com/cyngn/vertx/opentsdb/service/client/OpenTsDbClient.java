@@ -16,6 +16,10 @@ package com.cyngn.vertx.opentsdb.service.client;
 
 import com.cyngn.vertx.opentsdb.client.EventBusMessage;
 import com.cyngn.vertx.opentsdb.service.OpenTsDbService;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.EventBus;
@@ -37,11 +41,14 @@ import java.util.function.Consumer;
  */
 public class OpenTsDbClient implements MetricsSender, Closeable {
 
+    public static final int DEFAULT_MAX_INFLIGHT_BYTES = 64 * 1500;
+
     private final String host;
     private final int port;
     private final Vertx vertx;
     private final NetClient netClient;
     private final EventBus bus;
+    private final int maxInflightBytes;
     private Logger logger = LoggerFactory.getLogger(OpenTsDbClient.class);
 
     private NetSocket connection;
@@ -51,11 +58,28 @@ public class OpenTsDbClient implements MetricsSender, Closeable {
     private long maxReconnectTime = 64000;
 
     private boolean connected;
+    // set once the client is closed for good, it stops reconnecting
+    private boolean closed;
     private int consecutiveDisconnects;
     private long bytesWrittenForPeriod;
     private int errorsReceived;
+    private boolean needsFlush;
+    // the buffers handed over since the last flush, written to the socket in one go
+    private CompositeByteBuf pending;
+    private Handler<Void> drainHandler;
 
     public OpenTsDbClient(String host, int port, Vertx vertx, Consumer<Boolean> onInitialized) {
+        this(host, port, vertx, DEFAULT_MAX_INFLIGHT_BYTES, onInitialized);
+    }
+
+    /**
+     * @param host the TSD host
+     * @param port the TSD port
+     * @param vertx the vertx instance
+     * @param maxInflightBytes the max number of bytes to have queued on the socket and not yet written out
+     * @param onInitialized called with the result of the first connection attempt
+     */
+    public OpenTsDbClient(String host, int port, Vertx vertx, int maxInflightBytes, Consumer<Boolean> onInitialized) {
         NetClientOptions options = new NetClientOptions()
                 .setTcpKeepAlive(true);
         netClient = vertx.createNetClient(options);
@@ -68,12 +92,13 @@ public class OpenTsDbClient implements MetricsSender, Closeable {
 
         this.host = host;
         this.port = port;
+        this.maxInflightBytes = maxInflightBytes;
 
         netClient.connect(port, host, connectResult -> {
-            onInitialized.accept(connectResult.succeeded());
             if (connectResult.succeeded()) {
                 onConnect(connectResult.result());
             } // if we don't succeed initially we'll fail startup of the reporter
+            onInitialized.accept(connectResult.succeeded());
         });
     }
 
@@ -82,12 +107,17 @@ public class OpenTsDbClient implements MetricsSender, Closeable {
         connection.handler(this::onDataReceived);
         connection.endHandler(this::onReadStreamClosed);
         connection.exceptionHandler(this::onException);
+        connection.drainHandler(this::onDrain);
+    }
+
+    private void onDrain(Void aVoid) {
+        if (drainHandler != null) { drainHandler.handle(null); }
     }
 
     private void onException(Throwable throwable) {
         logger.error(String.format("Got exception on socket %s, ex: ", connection.remoteAddress()), throwable);
-        close();
-        processReconnect();
+        closeConnection();
+        if (!closed) { processReconnect(); }
     }
 
     private long processReconnect() {
@@ -103,14 +133,22 @@ public class OpenTsDbClient implements MetricsSender, Closeable {
         logger.info(String.format("Connected to host: %s port: %d", host, port));
         this.connection = connection;
         lastTimeout = initialBackOffMilli;
+        releasePending();
+        needsFlush = false;
+        // the socket reports a full write queue once the budget is used up and calls the drain handler once it
+        //  has written out half of it
+        connection.setWriteQueueMaxSize(maxInflightBytes);
         initializeHandlers();
         connected = true;
     }
 
     private void reconnect() {
+        if (closed) { return; }
         logger.info(String.format("Reconnecting to host: %s port: %d", host, port));
         netClient.connect(port, host, connectResult -> {
-            if (connectResult.succeeded()) {
+            if (closed) {
+                if (connectResult.succeeded()) { connectResult.result().close(); }
+            } else if (connectResult.succeeded()) {
                 onConnect(connectResult.result());
             } else {
                 long reconnectIn = processReconnect();
@@ -121,8 +159,10 @@ public class OpenTsDbClient implements MetricsSender, Closeable {
     }
 
     private void onReadStreamClosed(Void aVoid) {
+        // we closed it ourselves
+        if (closed) { return; }
         logger.warn("Read streamed closed");
-        close();
+        closeConnection();
         processReconnect();
     }
 
@@ -155,12 +195,84 @@ public class OpenTsDbClient implements MetricsSender, Closeable {
         return true;
     }
 
+    /**
+     * Holds on to the buffer until the next {@link #flush()}, everything written since the last flush goes to the
+     *  socket in a single write without being copied here.
+     */
+    @Override
+    public boolean write(ByteBuf metricData) {
+        int length = metricData.readableBytes();
+        if (!connected) {
+            logger.error(String.format("Discarding %d bytes no connection", length));
+            metricData.release();
+            return false;
+        } else if(connection.writeQueueFull()) {
+            logger.error(String.format("Discarding %d bytes write buffer full", length));
+            metricData.release();
+            return false;
+        }
+        if(logger.isDebugEnabled()) { logger.debug(metricData.toString(StandardCharsets.UTF_8)); }
+
+        // the socket copies heap buffers as it takes the write so they can be released straight after, a direct
+        //  buffer would be written from in place after that
+        if (metricData.isDirect()) {
+            ByteBuf heap = Unpooled.copiedBuffer(metricData);
+            metricData.release();
+            metricData = heap;
+        }
+        if (pending == null) { pending = Unpooled.compositeBuffer(Integer.MAX_VALUE); }
+        pending.addComponent(metricData);
+        pending.writerIndex(pending.writerIndex() + length);
+        needsFlush = true;
+        bytesWrittenForPeriod += length;
+        return true;
+    }
+
+    @Override
+    public void flush() {
+        CompositeByteBuf toWrite = pending;
+        // cleared first, the socket can call the drain handler from inside the write
+        pending = null;
+        if (needsFlush && connected) { connection.write(Buffer.buffer(toWrite)); }
+        needsFlush = false;
+        // the write is made on the socket's own event loop, by the time it returns the socket has its own copy
+        if (toWrite != null) { toWrite.release(); }
+    }
+
+    private void releasePending() {
+        if (pending != null) {
+            pending.release();
+            pending = null;
+        }
+    }
+
     private void onClose(Void aVoid) {
         logger.info(String.format("Closing socket: %s", connection.remoteAddress()));
         connected = false;
         consecutiveDisconnects++;
     }
 
+    @Override
+    public String getId() { return host + ":" + port; }
+
+    @Override
+    public boolean isWriteQueueFull() { return connection != null && connection.writeQueueFull(); }
+
+    /**
+     * The socket only says whether its write queue is over the limit, so the budget is the limit less the lines waiting
+     *  for the next flush until the socket reports it is full.
+     */
+    @Override
+    public long getWriteBudget() {
+        if (!connected || connection.writeQueueFull()) { return 0; }
+        return Math.max(0, maxInflightBytes - getPendingBytes());
+    }
+
+    private int getPendingBytes() { return pending == null ? 0 : pending.readableBytes(); }
+
+    @Override
+    public void drainHandler(Handler<Void> handler) { drainHandler = handler; }
+
     public boolean isConnected() {
         return connected;
     }
@@ -173,11 +285,21 @@ public class OpenTsDbClient implements MetricsSender, Closeable {
         int tmpErrorsReceived = errorsReceived;
         errorsReceived = 0;
 
-        logger.info(String.format("host: %s port: %d disconnects: %d bytesWritten: %d, errorsReceived: %d", host, port,
-                tmpDisconnects, tmpBytes, tmpErrorsReceived));
+        logger.info(String.format("host: %s port: %d disconnects: %d bytesWritten: %d, errorsReceived: %d, " +
+                "pendingBytes: %d", host, port, tmpDisconnects, tmpBytes, tmpErrorsReceived, getPendingBytes()));
     }
 
+    /**
+     * Close the client for good, it won't reconnect.
+     */
     public void close() {
+        closed = true;
+        releasePending();
+        closeConnection();
+        netClient.close();
+    }
+
+    private void closeConnection() {
         if(isConnected()) {
             connection.close();
         }
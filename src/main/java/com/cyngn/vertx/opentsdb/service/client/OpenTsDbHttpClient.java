@@ -0,0 +1,524 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service.client;
+
+import com.cyngn.vertx.opentsdb.client.EventBusMessage;
+import com.cyngn.vertx.opentsdb.service.OpenTsDbService;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Client that writes to OpenTsDb's HTTP API rather than the telnet style interface. The 'put', 'rollup' and
+ *  'histogram' lines written in a flush are turned into one gzipped JSON array per endpoint and POSTed to
+ *  '/api/put?summary&details', '/api/rollup?summary&details' or '/api/histogram?summary&details' over a pool of keep
+ *  alive connections, so a flush goes out as one large request
+ *  instead of being capped at the MTU. TSD's reply says how many points were stored and why any weren't, the counts
+ *  are logged with the other stats and rejected points are reported on the error address like the telnet client
+ *  does.
+ *
+ * Points in a request that fails outright, a connection error or anything but a 2xx or 400 status, are lost. A
+ *  connection error or a 5xx status also takes the host out of rotation until a probe of '/api/version' gets an
+ *  answer.
+ */
+public class OpenTsDbHttpClient implements MetricsSender, Closeable {
+
+    public static final int DEFAULT_MAX_POOL_SIZE = 4;
+    public static final int DEFAULT_REQUEST_TIMEOUT = 30000;
+    static final String PUT_URI = "/api/put?summary&details";
+    static final String ROLLUP_URI = "/api/rollup?summary&details";
+    static final String HISTOGRAM_URI = "/api/histogram?summary&details";
+    static final String VERSION_URI = "/api/version";
+    private static final int LOGGED_ERRORS_PER_REQUEST = 5;
+    private static final byte NEW_LINE = '\n';
+    private static final byte SPACE = ' ';
+    private static final byte[] METRIC = "{\"metric\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TIMESTAMP = "\",\"timestamp\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VALUE = ",\"value\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TAGS = ",\"tags\":{".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TAG_SEPARATOR = {'"', ':', '"'};
+    private static final byte[] INTERVAL = ",\"interval\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AGGREGATOR = "\",\"aggregator\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ID = ",\"id\":".getBytes(StandardCharsets.US_ASCII);
+
+    private final String host;
+    private final int port;
+    private final Vertx vertx;
+    private final HttpClient client;
+    private final EventBus bus;
+    private final int maxInflightBytes;
+    private Logger logger = LoggerFactory.getLogger(OpenTsDbHttpClient.class);
+
+    // the JSON objects of the points written since the last flush, without the enclosing array
+    private final Batch puts = new Batch(PUT_URI);
+    private final Batch rollups = new Batch(ROLLUP_URI);
+    private final Batch histograms = new Batch(HISTOGRAM_URI);
+
+    private long initialBackOffMilli = 1000;
+    private long lastTimeout = initialBackOffMilli;
+    private long maxReconnectTime = 64000;
+
+    private boolean connected;
+    // set once the client is closed for good, it stops probing
+    private boolean closed;
+    // line bytes written and not yet answered by TSD, counting those still waiting on a flush
+    private long inflightBytes;
+    private Handler<Void> drainHandler;
+
+    private long bytesWrittenForPeriod;
+    private long requestsForPeriod;
+    private long failedRequestsForPeriod;
+    private long pointsStoredForPeriod;
+    private long pointsFailedForPeriod;
+    private long unsupportedLines;
+
+    /**
+     * @param host the TSD host
+     * @param port the TSD port
+     * @param vertx the vertx instance
+     * @param maxInflightBytes the max number of line bytes to have written and not yet answered
+     * @param maxPoolSize the max number of connections to keep open to the host
+     * @param onInitialized called with whether the host answered a first probe
+     */
+    public OpenTsDbHttpClient(String host, int port, Vertx vertx, int maxInflightBytes, int maxPoolSize,
+                              Consumer<Boolean> onInitialized) {
+        client = vertx.createHttpClient(new HttpClientOptions().setKeepAlive(true).setTcpKeepAlive(true)
+                .setMaxPoolSize(maxPoolSize));
+        bus = vertx.eventBus();
+        this.vertx = vertx;
+        this.host = host;
+        this.port = port;
+        this.maxInflightBytes = maxInflightBytes;
+
+        probe(success -> {
+            if (success) { logger.info(String.format("Connected to host: %s port: %d over http", host, port)); }
+            // if we don't succeed initially we'll fail startup of the reporter
+            onInitialized.accept(success);
+        });
+    }
+
+    /**
+     * Any answer at all from the version endpoint means the host is up.
+     */
+    private void probe(Consumer<Boolean> onResult) {
+        HttpClientRequest request = client.get(port, host, VERSION_URI, response -> {
+            response.bodyHandler(body -> {});
+            connected = true;
+            lastTimeout = initialBackOffMilli;
+            onResult.accept(true);
+        });
+        request.setTimeout(DEFAULT_REQUEST_TIMEOUT).exceptionHandler(ex -> onResult.accept(false)).end();
+    }
+
+    private void processReconnect() {
+        if (closed) { return; }
+        long reconnectIn = lastTimeout < maxReconnectTime ? lastTimeout * 2 : maxReconnectTime;
+        lastTimeout = reconnectIn;
+
+        vertx.setTimer(reconnectIn, timer -> {
+            if (closed) { return; }
+            logger.info(String.format("Probing host: %s port: %d", host, port));
+            probe(success -> { if (!success) { processReconnect(); } });
+        });
+    }
+
+    @Override
+    public boolean write(Buffer metricData) {
+        if (!connected) {
+            logger.error(String.format("Discarding %d bytes no connection", metricData.length()));
+            return false;
+        }
+        append(metricData.getByteBuf());
+        return true;
+    }
+
+    @Override
+    public boolean write(ByteBuf metricData) {
+        try {
+            if (!connected) {
+                logger.error(String.format("Discarding %d bytes no connection", metricData.readableBytes()));
+                return false;
+            }
+            append(metricData);
+            return true;
+        } finally {
+            metricData.release();
+        }
+    }
+
+    private void append(ByteBuf data) {
+        if (logger.isDebugEnabled()) { logger.debug(data.toString(StandardCharsets.UTF_8)); }
+
+        int end = data.writerIndex();
+        int start = data.readerIndex();
+        while (start < end) {
+            int lineEnd = data.indexOf(start, end, NEW_LINE);
+            if (lineEnd < 0) { lineEnd = end; }
+            if (!appendJson(data, start, lineEnd)) { unsupportedLines++; }
+            start = lineEnd + 1;
+        }
+    }
+
+    /**
+     * Turn a 'put', 'rollup' or 'histogram' line into its JSON object on the matching batch.
+     *
+     * @return false if the line isn't one that can be sent over http
+     */
+    boolean appendJson(ByteBuf line, int start, int end) {
+        int commandEnd = line.indexOf(start, end, SPACE);
+        if (commandEnd < 0) { return false; }
+
+        Batch batch;
+        int specEnd = commandEnd;
+        if (commandEnd - start == 3 && line.getByte(start) == 'p') {
+            batch = puts;
+        } else if (commandEnd - start == 6 && line.getByte(start) == 'r') {
+            batch = rollups;
+            specEnd = line.indexOf(commandEnd + 1, end, SPACE);
+            if (specEnd < 0) { return false; }
+        } else if (commandEnd - start == 9 && line.getByte(start) == 'h') {
+            batch = histograms;
+        } else {
+            return false;
+        }
+
+        int metricEnd = line.indexOf(specEnd + 1, end, SPACE);
+        int timestampEnd = metricEnd < 0 ? -1 : line.indexOf(metricEnd + 1, end, SPACE);
+        // a histogram has the codec id ahead of its value
+        int idEnd = batch != histograms || timestampEnd < 0 ? timestampEnd : line.indexOf(timestampEnd + 1, end, SPACE);
+        int valueEnd = idEnd < 0 ? -1 : line.indexOf(idEnd + 1, end, SPACE);
+        if (valueEnd < 0) { return false; }
+
+        ByteBuf out = batch.open();
+        out.writeBytes(METRIC);
+        writeEscaped(line, specEnd + 1, metricEnd, out);
+        out.writeBytes(TIMESTAMP);
+        out.writeBytes(line, metricEnd + 1, timestampEnd - metricEnd - 1);
+        out.writeBytes(VALUE);
+        if (batch == histograms) {
+            // base64, which can look like a number
+            out.writeByte('"');
+            out.writeBytes(line, idEnd + 1, valueEnd - idEnd - 1);
+            out.writeByte('"');
+            out.writeBytes(ID);
+            out.writeBytes(line, timestampEnd + 1, idEnd - timestampEnd - 1);
+        } else {
+            writeValue(line, timestampEnd + 1, valueEnd, out);
+        }
+        out.writeBytes(TAGS);
+        writeTags(line, valueEnd + 1, end, out);
+        out.writeByte('}');
+
+        if (batch == rollups) {
+            // '1m-sum'
+            int dash = line.indexOf(commandEnd + 1, specEnd, (byte) '-');
+            if (dash < 0) { dash = specEnd; }
+            out.writeBytes(INTERVAL);
+            writeEscaped(line, commandEnd + 1, dash, out);
+            out.writeBytes(AGGREGATOR);
+            writeEscaped(line, Math.min(dash + 1, specEnd), specEnd, out);
+            out.writeByte('"');
+        }
+        out.writeByte('}');
+        batch.points++;
+        // the budget is kept in line bytes, the same as the caller counts what it hands us
+        batch.lineBytes += end - start + 1;
+        inflightBytes += end - start + 1;
+        return true;
+    }
+
+    private static void writeTags(ByteBuf line, int start, int end, ByteBuf out) {
+        boolean first = true;
+        while (start < end) {
+            int tagEnd = line.indexOf(start, end, SPACE);
+            if (tagEnd < 0) { tagEnd = end; }
+            int equals = line.indexOf(start, tagEnd, (byte) '=');
+            if (equals > start) {
+                if (!first) { out.writeByte(','); }
+                out.writeByte('"');
+                writeEscaped(line, start, equals, out);
+                out.writeBytes(TAG_SEPARATOR);
+                writeEscaped(line, equals + 1, tagEnd, out);
+                out.writeByte('"');
+                first = false;
+            }
+            start = tagEnd + 1;
+        }
+    }
+
+    /**
+     * Numbers go in as JSON numbers, anything else as a string for TSD to make sense of.
+     */
+    private static void writeValue(ByteBuf line, int start, int end, ByteBuf out) {
+        if (isJsonNumber(line, start, end)) {
+            out.writeBytes(line, start, end - start);
+        } else {
+            out.writeByte('"');
+            writeEscaped(line, start, end, out);
+            out.writeByte('"');
+        }
+    }
+
+    /**
+     * @return true if the bytes are a number by JSON's grammar, ie no leading '+' or zeros and digits on both sides of
+     *  a '.'
+     */
+    private static boolean isJsonNumber(ByteBuf line, int start, int end) {
+        int i = start;
+        if (i < end && line.getByte(i) == '-') { i++; }
+        // int
+        if (i < end && line.getByte(i) == '0') {
+            i++;
+        } else {
+            int digits = skipDigits(line, i, end);
+            if (digits == i) { return false; }
+            i = digits;
+        }
+        // frac
+        if (i < end && line.getByte(i) == '.') {
+            int digits = skipDigits(line, i + 1, end);
+            if (digits == i + 1) { return false; }
+            i = digits;
+        }
+        // exp
+        if (i < end && (line.getByte(i) == 'e' || line.getByte(i) == 'E')) {
+            i++;
+            if (i < end && (line.getByte(i) == '+' || line.getByte(i) == '-')) { i++; }
+            int digits = skipDigits(line, i, end);
+            if (digits == i) { return false; }
+            i = digits;
+        }
+        return i == end;
+    }
+
+    private static int skipDigits(ByteBuf line, int start, int end) {
+        while (start < end && line.getByte(start) >= '0' && line.getByte(start) <= '9') { start++; }
+        return start;
+    }
+
+    private static void writeEscaped(ByteBuf line, int start, int end, ByteBuf out) {
+        for (int i = start; i < end; i++) {
+            byte b = line.getByte(i);
+            if (b == '"' || b == '\\') {
+                out.writeByte('\\');
+                out.writeByte(b);
+            } else if (b >= 0 && b < 0x20) {
+                out.writeBytes(String.format("\\u%04x", b).getBytes(StandardCharsets.US_ASCII));
+            } else {
+                out.writeByte(b);
+            }
+        }
+    }
+
+    /**
+     * POST everything written since the last flush, one request per endpoint.
+     */
+    @Override
+    public void flush() {
+        if (puts.points > 0) { post(puts); }
+        if (rollups.points > 0) { post(rollups); }
+        if (histograms.points > 0) { post(histograms); }
+    }
+
+    private void post(Batch batch) {
+        int points = batch.points;
+        long lineBytes = batch.lineBytes;
+        Buffer body = batch.compress();
+
+        HttpClientRequest request = client.post(port, host, batch.uri,
+                response -> onResponse(response, points, lineBytes));
+        request.setTimeout(DEFAULT_REQUEST_TIMEOUT)
+                .putHeader("Content-Type", "application/json")
+                .putHeader("Content-Encoding", "gzip")
+                .exceptionHandler(ex -> onRequestFailed(ex, points, lineBytes));
+        request.end(body);
+        requestsForPeriod++;
+        bytesWrittenForPeriod += body.length();
+    }
+
+    private void onResponse(HttpClientResponse response, int points, long lineBytes) {
+        response.bodyHandler(body -> {
+            int status = response.statusCode();
+            if (status / 100 == 2 || status == 400) {
+                recordSummary(body, points, status);
+            } else {
+                failedRequestsForPeriod++;
+                pointsFailedForPeriod += points;
+                logger.error(String.format("Host: %s port: %d failed a write of %d points with status %d: %s", host,
+                        port, points, status, body.toString()));
+                bus.send(OpenTsDbService.ERROR_MESSAGE_ADDRESS, new JsonObject()
+                        .put("error", EventBusMessage.WRITE_FAILURE).put("message", "http status " + status));
+            }
+            complete(lineBytes);
+            // the host is answering but can't store anything, leave it be until it answers a probe
+            if (status / 100 == 5) { takeOutOfRotation(); }
+        });
+    }
+
+    /**
+     * Count the stored and failed points from TSD's summary, reporting why any failed.
+     */
+    private void recordSummary(Buffer body, int points, int status) {
+        JsonObject summary = null;
+        if (body.length() > 0) {
+            try {
+                summary = new JsonObject(body.toString());
+            } catch (DecodeException ex) {
+                logger.warn(String.format("Could not parse the reply from host: %s port: %d: %s", host, port, body));
+            }
+        }
+        if (summary == null) {
+            // without a summary all we know is the status
+            if (status == 400) { pointsFailedForPeriod += points; } else { pointsStoredForPeriod += points; }
+            return;
+        }
+
+        pointsStoredForPeriod += summary.getLong("success", 0L);
+        long failed = summary.getLong("failed", 0L);
+        pointsFailedForPeriod += failed;
+        if (failed == 0) { return; }
+
+        JsonArray errors = summary.getJsonArray("errors", new JsonArray());
+        for (int i = 0; i < errors.size() && i < LOGGED_ERRORS_PER_REQUEST; i++) {
+            logger.error("Point rejected by agent: " + errors.getValue(i));
+        }
+        // let the user know if they failed to write because the data is invalid
+        String firstError = errors.size() > 0 && errors.getValue(0) instanceof JsonObject
+                ? errors.getJsonObject(0).getString("error", "") : "";
+        bus.send(OpenTsDbService.ERROR_MESSAGE_ADDRESS, new JsonObject().put("error", EventBusMessage.INVALID_DATA)
+                .put("message", String.format("%d of %d points rejected: %s", failed, points, firstError)));
+    }
+
+    private void onRequestFailed(Throwable ex, int points, long lineBytes) {
+        logger.error(String.format("Failed to write %d points to host: %s port: %d, ex: ", points, host, port), ex);
+        failedRequestsForPeriod++;
+        pointsFailedForPeriod += points;
+        complete(lineBytes);
+        takeOutOfRotation();
+    }
+
+    private void takeOutOfRotation() {
+        if (connected) {
+            connected = false;
+            processReconnect();
+        }
+    }
+
+    private void complete(long lineBytes) {
+        boolean wasFull = getWriteBudget() == 0;
+        inflightBytes -= lineBytes;
+        if (wasFull && getWriteBudget() > 0 && drainHandler != null) { drainHandler.handle(null); }
+    }
+
+    @Override
+    public String getId() { return host + ":" + port; }
+
+    @Override
+    public boolean isWriteQueueFull() { return inflightBytes >= maxInflightBytes; }
+
+    @Override
+    public long getWriteBudget() {
+        if (!connected) { return 0; }
+        return Math.max(0, maxInflightBytes - inflightBytes);
+    }
+
+    @Override
+    public void drainHandler(Handler<Void> handler) { drainHandler = handler; }
+
+    @Override
+    public boolean isConnected() { return connected; }
+
+    @Override
+    public void dumpStats() {
+        logger.info(String.format("host: %s port: %d (http) requests: %d failedRequests: %d bytesWritten: %d, " +
+                "pointsStored: %d, pointsFailed: %d, unsupportedLines: %d, inflightBytes: %d", host, port,
+                requestsForPeriod, failedRequestsForPeriod, bytesWrittenForPeriod, pointsStoredForPeriod,
+                pointsFailedForPeriod, unsupportedLines, inflightBytes));
+        requestsForPeriod = 0;
+        failedRequestsForPeriod = 0;
+        bytesWrittenForPeriod = 0;
+        pointsStoredForPeriod = 0;
+        pointsFailedForPeriod = 0;
+    }
+
+    /**
+     * Close the client for good, it won't probe the host again.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        connected = false;
+        client.close();
+    }
+
+    /**
+     * The JSON objects bound for one endpoint, gathered on a heap buffer that is reused from flush to flush.
+     */
+    private static final class Batch {
+        private final String uri;
+        private final ByteBuf json = Unpooled.buffer(4096);
+        private int points;
+        private long lineBytes;
+
+        Batch(String uri) { this.uri = uri; }
+
+        /**
+         * @return the buffer to write the next object to, separated from the last
+         */
+        ByteBuf open() {
+            if (points > 0) { json.writeByte(','); }
+            return json;
+        }
+
+        /**
+         * @return the gzipped JSON array of the objects gathered, the batch is emptied
+         */
+        Buffer compress() {
+            ByteBuf compressed = Unpooled.buffer(json.readableBytes() / 4 + 64);
+            try (GZIPOutputStream out = new GZIPOutputStream(new ByteBufOutputStream(compressed))) {
+                out.write('[');
+                json.readBytes(out, json.readableBytes());
+                out.write(']');
+            } catch (IOException ex) {
+                // only writes to memory
+                throw new UncheckedIOException(ex);
+            }
+            json.clear();
+            points = 0;
+            lineBytes = 0;
+            return Buffer.buffer(compressed);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb.service.client;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Spreads the writes for one host across several connections to it, so a single slow ack window or a single TSD
+ *  worker thread doesn't cap what we can send. Each write goes to the least loaded live connection, the one with the
+ *  fewest bytes queued on it and not yet written out.
+ *
+ * Only the first 'active' connections that are up take writes, the rest are opened up front and kept as standbys. When
+ *  an active connection drops the next connected standby takes its place straight away without paying for a connect,
+ *  and once the dropped connection is back it becomes a standby itself.
+ *
+ * To the processor the pool is a single sender for the host, it keeps the host's identity on the hash ring.
+ */
+public class SenderPool implements MetricsSender {
+
+    public static final int DEFAULT_CONNECTIONS = 1;
+
+    private final List<MetricsSender> connections;
+    private final int active;
+    private Handler<Void> drainHandler;
+    // where to start looking for the least loaded connection, moves on every write so ties are spread around
+    private int next;
+
+    /**
+     * @param connections the connections to the host, standbys after the active ones
+     * @param active the number of connected connections to spread writes across
+     */
+    public SenderPool(List<MetricsSender> connections, int active) {
+        if (connections.isEmpty()) { throw new IllegalArgumentException("A pool needs at least one connection"); }
+        if (active < 1) { throw new IllegalArgumentException("A pool needs at least one active connection"); }
+        // reordered as connections drop
+        this.connections = new ArrayList<>(connections);
+        this.active = active;
+        for (MetricsSender connection : connections) {
+            connection.drainHandler(aVoid -> { if (drainHandler != null) { drainHandler.handle(null); } });
+        }
+    }
+
+    /**
+     * Open all the connections to a host.
+     *
+     * @param active the number of connections to spread writes across
+     * @param standby the number of extra connections to hold open for failover
+     * @param connect opens a single connection, it is handed the callback for the result of the connection attempt
+     * @param onInitialized called with true once every connection is up, or with false on the first one that fails
+     * @return the pool
+     */
+    public static SenderPool open(int active, int standby, Function<Consumer<Boolean>, MetricsSender> connect,
+                                  Consumer<Boolean> onInitialized) {
+        int total = active + standby;
+        int[] results = new int[2];
+        Consumer<Boolean> onConnected = success -> {
+            // only report the first failure, the service is shutting down at that point
+            if (results[1] > 0) { return; }
+            if (!success) {
+                results[1]++;
+                onInitialized.accept(false);
+            } else if (++results[0] == total) {
+                onInitialized.accept(true);
+            }
+        };
+
+        List<MetricsSender> connections = new ArrayList<>(total);
+        for (int i = 0; i < total; i++) { connections.add(connect.apply(onConnected)); }
+        return new SenderPool(connections, active);
+    }
+
+    @Override
+    public boolean write(Buffer data) {
+        MetricsSender connection = leastLoaded();
+        return connection != null && connection.write(data);
+    }
+
+    @Override
+    public boolean write(ByteBuf data) {
+        MetricsSender connection = leastLoaded();
+        if (connection == null) {
+            data.release();
+            return false;
+        }
+        return connection.write(data);
+    }
+
+    /**
+     * @return the connection with the most room among the first active connections that are up, null if none are up
+     */
+    private MetricsSender leastLoaded() {
+        retireDropped();
+        int size = connections.size();
+        int best = -1;
+        long bestBudget = -1;
+        int bestDistance = size;
+        int live = 0;
+        for (int i = 0; i < size && live < active; i++) {
+            MetricsSender connection = connections.get(i);
+            if (!connection.isConnected()) { continue; }
+            live++;
+            long budget = connection.getWriteBudget();
+            // ties go to the first connection at or after where the last write left off
+            int distance = (i - next + size) % size;
+            if (budget > bestBudget || (budget == bestBudget && distance < bestDistance)) {
+                best = i;
+                bestBudget = budget;
+                bestDistance = distance;
+            }
+        }
+        if (best < 0) { return null; }
+        next = (best + 1) % size;
+        return connections.get(best);
+    }
+
+    /**
+     * Move active connections that have dropped behind the standbys, so once back they wait as standbys rather than
+     *  taking the writes back from the standby that replaced them.
+     */
+    private void retireDropped() {
+        int live = 0;
+        for (int i = 0, checked = 0; checked < connections.size() && live < active; checked++) {
+            MetricsSender connection = connections.get(i);
+            if (connection.isConnected()) {
+                live++;
+                i++;
+            } else {
+                connections.remove(i);
+                connections.add(connection);
+            }
+        }
+    }
+
+    @Override
+    public void flush() { connections.forEach(MetricsSender::flush); }
+
+    @Override
+    public boolean isConnected() {
+        for (MetricsSender connection : connections) { if (connection.isConnected()) { return true; } }
+        return false;
+    }
+
+    @Override
+    public boolean isWriteQueueFull() {
+        retireDropped();
+        int live = 0;
+        for (int i = 0; i < connections.size() && live < active; i++) {
+            MetricsSender connection = connections.get(i);
+            if (!connection.isConnected()) { continue; }
+            live++;
+            if (!connection.isWriteQueueFull()) { return false; }
+        }
+        return true;
+    }
+
+    @Override
+    public long getWriteBudget() {
+        retireDropped();
+        long budget = 0;
+        int live = 0;
+        for (int i = 0; i < connections.size() && live < active; i++) {
+            MetricsSender connection = connections.get(i);
+            if (!connection.isConnected()) { continue; }
+            live++;
+            budget += connection.getWriteBudget();
+            if (budget < 0) { return Long.MAX_VALUE; }
+        }
+        return budget;
+    }
+
+    @Override
+    public void drainHandler(Handler<Void> handler) { drainHandler = handler; }
+
+    @Override
+    public void close() { connections.forEach(MetricsSender::close); }
+
+    @Override
+    public void dumpStats() { connections.forEach(MetricsSender::dumpStats); }
+
+    @Override
+    public String getId() { return connections.get(0).getId(); }
+
+    /**
+     * @return the number of connections in the pool, standbys included
+     */
+    public int size() { return connections.size(); }
+}
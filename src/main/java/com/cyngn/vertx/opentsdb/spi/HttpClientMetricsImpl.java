@@ -60,7 +60,7 @@ public class HttpClientMetricsImpl extends HttpMetricsImpl implements HttpClient
 
     @Override
     public void responseEnd(HttpMetric requestMetric, HttpClientResponse response) {
-        requestMetric.queueMetrics(requests, response.statusCode());
+        requestMetric.queueMetrics(requests, this, response.statusCode());
     }
 
     @Override
@@ -73,10 +73,17 @@ public class HttpMetric {
         return (baseMetric + httpMethod).toLowerCase();
     }
 
-    public void queueMetrics(Queue<JsonObject> queue, int httpStatus) {
+    /**
+     * Record the latency of the request and queue the bytes read and written.
+     *
+     * @param queue where to queue the byte count metrics
+     * @param metrics the metrics that hold the latency histograms
+     * @param httpStatus the status of the response
+     */
+    public void queueMetrics(Queue<JsonObject> queue, HttpMetricsImpl metrics, int httpStatus) {
         long end = System.currentTimeMillis();
 
-        queue.add(Util.createRawMetric(metricName + DELIMITER + httpStatus, (end - start) + ""));
+        metrics.latency(metricName + DELIMITER + httpStatus).record(end - start);
         Util.addMetricIfNonZero(queue, bytesReadMetric, socketMetric.bytesRead);
         Util.addMetricIfNonZero(queue, bytesWrittenMetric, socketMetric.bytesWritten);
     }
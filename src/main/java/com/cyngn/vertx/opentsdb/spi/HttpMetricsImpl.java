@@ -15,20 +15,30 @@
 package com.cyngn.vertx.opentsdb.spi;
 
 import com.cyngn.vertx.opentsdb.OpenTsDbOptions;
+import com.cyngn.vertx.opentsdb.Util;
+import com.cyngn.vertx.opentsdb.service.Histogram;
 import io.vertx.core.Vertx;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.net.SocketAddress;
 import io.vertx.core.spi.metrics.TCPMetrics;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Generic parent class for tracking HttpMetrics.
+ * Generic parent class for tracking HttpMetrics. Request latencies are recorded into a histogram per metric and
+ *  reported as percentiles once per publish interval rather than as a point per request.
  *
  * @author truelove@cyngn.com (Jeremy Truelove) 10/8/15
  */
 public class HttpMetricsImpl extends TcpMetricsImpl implements TCPMetrics<SocketMetric> {
 
+    private final Map<String, Histogram> latencies = new ConcurrentHashMap<>();
+    // only touched by the collecting timer
+    private final Histogram snapshot = new Histogram();
+
     public HttpMetricsImpl(OpenTsDbOptions options, Vertx vertx, boolean isServer) {
         super(options, vertx, isServer);
     }
@@ -36,6 +46,43 @@ public class HttpMetricsImpl extends TcpMetricsImpl implements TCPMetrics<Socket
     @Override
     protected void collectMetrics(List<JsonObject> metrics) {
         super.collectMetrics(metrics);
+
+        Iterator<Map.Entry<String, Histogram>> iterator = latencies.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Histogram> entry = iterator.next();
+            String name = entry.getKey();
+            Histogram histogram = entry.getValue();
+            histogram.drainTo(snapshot);
+            if (snapshot.getCount() == 0) {
+                // idle for a whole interval, anything recorded while it was being dropped goes to its replacement
+                if (latencies.remove(name, histogram)) {
+                    histogram.drainTo(snapshot);
+                    if (snapshot.getCount() != 0) {
+                        latency(name).add(snapshot);
+                        snapshot.reset();
+                    }
+                }
+                continue;
+            }
+
+            snapshot.forEachStat((stat, value) ->
+                    metrics.add(Util.createRawMetric(name + Histogram.STAT_SUFFIXES[stat], Long.toString(value))));
+            snapshot.reset();
+        }
+    }
+
+    /**
+     * @param name the metric name
+     * @return the latency histogram for the metric, created the first time it's asked for
+     */
+    Histogram latency(String name) {
+        Histogram histogram = latencies.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            Histogram existing = latencies.putIfAbsent(name, histogram);
+            if (existing != null) { histogram = existing; }
+        }
+        return histogram;
     }
 
     @Override
@@ -60,7 +60,7 @@ public class HttpServerMetricsImpl extends HttpMetricsImpl implements HttpServer
 
     @Override
     public void responseEnd(HttpMetric requestMetric, HttpServerResponse response) {
-        requestMetric.queueMetrics(requests, response.getStatusCode());
+        requestMetric.queueMetrics(requests, this, response.getStatusCode());
     }
 
     @Override
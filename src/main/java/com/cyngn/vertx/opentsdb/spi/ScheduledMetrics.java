@@ -16,6 +16,7 @@ package com.cyngn.vertx.opentsdb.spi;
 
 import com.cyngn.vertx.opentsdb.client.MetricPublisher;
 import com.cyngn.vertx.opentsdb.OpenTsDbOptions;
+import com.cyngn.vertx.opentsdb.service.MetricsParser;
 import io.vertx.core.Vertx;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.json.JsonObject;
@@ -68,6 +69,9 @@ public abstract class ScheduledMetrics implements Metrics {
                     List<JsonObject> metrics = new ArrayList<>();
                     collectMetrics(metrics);
                     if (metrics.size() > 0) {
+                        // a whole collection shares one timestamp so aligned timestamps aren't skewed by bus delays
+                        long collectedAt = System.currentTimeMillis();
+                        metrics.forEach(metric -> metric.put(MetricsParser.TIMESTAMP_FIELD, collectedAt));
                         publisher.sendMetricBatch(metrics);
                     }
                 } catch (Exception ex) {
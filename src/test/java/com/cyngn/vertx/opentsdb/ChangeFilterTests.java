@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.ChangeFilter;
+import com.cyngn.vertx.opentsdb.service.PutEncoder;
+import com.cyngn.vertx.opentsdb.service.SeriesKey;
+import com.cyngn.vertx.opentsdb.service.SeriesKeyCache;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeFilterTests {
+
+    private final SeriesKeyCache keys = new SeriesKeyCache(1000, new PutEncoder(null), "");
+
+    private SeriesKey key(String name) {
+        return keys.get(name, new JsonObject().put("host", "a"));
+    }
+
+    @Test
+    public void testSuppressesUnchangedValues() {
+        ChangeFilter filter = new ChangeFilter(64, 1000, Collections.emptyList());
+        SeriesKey key = key("gauge");
+
+        assertTrue(filter.shouldSend(key, "1", 0, true));
+        assertFalse(filter.shouldSend(key, "1", 10, true));
+        assertTrue(filter.shouldSend(key, "2", 20, true));
+        assertFalse(filter.shouldSend(key, "2", 30, true));
+        assertTrue(filter.shouldSend(key, "1", 40, true));
+        assertEquals(2, filter.getSuppressed());
+    }
+
+    @Test
+    public void testHeartbeat() {
+        ChangeFilter filter = new ChangeFilter(64, 1000, Collections.emptyList());
+        SeriesKey key = key("gauge");
+
+        assertTrue(filter.shouldSend(key, "1", 0, true));
+        assertFalse(filter.shouldSend(key, "1", 999, true));
+        assertTrue(filter.shouldSend(key, "1", 1000, true));
+        // the heartbeat restarts from the last send
+        assertFalse(filter.shouldSend(key, "1", 1999, true));
+    }
+
+    @Test
+    public void testSelection() {
+        ChangeFilter filter = new ChangeFilter(64, 1000, Arrays.asList("queue\\..*", "pool"));
+
+        // no patterns match and nothing was asked for
+        assertTrue(filter.shouldSend(key("requests"), "1", 0, null));
+        assertTrue(filter.shouldSend(key("requests"), "1", 1, null));
+
+        assertTrue(filter.shouldSend(key("queue.depth"), "1", 0, null));
+        assertFalse(filter.shouldSend(key("queue.depth"), "1", 1, null));
+        assertTrue(filter.shouldSend(key("pool"), "1", 0, null));
+        assertFalse(filter.shouldSend(key("pool"), "1", 1, null));
+        // patterns must match the whole name
+        assertTrue(filter.shouldSend(key("pool.size"), "1", 0, null));
+        assertTrue(filter.shouldSend(key("pool.size"), "1", 1, null));
+
+        // the metric's own choice wins over the patterns
+        assertTrue(filter.shouldSend(key("queue.depth"), "1", 2, false));
+        assertTrue(filter.shouldSend(key("requests"), "1", 3, true));
+        assertFalse(filter.shouldSend(key("requests"), "1", 4, true));
+    }
+
+    @Test
+    public void testEviction() {
+        // a single set of 4 ways
+        ChangeFilter filter = new ChangeFilter(4, 1000, Collections.emptyList());
+        for (int i = 0; i < 4; i++) { assertTrue(filter.shouldSend(key("gauge" + i), "1", i, true)); }
+        for (int i = 0; i < 4; i++) { assertFalse(filter.shouldSend(key("gauge" + i), "1", 10, true)); }
+        assertEquals(0, filter.getEvictions());
+
+        // the series sent longest ago makes room
+        assertTrue(filter.shouldSend(key("gauge4"), "1", 20, true));
+        assertEquals(1, filter.getEvictions());
+        assertTrue(filter.shouldSend(key("gauge0"), "1", 30, true));
+        assertFalse(filter.shouldSend(key("gauge4"), "1", 40, true));
+    }
+
+    @Test
+    public void testForget() {
+        ChangeFilter filter = new ChangeFilter(64, 1000, Collections.emptyList());
+        SeriesKey key = key("gauge");
+
+        filter.forget(key);
+        assertTrue(filter.shouldSend(key, "1", 0, true));
+        filter.forget(key);
+        assertTrue(filter.shouldSend(key, "1", 10, true));
+        assertFalse(filter.shouldSend(key, "1", 20, true));
+    }
+
+    @Test
+    public void testForgetLeavesOthersInSet() {
+        // a single set of 4 ways
+        ChangeFilter filter = new ChangeFilter(4, 1000, Collections.emptyList());
+        for (int i = 0; i < 3; i++) { assertTrue(filter.shouldSend(key("gauge" + i), "1", i, true)); }
+
+        // the series held after the freed slot are still found
+        filter.forget(key("gauge0"));
+        assertFalse(filter.shouldSend(key("gauge1"), "1", 10, true));
+        assertFalse(filter.shouldSend(key("gauge2"), "1", 10, true));
+
+        // and the freed slot is used before anything is evicted
+        assertTrue(filter.shouldSend(key("gauge3"), "1", 20, true));
+        assertTrue(filter.shouldSend(key("gauge4"), "1", 20, true));
+        assertEquals(0, filter.getEvictions());
+        assertFalse(filter.shouldSend(key("gauge1"), "1", 30, true));
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.client.EventLoopSender;
+import com.cyngn.vertx.opentsdb.service.client.MetricsSender;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+@RunWith(VertxUnitRunner.class)
+public class EventLoopSenderTests {
+
+    private Vertx vertx;
+
+    @Before
+    public void before() {
+        vertx = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(4));
+    }
+
+    @After
+    public void after(TestContext context) {
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    private static class Connection implements MetricsSender {
+        private final List<String> written = new CopyOnWriteArrayList<>();
+        private final List<Thread> threads = new CopyOnWriteArrayList<>();
+        private volatile Context context;
+        private volatile long budget = 100;
+        private volatile int flushes;
+        private volatile boolean closed;
+        private Handler<Void> drainHandler;
+
+        @Override
+        public boolean write(Buffer data) {
+            threads.add(Thread.currentThread());
+            context = Vertx.currentContext();
+            written.add(data.toString());
+            budget -= data.length();
+            return true;
+        }
+        @Override
+        public void flush() { flushes++; }
+        @Override
+        public long getWriteBudget() { return budget; }
+        @Override
+        public void drainHandler(Handler<Void> handler) { drainHandler = handler; }
+        @Override
+        public boolean isConnected() { return !closed; }
+        @Override
+        public void close() { closed = true; }
+        @Override
+        public void dumpStats() {  }
+    }
+
+    private static ByteBuf line(String line) { return Unpooled.copiedBuffer(line, StandardCharsets.UTF_8); }
+
+    @Test
+    public void testWritesOnOwnEventLoop(TestContext context) {
+        Async async = context.async();
+        Connection connection = new Connection();
+
+        vertx.runOnContext(v -> {
+            Thread serviceThread = Thread.currentThread();
+            EventLoopSender[] sender = new EventLoopSender[1];
+            sender[0] = new EventLoopSender(vertx, "a:4242", onConnected -> {
+                onConnected.accept(true);
+                return connection;
+            }, success -> {
+                context.assertTrue(success);
+                context.assertEquals(serviceThread, Thread.currentThread());
+                context.assertTrue(sender[0].isConnected());
+                context.assertEquals("a:4242", sender[0].getId());
+                context.assertEquals(100L, sender[0].getWriteBudget());
+
+                context.assertTrue(sender[0].write(line("put a 1 1 foo=bar\n")));
+                context.assertTrue(sender[0].write(Buffer.buffer("put b 1 1 foo=bar\n")));
+                // counted against the budget as soon as it is handed across
+                context.assertTrue(sender[0].getWriteBudget() <= 64);
+                sender[0].flush();
+                sender[0].close();
+
+                vertx.setPeriodic(10, id -> {
+                    if (!connection.closed) { return; }
+                    vertx.cancelTimer(id);
+                    context.assertEquals(2, connection.written.size());
+                    context.assertEquals("put a 1 1 foo=bar\n", connection.written.get(0));
+                    context.assertEquals(1, connection.flushes);
+                    connection.threads.forEach(thread -> context.assertNotEquals(serviceThread, thread));
+                    context.assertEquals(64L, connection.budget);
+                    context.assertFalse(sender[0].isConnected());
+                    async.complete();
+                });
+            });
+        });
+    }
+
+    @Test
+    public void testDrainComesBack(TestContext context) {
+        Async async = context.async();
+        Connection connection = new Connection();
+        connection.budget = 10;
+
+        vertx.runOnContext(v -> {
+            Thread serviceThread = Thread.currentThread();
+            EventLoopSender[] sender = new EventLoopSender[1];
+            sender[0] = new EventLoopSender(vertx, "a:4242", onConnected -> {
+                onConnected.accept(true);
+                return connection;
+            }, success -> {
+                context.assertTrue(sender[0].write(line("put a 1 1 foo=bar\n")));
+                context.assertTrue(sender[0].isWriteQueueFull());
+            });
+            sender[0].drainHandler(aVoid -> {
+                context.assertEquals(serviceThread, Thread.currentThread());
+                context.assertEquals(100L, sender[0].getWriteBudget());
+                context.assertFalse(sender[0].isWriteQueueFull());
+                async.complete();
+            });
+        });
+
+        // once the connection has taken the write it drains on its own loop, as if the socket had written it out
+        vertx.setPeriodic(10, id -> {
+            if (connection.written.isEmpty()) { return; }
+            vertx.cancelTimer(id);
+            connection.context.runOnContext(aVoid -> {
+                connection.budget = 100;
+                connection.drainHandler.handle(null);
+            });
+        });
+    }
+
+    @Test
+    public void testUndeployedWithOwner(TestContext context) {
+        Async async = context.async();
+        Connection connection = new Connection();
+
+        vertx.deployVerticle(new AbstractVerticle() {
+            @Override
+            public void start(Future<Void> startFuture) {
+                EventLoopSender sender = new EventLoopSender(vertx, "a:4242", onConnected -> {
+                    onConnected.accept(true);
+                    return connection;
+                }, success -> startFuture.complete());
+                // the owner is stopped after the sender, the handler is its chance to write what it still has
+                sender.stopHandler(aVoid -> sender.write(line("put last 1 1 foo=bar\n")));
+            }
+        }, context.asyncAssertSuccess(id -> {
+            context.assertEquals(2, vertx.deploymentIDs().size());
+            vertx.undeploy(id, context.asyncAssertSuccess(aVoid -> {
+                context.assertTrue(connection.closed);
+                context.assertEquals("put last 1 1 foo=bar\n", connection.written.get(0));
+                context.assertTrue(vertx.deploymentIDs().isEmpty());
+                async.complete();
+            }));
+        }));
+    }
+
+    @Test
+    public void testFailedConnect(TestContext context) {
+        Async async = context.async();
+
+        vertx.runOnContext(v -> {
+            Connection connection = new Connection();
+            connection.closed = true;
+            EventLoopSender[] sender = new EventLoopSender[1];
+            sender[0] = new EventLoopSender(vertx, "a:4242", onConnected -> {
+                onConnected.accept(false);
+                return connection;
+            }, success -> {
+                context.assertFalse(success);
+                context.assertFalse(sender[0].isConnected());
+                context.assertEquals(0L, sender[0].getWriteBudget());
+
+                ByteBuf data = line("put a 1 1 foo=bar\n");
+                context.assertFalse(sender[0].write(data));
+                context.assertEquals(0, data.refCnt());
+                context.assertTrue(connection.written.isEmpty());
+                async.complete();
+            });
+        });
+    }
+}
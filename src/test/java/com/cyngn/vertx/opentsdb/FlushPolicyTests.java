@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.FlushPolicy;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlushPolicyTests {
+
+    @Test
+    public void testThreshold() {
+        FlushPolicy policy = new FlushPolicy(1000, 100, 5000, 15000, 1500, false);
+        assertFalse(policy.isOverThreshold(14999));
+        assertTrue(policy.isOverThreshold(15000));
+
+        FlushPolicy timerOnly = new FlushPolicy(1000, 100, 5000, 0, 1500, false);
+        assertFalse(timerOnly.isOverThreshold(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testFixedInterval() {
+        FlushPolicy policy = new FlushPolicy(1000, 100, 5000, 15000, 1500, false);
+        policy.adapt(0, 0);
+        policy.adapt(100000, 5);
+        assertEquals(1000, policy.getInterval());
+    }
+
+    @Test
+    public void testShrinksUnderLoad() {
+        FlushPolicy policy = new FlushPolicy(1000, 100, 5000, 15000, 1500, true);
+        policy.adapt(10000, 0);
+        assertEquals(500, policy.getInterval());
+        policy.adapt(0, 1);
+        assertEquals(250, policy.getInterval());
+        policy.adapt(10000, 0);
+        policy.adapt(10000, 0);
+        assertEquals(100, policy.getInterval());
+    }
+
+    @Test
+    public void testGrowsWhenIdle() {
+        FlushPolicy policy = new FlushPolicy(1000, 100, 5000, 15000, 1500, true);
+        policy.adapt(100, 0);
+        assertEquals(1500, policy.getInterval());
+        for (int i = 0; i < 10; i++) { policy.adapt(0, 0); }
+        assertEquals(5000, policy.getInterval());
+
+        // a moderate load holds the interval steady
+        policy.adapt(5000, 0);
+        assertEquals(5000, policy.getInterval());
+    }
+
+    @Test
+    public void testCounts() {
+        FlushPolicy policy = new FlushPolicy(1000, 100, 5000, 15000, 1500, false);
+        policy.record(FlushPolicy.Trigger.TIMER);
+        policy.record(FlushPolicy.Trigger.TIMER);
+        policy.record(FlushPolicy.Trigger.SIZE);
+
+        assertEquals(2, policy.getCount(FlushPolicy.Trigger.TIMER));
+        assertEquals(1, policy.getCount(FlushPolicy.Trigger.SIZE));
+        assertEquals(0, policy.getCount(FlushPolicy.Trigger.SHUTDOWN));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadBounds() {
+        new FlushPolicy(1000, 2000, 5000, 15000, 1500, true);
+    }
+}
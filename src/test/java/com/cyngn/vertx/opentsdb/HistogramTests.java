@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.Histogram;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTests {
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) { histogram.record(i); }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertWithin(500, histogram.getValueAtPercentile(50));
+        assertWithin(900, histogram.getValueAtPercentile(90));
+        assertWithin(990, histogram.getValueAtPercentile(99));
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 64; i++) { histogram.record(i); }
+        assertEquals(31, histogram.getValueAtPercentile(50));
+        assertEquals(63, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testOutOfRange() {
+        Histogram histogram = new Histogram(1000, 5);
+        histogram.record(-5);
+        histogram.record(5000);
+
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        // the max stays exact even past the highest trackable value
+        assertEquals(5000, histogram.getMax());
+    }
+
+    @Test
+    public void testStats() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 10000; i++) { histogram.record(i); }
+
+        long[] stats = new long[Histogram.STAT_SUFFIXES.length];
+        histogram.forEachStat((stat, value) -> stats[stat] = value);
+        assertWithin(5000, stats[0]);
+        assertWithin(9000, stats[1]);
+        assertWithin(9900, stats[2]);
+        assertWithin(9990, stats[3]);
+        assertEquals(10000, stats[4]);
+        assertEquals(10000, stats[5]);
+
+        List<Long> empty = new ArrayList<>();
+        new Histogram().forEachStat((stat, value) -> empty.add(value));
+        assertEquals(Histogram.STAT_SUFFIXES.length, empty.size());
+        empty.forEach(value -> assertEquals(0L, (long) value));
+    }
+
+    @Test
+    public void testMergeAndDrain() {
+        Histogram first = new Histogram();
+        Histogram second = new Histogram();
+        for (int i = 0; i < 100; i++) { first.record(10); }
+        for (int i = 0; i < 100; i++) { second.record(1000); }
+
+        first.add(second);
+        assertEquals(200, first.getCount());
+        assertEquals(1000, first.getMax());
+        assertEquals(100, second.getCount());
+
+        Histogram target = new Histogram();
+        first.drainTo(target);
+        assertEquals(0, first.getCount());
+        assertEquals(0, first.getMax());
+        assertEquals(200, target.getCount());
+        assertEquals(10, target.getValueAtPercentile(50));
+        assertWithin(1000, target.getValueAtPercentile(99));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMismatchedLayout() {
+        new Histogram().add(new Histogram(1000, 5));
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        Histogram histogram = new Histogram();
+        Histogram drained = new Histogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 100000; i++) { histogram.record(i % 2000); }
+            }));
+        }
+        threads.forEach(Thread::start);
+        // drain while the recorders are running, nothing should be lost or counted twice
+        for (int i = 0; i < 10; i++) { histogram.drainTo(drained); }
+        for (Thread thread : threads) { thread.join(); }
+        histogram.drainTo(drained);
+
+        assertEquals(400000, drained.getCount());
+        assertEquals(1999, drained.getMax());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                Math.abs(expected - actual) <= expected / 32 + 1);
+    }
+}
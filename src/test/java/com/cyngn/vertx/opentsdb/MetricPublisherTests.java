@@ -133,5 +133,32 @@ public class MetricPublisherTests {
         mPublisher.sendMetricBatch(metrics);
     }
 
+    @Test
+    public void testPublishWithTimestamp() {
+        ArgumentCaptor<JsonObject> metricObj = ArgumentCaptor.forClass(JsonObject.class);
+
+        mPublisher.send("test.foo", "34.5", new JsonObject().put("host", "fake.host.com"), 1446415200L);
+
+        verify(bus).send(any(String.class), metricObj.capture(), any(Handler.class));
 
+        assertEquals(1446415200L, (long) metricObj.getValue().getLong(MetricsParser.TIMESTAMP_FIELD));
+        assertEquals(OpenTsDbService.ADD_COMMAND, metricObj.getValue().getString(OpenTsDbService.ACTION_FIELD));
+    }
+
+    @Test
+    public void testTsPublishWithTimestamp() {
+        ArgumentCaptor<JsonObject> metricObj = ArgumentCaptor.forClass(JsonObject.class);
+
+        mPublisher.send(new TsMetric("foo", "12.5", null, 1446415200000L));
+
+        verify(bus).send(any(String.class), metricObj.capture(), any(Handler.class));
+
+        assertEquals(1446415200000L, (long) metricObj.getValue().getLong(MetricsParser.TIMESTAMP_FIELD));
+        assertEquals(OpenTsDbService.ADD_COMMAND, metricObj.getValue().getString(OpenTsDbService.ACTION_FIELD));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTsMetricBadTimestamp() {
+        new TsMetric("foo", "12.5", null, -5L);
+    }
 }
@@ -14,6 +14,8 @@
  */
 package com.cyngn.vertx.opentsdb;
 
+import com.cyngn.vertx.opentsdb.service.CachedClock;
+import com.cyngn.vertx.opentsdb.service.MetricsClock;
 import com.cyngn.vertx.opentsdb.service.MetricsParser;
 import com.cyngn.vertx.opentsdb.service.OpenTsDbService;
 import io.vertx.core.AsyncResult;
@@ -190,4 +192,150 @@ public class MetricsParserTests  {
         assertTrue(Pattern.compile("put test.service.test.value \\d* 17 foo=bar tag1=val1 tag2=val2\\n").matcher(result).matches());
         assertTrue(count == 0);
     }
+
+    @Test
+    public void parseTestClock() {
+        JsonObject metric = new JsonObject();
+        metric.put("action", OpenTsDbService.ADD_COMMAND);
+        metric.put("name", "test.value");
+        metric.put("value", "17");
+        metric.put("tags", new JsonObject().put("tag1", "val1"));
+
+        Message<JsonObject> msg = getTestMessage(metric);
+
+        MetricsClock clock = () -> 1446415200000L;
+        MetricsParser parser = new MetricsParser(new OpenTsDbOptions(), errorHandler, clock);
+        String result = parser.createMetricString(msg, msg.body());
+
+        assertEquals("put test.value 1446415200000 17 tag1=val1\n", result);
+        assertTrue(count == 0);
+    }
+
+    @Test
+    public void testHistogram() {
+        JsonObject metric = new JsonObject().put("name", "latency")
+                .put("histogram", new JsonObject().put("id", 1).put("value", new byte[] {1, 2, 3}))
+                .put("tags", new JsonObject().put("foo", "bar"));
+
+        MetricsParser parser = new MetricsParser(null, "", errorHandler);
+        String result = parser.createMetricString(getTestMessage(metric), metric);
+        assertTrue(Pattern.compile("histogram latency \\d* 1 AQID foo=bar\\n").matcher(result).matches());
+        assertTrue(MetricsParser.isHistogram(metric));
+        assertTrue(count == 0);
+
+        // a codec id and a base64 value are both needed, and it can't be aggregated
+        metric.put("histogram", new JsonObject().put("value", "AQID"));
+        assertEquals(null, parser.createMetricString(getTestMessage(metric), metric));
+        metric.put("histogram", new JsonObject().put("id", 1).put("value", "not base64!"));
+        assertEquals(null, parser.createMetricString(getTestMessage(metric), metric));
+        metric.put("histogram", new JsonObject().put("id", 1).put("value", "AQID")).put("type", "counter");
+        assertEquals(null, parser.createMetricString(getTestMessage(metric), metric));
+        assertTrue(count == 3);
+    }
+
+    @Test
+    public void testBatchClock() throws Exception {
+        CachedClock clock = CachedClock.perBatch();
+        long first = clock.now();
+
+        Thread.sleep(5);
+        assertEquals(first, clock.now());
+
+        clock.startBatch();
+        assertTrue(clock.now() > first);
+    }
+
+    @Test
+    public void parseTestSuppliedTimestamp() {
+        long now = System.currentTimeMillis();
+        JsonObject metric = new JsonObject();
+        metric.put("action", OpenTsDbService.ADD_COMMAND);
+        metric.put("name", "test.value");
+        metric.put("value", "17");
+        metric.put("tags", new JsonObject().put("tag1", "val1"));
+        metric.put("timestamp", now - 30000);
+
+        Message<JsonObject> msg = getTestMessage(metric);
+
+        MetricsParser parser = new MetricsParser(new OpenTsDbOptions(), errorHandler, () -> now);
+        assertEquals("put test.value " + (now - 30000) + " 17 tag1=val1\n", parser.createMetricString(msg, msg.body()));
+
+        // seconds get converted to milliseconds
+        metric.put("timestamp", now / 1000);
+        assertEquals("put test.value " + (now / 1000 * 1000) + " 17 tag1=val1\n",
+                parser.createMetricString(msg, msg.body()));
+        assertTrue(count == 0);
+    }
+
+    @Test
+    public void parseTestInvalidTimestamp() {
+        long now = System.currentTimeMillis();
+        JsonObject metric = new JsonObject();
+        metric.put("action", OpenTsDbService.ADD_COMMAND);
+        metric.put("name", "test.value");
+        metric.put("value", "17");
+        metric.put("tags", new JsonObject().put("tag1", "val1"));
+
+        Message<JsonObject> msg = getTestMessage(metric);
+        MetricsParser parser = new MetricsParser(new OpenTsDbOptions(new JsonObject().put("max_timestamp_skew_milli",
+                60000)), errorHandler, () -> now);
+
+        metric.put("timestamp", "yesterday");
+        assertEquals(null, parser.createMetricString(msg, msg.body()));
+
+        metric.put("timestamp", 12.5);
+        assertEquals(null, parser.createMetricString(msg, msg.body()));
+
+        metric.put("timestamp", -1);
+        assertEquals(null, parser.createMetricString(msg, msg.body()));
+
+        // too far in the past and the future
+        metric.put("timestamp", now - 60001);
+        assertEquals(null, parser.createMetricString(msg, msg.body()));
+
+        metric.put("timestamp", now + 60001);
+        assertEquals(null, parser.createMetricString(msg, msg.body()));
+
+        assertTrue(count == 5);
+    }
+
+    @Test
+    public void parseTestSecondPrecision() {
+        JsonObject metric = new JsonObject();
+        metric.put("action", OpenTsDbService.ADD_COMMAND);
+        metric.put("name", "test.value");
+        metric.put("value", "17");
+        metric.put("tags", new JsonObject().put("tag1", "val1"));
+
+        Message<JsonObject> msg = getTestMessage(metric);
+        MetricsParser parser = new MetricsParser(new OpenTsDbOptions(new JsonObject().put("timestamp_precision",
+                "seconds")), errorHandler, () -> 1446415200999L);
+
+        assertEquals("put test.value 1446415200 17 tag1=val1\n", parser.createMetricString(msg, msg.body()));
+        assertTrue(count == 0);
+    }
+
+    @Test
+    public void parseTestAlignment() {
+        JsonObject metric = new JsonObject();
+        metric.put("action", OpenTsDbService.ADD_COMMAND);
+        metric.put("name", "test.value");
+        metric.put("value", "17");
+        metric.put("tags", new JsonObject().put("tag1", "val1"));
+
+        Message<JsonObject> msg = getTestMessage(metric);
+        JsonObject config = new JsonObject().put("align_timestamps", true).put("flush_interval_milli", 10000);
+        MetricsParser parser = new MetricsParser(new OpenTsDbOptions(config), errorHandler, () -> 1446415209999L);
+        assertEquals("put test.value 1446415200000 17 tag1=val1\n", parser.createMetricString(msg, msg.body()));
+
+        config.put("timestamp_precision", "s");
+        parser = new MetricsParser(new OpenTsDbOptions(config), errorHandler, () -> 1446415209999L);
+        assertEquals("put test.value 1446415200 17 tag1=val1\n", parser.createMetricString(msg, msg.body()));
+        assertTrue(count == 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadPrecision() {
+        new OpenTsDbOptions(new JsonObject().put("timestamp_precision", "minutes"));
+    }
 }
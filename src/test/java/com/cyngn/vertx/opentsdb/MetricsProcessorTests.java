@@ -14,17 +14,35 @@
  */
 package com.cyngn.vertx.opentsdb;
 
+import com.cyngn.vertx.opentsdb.service.MetricsClock;
 import com.cyngn.vertx.opentsdb.service.MetricsProcessor;
+import com.cyngn.vertx.opentsdb.service.MetricsRing;
+import com.cyngn.vertx.opentsdb.service.OpenTsDbService;
+import com.cyngn.vertx.opentsdb.service.RetryQueue;
 import com.cyngn.vertx.opentsdb.service.client.MetricsSender;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.json.JsonObject;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 /**
  * @author truelove@cyngn.com (Jeremy Truelove) 11/10/14
@@ -80,12 +98,12 @@ public class MetricsProcessorTests {
 
     @Test
     public void testProcessing() {
-        LinkedBlockingQueue<String> data = new LinkedBlockingQueue<>();
-        String testStr = "aFake metric string";
+        MetricsRing data = new MetricsRing(10);
+        String testStr = "aFake metric string\n";
 
         // add more data into queue
-        data.add(testStr);
-        data.add(testStr);
+        data.offer(testStr.getBytes(), testStr.length());
+        data.offer(testStr.getBytes(), testStr.length());
 
         processor = new MetricsProcessor(Arrays.asList(sender), testStr.getBytes().length * 3, null);
 
@@ -97,11 +115,11 @@ public class MetricsProcessorTests {
 
     @Test
     public void testMaxBuffer() {
-        LinkedBlockingQueue<String> data = new LinkedBlockingQueue<>();
-        String testStr = "aFake metric string";
+        MetricsRing data = new MetricsRing(10);
+        String testStr = "aFake metric string\n";
 
-        data.add(testStr);
-        data.add(testStr);
+        data.offer(testStr.getBytes(), testStr.length());
+        data.offer(testStr.getBytes(), testStr.length());
 
         processor = new MetricsProcessor(Arrays.asList(sender), testStr.getBytes().length, null);
         processor.processMetrics(data);
@@ -111,13 +129,13 @@ public class MetricsProcessorTests {
 
     @Test
     public void testMultipleWorkers() {
-        LinkedBlockingQueue<String> data = new LinkedBlockingQueue<>();
-        String testStr = "aFake metric string";
+        MetricsRing data = new MetricsRing(10);
+        String testStr = "aFake metric string\n";
 
-        data.add(testStr);
-        data.add(testStr);
-        data.add(testStr);
-        data.add(testStr);
+        data.offer(testStr.getBytes(), testStr.length());
+        data.offer(testStr.getBytes(), testStr.length());
+        data.offer(testStr.getBytes(), testStr.length());
+        data.offer(testStr.getBytes(), testStr.length());
 
         processor = new MetricsProcessor(Arrays.asList(sender, sender2, sender3), (testStr.getBytes().length * 2) + 1, null);
         processor.processMetrics(data);
@@ -125,5 +143,279 @@ public class MetricsProcessorTests {
         assertEquals(count.intValue(), 1);
         assertEquals(count2.intValue(), 1);
         assertEquals(count3.intValue(), 1);
+        assertEquals(0, data.size());
+    }
+
+    @Test
+    public void testFewerMetricsThanWorkers() {
+        MetricsRing data = new MetricsRing(10);
+        String testStr = "aFake metric string\n";
+
+        data.offer(testStr.getBytes(), testStr.length());
+
+        processor = new MetricsProcessor(Arrays.asList(sender, sender2), testStr.getBytes().length * 3, null);
+        processor.processMetrics(data);
+
+        // nothing is written to a sender that wasn't given any lines
+        assertEquals(count.intValue(), 0);
+        assertEquals(count2.intValue(), 1);
+    }
+
+    @Test
+    public void testConsistentHash() {
+        List<String> written = new ArrayList<>();
+        List<String> written2 = new ArrayList<>();
+        MetricsSender recording = recordingSender("a:4242", written);
+        MetricsSender recording2 = recordingSender("b:4242", written2);
+        processor = new MetricsProcessor(Arrays.asList(recording, recording2), 1500, null,
+                MetricsProcessor.Sharding.CONSISTENT_HASH, 160, 5);
+
+        // the same series goes to the same host flush after flush
+        for (int flush = 0; flush < 3; flush++) {
+            MetricsRing data = new MetricsRing(100);
+            for (int i = 0; i < 20; i++) {
+                String line = "series" + i + "\n";
+                data.offer(line.getBytes(), line.length(), ("series" + i).hashCode() * 0x9E3779B1);
+            }
+            processor.processMetrics(data);
+        }
+
+        Set<String> first = lines(written);
+        Set<String> second = lines(written2);
+        assertEquals(20, first.size() + second.size());
+        for (String line : first) { assertFalse(second.contains(line)); }
+        assertEquals(60, written.stream().mapToInt(s -> s.split("\n").length).sum()
+                + written2.stream().mapToInt(s -> s.split("\n").length).sum());
+    }
+
+    @Test
+    public void testSkipsDisconnected() {
+        AtomicBoolean up = new AtomicBoolean(false);
+        List<String> written = new ArrayList<>();
+        List<String> written2 = new ArrayList<>();
+        processor = new MetricsProcessor(Arrays.asList(recordingSender("a:4242", written, up),
+                recordingSender("b:4242", written2, new AtomicBoolean(true))), 1500, null);
+
+        processor.processMetrics(ring(10));
+        assertEquals(0, written.size());
+        assertEquals(10, lines(written2).size());
+    }
+
+    @Test
+    public void testAllDisconnected() {
+        AtomicBoolean up = new AtomicBoolean(false);
+        List<String> written = new ArrayList<>();
+        processor = new MetricsProcessor(Arrays.asList(recordingSender("a:4242", written, up)), 1500, null);
+
+        // nothing is dropped, the metrics wait in the ring for a sender to come back
+        MetricsRing data = ring(10);
+        processor.processMetrics(data);
+        assertEquals(0, written.size());
+        assertEquals(10, data.size());
+
+        up.set(true);
+        processor.processMetrics(data);
+        assertEquals(10, lines(written).size());
+        assertEquals(0, data.size());
+    }
+
+    @Test
+    public void testGradualRecovery() {
+        AtomicBoolean up = new AtomicBoolean(true);
+        List<String> written = new ArrayList<>();
+        List<String> written2 = new ArrayList<>();
+        processor = new MetricsProcessor(Arrays.asList(recordingSender("a:4242", written, up),
+                recordingSender("b:4242", written2, new AtomicBoolean(true))), 100000, null,
+                MetricsProcessor.Sharding.ROUND_ROBIN, 160, 4);
+
+        up.set(false);
+        processor.processMetrics(ring(100));
+        assertEquals(0, written.size());
+
+        // the recovered sender takes a growing share each flush until it is back to an even split
+        up.set(true);
+        int[] expected = {20, 33, 42, 50, 50};
+        for (int share : expected) {
+            written.clear();
+            processor.processMetrics(ring(100));
+            assertEquals(share, lines(written).size());
+        }
+    }
+
+    @Test
+    public void testConsistentHashSkipsDisconnected() {
+        AtomicBoolean up = new AtomicBoolean(true);
+        List<String> written = new ArrayList<>();
+        List<String> written2 = new ArrayList<>();
+        processor = new MetricsProcessor(Arrays.asList(recordingSender("a:4242", written, up),
+                recordingSender("b:4242", written2, new AtomicBoolean(true))), 1500, null,
+                MetricsProcessor.Sharding.CONSISTENT_HASH, 160, 1);
+
+        processor.processMetrics(ring(20));
+        Set<String> owned = lines(written);
+        assertTrue(owned.size() > 0);
+
+        // the series of the down host move over and come back once it recovers
+        up.set(false);
+        written.clear();
+        written2.clear();
+        processor.processMetrics(ring(20));
+        assertEquals(0, written.size());
+        assertEquals(20, lines(written2).size());
+
+        up.set(true);
+        written.clear();
+        processor.processMetrics(ring(20));
+        assertEquals(owned, lines(written));
+    }
+
+    @Test
+    public void testWriteBudget() {
+        AtomicLong budget = new AtomicLong(20);
+        List<String> written = new ArrayList<>();
+        List<String> written2 = new ArrayList<>();
+        processor = new MetricsProcessor(Arrays.asList(budgetedSender("a:4242", written, budget),
+                budgetedSender("b:4242", written2, new AtomicLong(0))), 1500, null);
+
+        // "seriesN\n" is 8 bytes, the first host takes up to its budget and the second has none
+        MetricsRing data = ring(10);
+        assertEquals(3, processor.processMetrics(data));
+        assertEquals(3, lines(written).size());
+        assertEquals(0, written2.size());
+        assertEquals(7, data.size());
+
+        // nothing goes anywhere while every host is backed up
+        budget.set(0);
+        assertEquals(0, processor.processMetrics(data));
+        assertEquals(7, data.size());
+
+        budget.set(Long.MAX_VALUE);
+        assertEquals(7, processor.processMetrics(data));
+        assertEquals(10, lines(written).size());
+    }
+
+    @Test
+    public void testConsistentHashWriteBudget() {
+        AtomicLong budget = new AtomicLong(0);
+        List<String> written = new ArrayList<>();
+        List<String> written2 = new ArrayList<>();
+        processor = new MetricsProcessor(Arrays.asList(budgetedSender("a:4242", written, budget),
+                budgetedSender("b:4242", written2, new AtomicLong(Long.MAX_VALUE))), 1500, null,
+                MetricsProcessor.Sharding.CONSISTENT_HASH, 160, 1);
+
+        // a backed up host's series go to the next host on the ring rather than being dropped
+        processor.processMetrics(ring(20));
+        assertEquals(0, written.size());
+        assertEquals(20, lines(written2).size());
+    }
+
+    @Test
+    public void testSingleFailurePerFlush() {
+        MetricsSender failing = new MetricsSender() {
+            @Override
+            public boolean write(Buffer data) { return false; }
+            @Override
+            public boolean isConnected() { return true; }
+            @Override
+            public void close() {  }
+            @Override
+            public void dumpStats() {  }
+        };
+        EventBus bus = mock(EventBus.class);
+        processor = new MetricsProcessor(Arrays.asList(failing), 8, bus);
+
+        // every line is its own write and every write fails, the failure is only reported once per flush
+        processor.processMetrics(ring(10));
+        verify(bus, times(1)).send(eq(OpenTsDbService.ERROR_MESSAGE_ADDRESS), any(JsonObject.class));
+        processor.processMetrics(ring(10));
+        verify(bus, times(2)).send(eq(OpenTsDbService.ERROR_MESSAGE_ADDRESS), any(JsonObject.class));
+    }
+
+    @Test
+    public void testRetriesRejectedWrites() {
+        AtomicBoolean accept = new AtomicBoolean(false);
+        List<String> written = new ArrayList<>();
+        MetricsSender flaky = new MetricsSender() {
+            @Override
+            public boolean write(Buffer data) {
+                if (accept.get()) { written.add(data.toString()); }
+                return accept.get();
+            }
+            @Override
+            public boolean isConnected() { return true; }
+            @Override
+            public void close() {  }
+            @Override
+            public void dumpStats() {  }
+        };
+        RetryQueue retries = new RetryQueue(1024, 3, 60000, MetricsClock.SYSTEM);
+        processor = new MetricsProcessor(Arrays.asList(flaky), 1500, mock(EventBus.class));
+        processor.setRetryQueue(retries);
+
+        processor.processMetrics(ring(10));
+        assertEquals(1, retries.size());
+        assertEquals(0, written.size());
+
+        // the rejected buffer goes out ahead of anything new once the sender takes writes again
+        accept.set(true);
+        processor.processMetrics(new MetricsRing(1));
+        assertEquals(10, lines(written).size());
+        assertTrue(retries.isEmpty());
+        assertEquals(80, retries.getRecoveredBytes());
+    }
+
+    private static MetricsRing ring(int lines) {
+        MetricsRing data = new MetricsRing(lines);
+        for (int i = 0; i < lines; i++) {
+            String line = "series" + i + "\n";
+            data.offer(line.getBytes(), line.length(), ("series" + i).hashCode() * 0x9E3779B1);
+        }
+        return data;
+    }
+
+    private static Set<String> lines(List<String> writes) {
+        Set<String> lines = new HashSet<>();
+        writes.forEach(write -> lines.addAll(Arrays.asList(write.split("\n"))));
+        return lines;
+    }
+
+    private static MetricsSender budgetedSender(String id, List<String> written, AtomicLong budget) {
+        return new MetricsSender() {
+            @Override
+            public boolean write(Buffer data) {
+                written.add(data.toString());
+                budget.addAndGet(-data.length());
+                return true;
+            }
+            @Override
+            public long getWriteBudget() { return Math.max(0, budget.get()); }
+            @Override
+            public boolean isConnected() { return true; }
+            @Override
+            public void close() {  }
+            @Override
+            public void dumpStats() {  }
+            @Override
+            public String getId() { return id; }
+        };
+    }
+
+    private static MetricsSender recordingSender(String id, List<String> written) {
+        return recordingSender(id, written, new AtomicBoolean(true));
+    }
+
+    private static MetricsSender recordingSender(String id, List<String> written, AtomicBoolean connected) {
+        return new MetricsSender() {
+            @Override
+            public boolean write(Buffer data) { written.add(data.toString()); return true; }
+            @Override
+            public boolean isConnected() { return connected.get(); }
+            @Override
+            public void close() {  }
+            @Override
+            public void dumpStats() {  }
+            @Override
+            public String getId() { return id; }
+        };
     }
 }
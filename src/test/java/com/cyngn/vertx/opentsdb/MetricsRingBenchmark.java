@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.MetricsRing;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of the ingestion ring compared to a LinkedBlockingQueue of strings drained in batches, run by hand with
+ *  a single consumer draining while 1, 2, 4 and 8 producers publish.
+ */
+@Ignore("Benchmark, run by hand")
+public class MetricsRingBenchmark {
+
+    private static final int CAPACITY = 100000;
+    private static final long RUN_MILLI = 2000;
+    private static final String LINE = "put test.metric 1462406400000 12345 host=app01 dc=us-west\n";
+
+    @Test
+    public void compare() throws Exception {
+        for (int producers : new int[] {1, 2, 4, 8}) {
+            // once to warm up, once to measure
+            runRing(producers);
+            runQueue(producers);
+            System.out.println(String.format("producers=%d ring=%,d/s queue=%,d/s", producers, runRing(producers),
+                    runQueue(producers)));
+        }
+    }
+
+    private long runRing(int producers) throws Exception {
+        MetricsRing ring = new MetricsRing(CAPACITY);
+        byte[] line = LINE.getBytes(StandardCharsets.UTF_8);
+        AtomicLong consumed = new AtomicLong();
+        MetricsRing.LineConsumer consumer = (data, index, length, shardHash) -> consumed.lazySet(consumed.get() + 1);
+
+        return run(producers, consumed, () -> ring.offer(line, line.length), () -> ring.drain(4096, consumer));
+    }
+
+    private long runQueue(int producers) throws Exception {
+        LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>(CAPACITY);
+        AtomicLong consumed = new AtomicLong();
+        List<String> batch = new ArrayList<>(4096);
+
+        return run(producers, consumed, () -> queue.offer(LINE), () -> {
+            queue.drainTo(batch, 4096);
+            consumed.lazySet(consumed.get() + batch.size());
+            batch.clear();
+        });
+    }
+
+    private long run(int producers, AtomicLong consumed, Producer producer, Runnable drain) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch done = new CountDownLatch(producers);
+        for (int i = 0; i < producers; i++) {
+            new Thread(() -> {
+                while (running.get()) {
+                    if (!producer.offer()) { Thread.yield(); }
+                }
+                done.countDown();
+            }).start();
+        }
+
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < RUN_MILLI) { drain.run(); }
+        running.set(false);
+        done.await();
+
+        return consumed.get() * 1000 / RUN_MILLI;
+    }
+
+    @FunctionalInterface
+    private interface Producer {
+        boolean offer();
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.BacklogLimit;
+import com.cyngn.vertx.opentsdb.service.MetricsRing;
+import io.netty.buffer.AbstractByteBufAllocator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetricsRingTests {
+
+    private static void offer(MetricsRing ring, String line) {
+        assertTrue(ring.offer(line.getBytes(StandardCharsets.UTF_8), line.length()));
+    }
+
+    private static List<String> drain(MetricsRing ring, int max) {
+        List<String> lines = new ArrayList<>();
+        ring.drain(max, (data, index, length, shardHash) ->
+                lines.add(data.toString(index, length, StandardCharsets.UTF_8)));
+        return lines;
+    }
+
+    @Test
+    public void testOfferAndDrain() {
+        MetricsRing ring = new MetricsRing(10);
+        offer(ring, "one");
+        offer(ring, "two");
+        offer(ring, "three");
+
+        assertEquals(3, ring.size());
+        assertEquals(11, ring.getBytes());
+        assertEquals(2, drain(ring, 2).size());
+        assertEquals(1, ring.size());
+        assertEquals(5, ring.getBytes());
+
+        List<String> rest = drain(ring, 10);
+        assertEquals(1, rest.size());
+        assertEquals("three", rest.get(0));
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testDrainByteBudget() {
+        MetricsRing ring = new MetricsRing(10);
+        offer(ring, "one");
+        offer(ring, "two");
+        offer(ring, "three");
+
+        // the line that crosses the budget still goes, the rest wait
+        List<String> lines = new ArrayList<>();
+        assertEquals(2, ring.drain(10, 4, (data, index, length, shardHash) ->
+                lines.add(data.toString(index, length, StandardCharsets.UTF_8))));
+        assertEquals(Arrays.asList("one", "two"), lines);
+        assertEquals(1, ring.size());
+        assertEquals(0, ring.drain(10, 0, (data, index, length, shardHash) -> {}));
+        assertEquals(1, ring.size());
+    }
+
+    @Test
+    public void testMaxBytes() {
+        MetricsRing ring = new MetricsRing(10, 10, MetricsRing.DEFAULT_SLOT_BYTES, UnpooledByteBufAllocator.DEFAULT);
+        offer(ring, "one");
+        offer(ring, "three");
+        // there are free slots but the line would take the ring over its byte limit
+        assertFalse(ring.offer("four".getBytes(StandardCharsets.UTF_8), 4));
+        assertEquals(2, ring.size());
+        assertEquals(8, ring.getBytes());
+
+        offer(ring, "tw");
+        assertEquals(10, ring.getBytes());
+        drain(ring, 1);
+        assertEquals(7, ring.getBytes());
+        offer(ring, "two");
+        ring.release();
+    }
+
+    @Test
+    public void testFull() {
+        MetricsRing ring = new MetricsRing(2);
+        offer(ring, "one");
+        offer(ring, "two");
+
+        assertFalse(ring.offer("three".getBytes(), 5));
+        assertEquals(2, ring.size());
+
+        drain(ring, 1);
+        offer(ring, "three");
+        assertEquals(2, ring.size());
+    }
+
+    @Test
+    public void testWrapAround() {
+        MetricsRing ring = new MetricsRing(3);
+        for (int i = 0; i < 10; i++) {
+            offer(ring, "line" + i);
+            offer(ring, "a much longer line " + i);
+
+            List<String> lines = drain(ring, 10);
+            assertEquals("line" + i, lines.get(0));
+            assertEquals("a much longer line " + i, lines.get(1));
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testSpansChunks() {
+        MetricsRing ring = new MetricsRing(10000);
+        for (int i = 0; i < 10000; i++) { offer(ring, Integer.toString(i)); }
+        assertFalse(ring.offer("full".getBytes(), 4));
+
+        List<String> lines = drain(ring, Integer.MAX_VALUE);
+        assertEquals(10000, lines.size());
+        assertEquals("9999", lines.get(9999));
+    }
+
+    @Test
+    public void testOversizedLine() {
+        MetricsRing ring = new MetricsRing(4, 8, UnpooledByteBufAllocator.DEFAULT);
+        offer(ring, "short");
+        offer(ring, "a line longer than a slot");
+        offer(ring, "short2");
+
+        List<String> lines = drain(ring, 10);
+        assertEquals("short", lines.get(0));
+        assertEquals("a line longer than a slot", lines.get(1));
+        assertEquals("short2", lines.get(2));
+        assertEquals(1, ring.getOversizedLines());
+    }
+
+    @Test
+    public void testSlabUsage() {
+        MetricsRing ring = new MetricsRing(10, 16, UnpooledByteBufAllocator.DEFAULT);
+        assertEquals(0, ring.getSlabBytes());
+
+        offer(ring, "one");
+        offer(ring, "two");
+        assertEquals(160, ring.getSlabBytes());
+        assertEquals(32, ring.getSlabBytesInUse());
+
+        drain(ring, 10);
+        assertEquals(160, ring.getSlabBytes());
+        assertEquals(0, ring.getSlabBytesInUse());
+
+        ring.release();
+        assertEquals(0, ring.getSlabBytes());
+    }
+
+    @Test
+    public void testSlabsHandedBack() {
+        MetricsRing ring = new MetricsRing(10000, 16, UnpooledByteBufAllocator.DEFAULT);
+        for (int i = 0; i < 5000; i++) { offer(ring, Integer.toString(i)); }
+        assertEquals(2 * 4096 * 16, ring.getSlabBytes());
+
+        // only the chunk the tail is in is kept once the burst drains
+        assertEquals(5000, drain(ring, Integer.MAX_VALUE).size());
+        assertEquals(4096 * 16, ring.getSlabBytes());
+
+        // wrap around into the chunks that were handed back
+        for (int i = 0; i < 6000; i++) { offer(ring, Integer.toString(i)); }
+        List<String> lines = drain(ring, Integer.MAX_VALUE);
+        assertEquals(6000, lines.size());
+        assertEquals("0", lines.get(0));
+        assertEquals("5999", lines.get(5999));
+        assertEquals(4096 * 16, ring.getSlabBytes());
+
+        for (int i = 0; i < 10000; i++) { offer(ring, Integer.toString(i)); }
+        assertFalse(ring.offer("full".getBytes(), 4));
+        assertEquals(10000, drain(ring, Integer.MAX_VALUE).size());
+        ring.release();
+        assertEquals(0, ring.getSlabBytes());
+    }
+
+    @Test
+    public void testFailedAllocation() {
+        BacklogLimit limit = new BacklogLimit(100);
+        MetricsRing ring = new MetricsRing(10, limit, 16, new AbstractByteBufAllocator() {
+            @Override
+            protected ByteBuf newHeapBuffer(int initialCapacity, int maxCapacity) {
+                return Unpooled.buffer(initialCapacity, maxCapacity);
+            }
+
+            @Override
+            protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity) {
+                throw new OutOfMemoryError("Direct buffer memory");
+            }
+
+            @Override
+            public boolean isDirectBufferPooled() {
+                return false;
+            }
+        });
+
+        try {
+            ring.offer("one".getBytes(StandardCharsets.UTF_8), 3);
+            fail("allocation should have failed");
+        } catch (OutOfMemoryError expected) {
+            // the reservation is handed back
+        }
+        assertEquals(0, ring.getBytes());
+        assertEquals(0, limit.getBytes());
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void testSharedLimit() {
+        BacklogLimit limit = new BacklogLimit(10);
+        UnpooledByteBufAllocator allocator = UnpooledByteBufAllocator.DEFAULT;
+        MetricsRing ring = new MetricsRing(10, limit, MetricsRing.DEFAULT_SLOT_BYTES, allocator);
+        MetricsRing other = new MetricsRing(10, limit, MetricsRing.DEFAULT_SLOT_BYTES, allocator);
+        assertEquals(10, ring.getMaxBytes());
+
+        offer(ring, "three");
+        offer(other, "four");
+        // each ring only counts its own bytes but both are bounded by the bytes queued between them
+        assertFalse(ring.offer("tw".getBytes(StandardCharsets.UTF_8), 2));
+        assertEquals(5, ring.getBytes());
+        assertEquals(9, ring.getLimitedBytes());
+        assertEquals(9, other.getLimitedBytes());
+
+        drain(other, 1);
+        assertEquals(5, limit.getBytes());
+        offer(ring, "tw");
+
+        // anything left in a released ring no longer counts against the limit
+        ring.release();
+        assertEquals(0, limit.getBytes());
+        other.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadCapacity() {
+        new MetricsRing(0);
+    }
+
+    @Test
+    public void testMultipleProducers() throws Exception {
+        int producers = 4;
+        int perProducer = 50000;
+        MetricsRing ring = new MetricsRing(1024);
+        CountDownLatch done = new CountDownLatch(producers);
+
+        for (int p = 0; p < producers; p++) {
+            String line = "producer" + p;
+            new Thread(() -> {
+                byte[] bytes = line.getBytes();
+                for (int i = 0; i < perProducer; i++) {
+                    while (!ring.offer(bytes, bytes.length)) { Thread.yield(); }
+                }
+                done.countDown();
+            }).start();
+        }
+
+        int[] counts = new int[producers];
+        AtomicInteger total = new AtomicInteger();
+        while (total.get() < producers * perProducer) {
+            int drained = ring.drain(256, (data, index, length, shardHash) -> {
+                counts[data.getByte(index + length - 1) - '0']++;
+                total.incrementAndGet();
+            });
+            if (drained == 0) { Thread.yield(); }
+        }
+
+        done.await();
+        for (int count : counts) { assertEquals(perProducer, count); }
+        assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.client.OpenTsDbClient;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetServer;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runs the client against a local socket standing in for a TSD.
+ */
+@RunWith(VertxUnitRunner.class)
+public class OpenTsDbClientTests {
+
+    private Vertx vertx;
+    private NetServer server;
+    private Buffer received;
+
+    @Before
+    public void before(TestContext context) {
+        vertx = Vertx.vertx();
+        received = Buffer.buffer();
+        server = vertx.createNetServer().connectHandler(socket -> socket.handler(received::appendBuffer));
+        server.listen(0, "localhost", context.asyncAssertSuccess());
+    }
+
+    @After
+    public void after(TestContext context) {
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    @Test
+    public void testGatheredWrites(TestContext context) {
+        Async async = context.async();
+        String expected = "put a 1 1 foo=bar\nput b 1 2 foo=bar\n";
+
+        vertx.runOnContext(v -> {
+            OpenTsDbClient[] client = new OpenTsDbClient[1];
+            client[0] = new OpenTsDbClient("localhost", server.actualPort(), vertx, success -> {
+                context.assertTrue(success);
+
+                ByteBuf first = Unpooled.copiedBuffer("put a 1 1 foo=bar\n", StandardCharsets.UTF_8);
+                ByteBuf second = Unpooled.copiedBuffer("put b 1 2 foo=bar\n", StandardCharsets.UTF_8);
+
+                context.assertTrue(client[0].write(first));
+                context.assertTrue(client[0].write(second));
+                // held until the flush, which writes them out together and hands them back
+                context.assertEquals(1, first.refCnt());
+                client[0].flush();
+                context.assertEquals(0, first.refCnt());
+                context.assertEquals(0, second.refCnt());
+
+                vertx.setPeriodic(10, id -> {
+                    if (received.length() < expected.length()) { return; }
+                    vertx.cancelTimer(id);
+                    context.assertEquals(expected, received.toString());
+                    async.complete();
+                });
+            });
+        });
+    }
+
+    @Test
+    public void testDrainHandler(TestContext context) {
+        Async async = context.async();
+        boolean[] wrote = new boolean[1];
+
+        vertx.runOnContext(v -> {
+            OpenTsDbClient[] client = new OpenTsDbClient[1];
+            client[0] = new OpenTsDbClient("localhost", server.actualPort(), vertx, 16, success -> {
+                context.assertTrue(success);
+                context.assertEquals(16L, client[0].getWriteBudget());
+
+                ByteBuf data = Unpooled.copiedBuffer("put a 1 1 foo=bar\nput b 1 2 foo=bar\n", StandardCharsets.UTF_8);
+                context.assertTrue(client[0].write(data));
+                // over budget, the caller should hold off until the socket drains
+                context.assertEquals(0L, client[0].getWriteBudget());
+                wrote[0] = true;
+                client[0].flush();
+            });
+            client[0].drainHandler(aVoid -> {
+                // the socket also reports it is writable once when first connected
+                if (!wrote[0]) { return; }
+                context.assertEquals(16L, client[0].getWriteBudget());
+                async.complete();
+            });
+        });
+    }
+}
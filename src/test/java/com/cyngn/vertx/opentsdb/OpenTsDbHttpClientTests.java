@@ -0,0 +1,253 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.client.EventBusMessage;
+import com.cyngn.vertx.opentsdb.service.OpenTsDbService;
+import com.cyngn.vertx.opentsdb.service.client.OpenTsDbHttpClient;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Runs the http client against a local http server standing in for a TSD.
+ */
+@RunWith(VertxUnitRunner.class)
+public class OpenTsDbHttpClientTests {
+
+    private Vertx vertx;
+    private HttpServer server;
+    private int port;
+    // the decompressed body posted to each uri
+    private Map<String, JsonArray> posted;
+    private int putStatus;
+    private JsonObject putReply;
+
+    @Before
+    public void before(TestContext context) throws IOException {
+        vertx = Vertx.vertx();
+        // the 3.2 http server doesn't report the port it bound when asked for any port
+        try (ServerSocket socket = new ServerSocket(0)) { port = socket.getLocalPort(); }
+        posted = new ConcurrentHashMap<>();
+        putStatus = 200;
+        putReply = new JsonObject().put("success", 2).put("failed", 0).put("errors", new JsonArray());
+        server = vertx.createHttpServer().requestHandler(this::handle);
+        server.listen(port, "localhost", context.asyncAssertSuccess());
+    }
+
+    @After
+    public void after(TestContext context) {
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    private void handle(HttpServerRequest request) {
+        request.bodyHandler(body -> {
+            if (request.uri().equals("/api/version")) {
+                request.response().end(new JsonObject().put("version", "2.4.0").encode());
+                return;
+            }
+            posted.put(request.uri(), new JsonArray(gunzip(body)));
+            request.response().setStatusCode(request.uri().startsWith("/api/put") ? putStatus : 200)
+                    .end(request.uri().startsWith("/api/put") ? putReply.encode()
+                            : new JsonObject().put("success", 1).put("failed", 0).encode());
+        });
+    }
+
+    private static String gunzip(Buffer body) {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body.getBytes()))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[1024];
+            for (int read = in.read(chunk); read > 0; read = in.read(chunk)) { out.write(chunk, 0, read); }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new AssertionError("body isn't gzipped", ex);
+        }
+    }
+
+    private static ByteBuf lines(String lines) {
+        ByteBuf data = PooledByteBufAllocator.DEFAULT.directBuffer(lines.length());
+        data.writeBytes(lines.getBytes(StandardCharsets.UTF_8));
+        return data;
+    }
+
+    @Test
+    public void testPostsJson(TestContext context) {
+        Async async = context.async();
+
+        vertx.runOnContext(v -> {
+            OpenTsDbHttpClient[] client = new OpenTsDbHttpClient[1];
+            client[0] = new OpenTsDbHttpClient("localhost", port, vertx, 4096, 2, success -> {
+                context.assertTrue(success);
+
+                ByteBuf data = lines("put a 1462900000 1 foo=bar\nput b 1462900000 2.5 foo=bar host=a\n" +
+                        "rollup 1m-sum a 1462900000 12 foo=bar\nhistogram a 1462900000 0 AQID foo=bar\n");
+                context.assertTrue(client[0].write(data));
+                context.assertEquals(0, data.refCnt());
+                client[0].flush();
+
+                vertx.setPeriodic(10, id -> {
+                    if (posted.size() < 3) { return; }
+                    vertx.cancelTimer(id);
+
+                    JsonArray puts = posted.get("/api/put?summary&details");
+                    context.assertEquals(new JsonArray()
+                            .add(new JsonObject().put("metric", "a").put("timestamp", 1462900000).put("value", 1)
+                                    .put("tags", new JsonObject().put("foo", "bar")))
+                            .add(new JsonObject().put("metric", "b").put("timestamp", 1462900000).put("value", 2.5)
+                                    .put("tags", new JsonObject().put("foo", "bar").put("host", "a"))), puts);
+
+                    JsonArray rollups = posted.get("/api/rollup?summary&details");
+                    context.assertEquals(new JsonArray().add(new JsonObject().put("metric", "a")
+                            .put("timestamp", 1462900000).put("value", 12)
+                            .put("tags", new JsonObject().put("foo", "bar")).put("interval", "1m")
+                            .put("aggregator", "sum")), rollups);
+
+                    JsonArray histograms = posted.get("/api/histogram?summary&details");
+                    context.assertEquals(new JsonArray().add(new JsonObject().put("metric", "a")
+                            .put("timestamp", 1462900000).put("value", "AQID").put("id", 0)
+                            .put("tags", new JsonObject().put("foo", "bar"))), histograms);
+                    async.complete();
+                });
+            });
+        });
+    }
+
+    @Test
+    public void testQuotesValuesThatArentJsonNumbers(TestContext context) {
+        Async async = context.async();
+        String[] values = {"-1.5e+3", "0", "-", "e", "+5", "1.", "01", ".5", "1e", "NaN"};
+
+        vertx.runOnContext(v -> {
+            OpenTsDbHttpClient[] client = new OpenTsDbHttpClient[1];
+            client[0] = new OpenTsDbHttpClient("localhost", port, vertx, 4096, 2, success -> {
+                StringBuilder lines = new StringBuilder();
+                for (String value : values) { lines.append("put a 1 ").append(value).append(" foo=bar\n"); }
+                context.assertTrue(client[0].write(lines(lines.toString())));
+                client[0].flush();
+
+                vertx.setPeriodic(10, id -> {
+                    JsonArray puts = posted.get("/api/put?summary&details");
+                    if (puts == null) { return; }
+                    vertx.cancelTimer(id);
+
+                    context.assertEquals(-1500.0, puts.getJsonObject(0).getDouble("value"));
+                    context.assertEquals(0, puts.getJsonObject(1).getInteger("value"));
+                    for (int i = 2; i < values.length; i++) {
+                        context.assertEquals(values[i], puts.getJsonObject(i).getValue("value"));
+                    }
+                    async.complete();
+                });
+            });
+        });
+    }
+
+    @Test
+    public void testServerErrorTakesHostOut(TestContext context) {
+        Async async = context.async();
+        putStatus = 503;
+
+        vertx.runOnContext(v -> {
+            OpenTsDbHttpClient[] client = new OpenTsDbHttpClient[1];
+            client[0] = new OpenTsDbHttpClient("localhost", port, vertx, 4096, 2, success -> {
+                context.assertTrue(client[0].write(lines("put a 1 1 foo=bar\n")));
+                client[0].flush();
+
+                vertx.setPeriodic(10, id -> {
+                    if (client[0].isConnected()) { return; }
+                    vertx.cancelTimer(id);
+                    context.assertEquals(0L, client[0].getWriteBudget());
+                    async.complete();
+                });
+            });
+        });
+    }
+
+    @Test
+    public void testReportsRejectedPoints(TestContext context) {
+        Async async = context.async();
+        putStatus = 400;
+        putReply = new JsonObject().put("success", 1).put("failed", 1).put("errors", new JsonArray()
+                .add(new JsonObject().put("datapoint", new JsonObject()).put("error", "Unknown metric")));
+
+        vertx.eventBus().<JsonObject>consumer(OpenTsDbService.ERROR_MESSAGE_ADDRESS, message -> {
+            context.assertEquals(EventBusMessage.INVALID_DATA.name(), message.body().getString("error"));
+            context.assertTrue(message.body().getString("message").contains("Unknown metric"));
+            async.complete();
+        });
+
+        vertx.runOnContext(v -> {
+            OpenTsDbHttpClient[] client = new OpenTsDbHttpClient[1];
+            client[0] = new OpenTsDbHttpClient("localhost", port, vertx, 4096, 2, success -> {
+                context.assertTrue(client[0].write(lines("put a 1 1 foo=bar\nput b 1 x foo=bar\n")));
+                client[0].flush();
+            });
+        });
+    }
+
+    @Test
+    public void testDrainHandler(TestContext context) {
+        Async async = context.async();
+
+        vertx.runOnContext(v -> {
+            OpenTsDbHttpClient[] client = new OpenTsDbHttpClient[1];
+            client[0] = new OpenTsDbHttpClient("localhost", port, vertx, 16, 2, success -> {
+                context.assertEquals(16L, client[0].getWriteBudget());
+                context.assertTrue(client[0].write(lines("put a 1 1 foo=bar\nput b 1 2 foo=bar\n")));
+                // over budget until TSD answers
+                context.assertEquals(0L, client[0].getWriteBudget());
+                client[0].flush();
+            });
+            client[0].drainHandler(aVoid -> {
+                context.assertEquals(16L, client[0].getWriteBudget());
+                async.complete();
+            });
+        });
+    }
+
+    @Test
+    public void testUnreachableHost(TestContext context) {
+        Async async = context.async();
+        server.close(closed -> vertx.runOnContext(v -> {
+            OpenTsDbHttpClient client = new OpenTsDbHttpClient("localhost", port, vertx, 4096, 2, success -> {
+                context.assertFalse(success);
+                async.complete();
+            });
+            context.assertFalse(client.isConnected());
+            context.assertEquals(0L, client.getWriteBudget());
+        }));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.MetricsRing;
+import com.cyngn.vertx.opentsdb.service.OverloadPolicy;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OverloadPolicyTests {
+
+    private static MetricsRing fullRing() {
+        MetricsRing ring = new MetricsRing(2);
+        ring.offer("old1\n".getBytes(StandardCharsets.UTF_8), 5);
+        ring.offer("old2\n".getBytes(StandardCharsets.UTF_8), 5);
+        return ring;
+    }
+
+    private static OverloadPolicy.Outcome offer(OverloadPolicy policy, MetricsRing ring, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return policy.onFull(ring, bytes, 0, bytes.length, 0);
+    }
+
+    private static List<String> drain(MetricsRing ring) {
+        List<String> lines = new ArrayList<>();
+        ring.drain(ring.size(), (data, index, length, shardHash) ->
+                lines.add(data.toString(index, length, StandardCharsets.UTF_8)));
+        return lines;
+    }
+
+    @Test
+    public void testReject() {
+        OverloadPolicy policy = new OverloadPolicy(OverloadPolicy.Type.REJECT, 0.5);
+        MetricsRing ring = fullRing();
+        assertEquals(OverloadPolicy.Outcome.REJECTED, offer(policy, ring, "new\n"));
+        assertEquals(1, policy.getRejected());
+        assertTrue(policy.rejectsWholeBatches());
+        assertEquals(Arrays.asList("old1\n", "old2\n"), drain(ring));
+    }
+
+    @Test
+    public void testDropNewest() {
+        OverloadPolicy policy = new OverloadPolicy(OverloadPolicy.Type.DROP_NEWEST, 0.5);
+        MetricsRing ring = fullRing();
+        assertEquals(OverloadPolicy.Outcome.DROPPED, offer(policy, ring, "new\n"));
+        assertEquals(1, policy.getDroppedNewest());
+        assertFalse(policy.rejectsWholeBatches());
+        assertEquals(Arrays.asList("old1\n", "old2\n"), drain(ring));
+    }
+
+    @Test
+    public void testDropOldest() {
+        OverloadPolicy policy = new OverloadPolicy(OverloadPolicy.Type.DROP_OLDEST, 0.5);
+        MetricsRing ring = fullRing();
+        assertEquals(OverloadPolicy.Outcome.QUEUED, offer(policy, ring, "new\n"));
+        assertEquals(1, policy.getDroppedOldest());
+        assertEquals(Arrays.asList("old2\n", "new\n"), drain(ring));
+    }
+
+    @Test
+    public void testDropOldestByBytes() {
+        OverloadPolicy policy = new OverloadPolicy(OverloadPolicy.Type.DROP_OLDEST, 0.5);
+        MetricsRing ring = new MetricsRing(10, 10, MetricsRing.DEFAULT_SLOT_BYTES, UnpooledByteBufAllocator.DEFAULT);
+        ring.offer("old1\n".getBytes(StandardCharsets.UTF_8), 5);
+        ring.offer("old2\n".getBytes(StandardCharsets.UTF_8), 5);
+
+        // making room for a long line can take more than one eviction
+        assertEquals(OverloadPolicy.Outcome.QUEUED, offer(policy, ring, "longer\n"));
+        assertEquals(2, policy.getDroppedOldest());
+        assertEquals(Arrays.asList("longer\n"), drain(ring));
+
+        // and a line bigger than the whole backlog is dropped
+        assertEquals(OverloadPolicy.Outcome.DROPPED, offer(policy, ring, "far too long\n"));
+        assertEquals(1, policy.getDroppedNewest());
+    }
+
+    @Test
+    public void testSample() {
+        OverloadPolicy keepAll = new OverloadPolicy(OverloadPolicy.Type.SAMPLE, 1);
+        MetricsRing ring = fullRing();
+        assertEquals(OverloadPolicy.Outcome.QUEUED, offer(keepAll, ring, "new\n"));
+        assertEquals(1, keepAll.getDroppedOldest());
+
+        OverloadPolicy keepNone = new OverloadPolicy(OverloadPolicy.Type.SAMPLE, 0);
+        assertEquals(OverloadPolicy.Outcome.DROPPED, offer(keepNone, ring, "newer\n"));
+        assertEquals(1, keepNone.getDroppedNewest());
+        assertEquals(Arrays.asList("old2\n", "new\n"), drain(ring));
+    }
+
+    @Test
+    public void testBlockPublisher() {
+        OverloadPolicy policy = new OverloadPolicy(OverloadPolicy.Type.BLOCK_PUBLISHER, 0.5);
+        MetricsRing ring = new MetricsRing(10);
+        for (int i = 0; i < 8; i++) { ring.offer("line\n".getBytes(StandardCharsets.UTF_8), 5); }
+        assertFalse(policy.shouldPause(ring));
+
+        ring.offer("line\n".getBytes(StandardCharsets.UTF_8), 5);
+        assertTrue(policy.shouldPause(ring));
+        assertFalse(policy.shouldResume(ring));
+
+        ring.drain(5, (data, index, length, shardHash) -> {});
+        assertTrue(policy.shouldResume(ring));
+        assertFalse(new OverloadPolicy(OverloadPolicy.Type.DROP_OLDEST, 0.5).shouldPause(fullRing()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadSampleRate() {
+        new OverloadPolicy(OverloadPolicy.Type.SAMPLE, 1.5);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.PutEncoder;
+import com.cyngn.vertx.opentsdb.service.SeriesKey;
+import com.cyngn.vertx.opentsdb.service.SeriesKeyCache;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class PutEncoderTests {
+
+    @Test
+    public void testEncode() {
+        Buffer buffer = Buffer.buffer();
+        int written = new PutEncoder(null).encode(buffer, "test.value", 1446415200000L, "17", "foo=bar");
+
+        assertEquals("put test.value 1446415200000 17 foo=bar\n", buffer.toString());
+        assertEquals(buffer.length(), written);
+    }
+
+    @Test
+    public void testEncodePrefix() {
+        Buffer buffer = Buffer.buffer();
+        new PutEncoder("test.service").encode(buffer, "test.value", 0, "34.5", "foo=bar tag1=val1");
+
+        assertEquals("put test.service.test.value 0 34.5 foo=bar tag1=val1\n", buffer.toString());
+    }
+
+    @Test
+    public void testEncodeAppends() {
+        Buffer buffer = Buffer.buffer();
+        PutEncoder encoder = new PutEncoder(null);
+        encoder.encode(buffer, "foo", 10, "1", "a=b");
+        encoder.encode(buffer, "bar", 9223372036854775807L, "-2", "c=d");
+
+        assertEquals("put foo 10 1 a=b\nput bar 9223372036854775807 -2 c=d\n", buffer.toString());
+    }
+
+    @Test
+    public void testEncodeLongLine() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100; i++) { builder.append("tag").append(i).append("=value").append(i).append(' '); }
+        String tags = builder.toString().trim();
+
+        Buffer buffer = Buffer.buffer();
+        new PutEncoder(null).encode(buffer, "test.value", 5, "1", tags);
+
+        assertEquals("put test.value 5 1 " + tags + "\n", buffer.toString());
+    }
+
+    @Test
+    public void testEncodeNonAscii() {
+        Buffer buffer = Buffer.buffer();
+        new PutEncoder(null).encode(buffer, "test.caf\u00e9", 5, "1", "emoji=\ud83d\ude00");
+
+        assertEquals("put test.caf\u00e9 5 1 emoji=\ud83d\ude00\n", buffer.toString("UTF-8"));
+    }
+
+    @Test
+    public void testEncodeRollup() {
+        PutEncoder encoder = new PutEncoder("svc");
+        SeriesKey key = new SeriesKeyCache(10, encoder, "host=a").get("test.value", new JsonObject().put("foo", "bar"));
+
+        int length = encoder.encodeRollup(key, "1m-sum", 1462900000L, "42");
+        assertEquals("rollup 1m-sum svc.test.value 1462900000 42 host=a foo=bar\n",
+                new String(encoder.getLine(), 0, length, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEncodeHistogram() {
+        PutEncoder encoder = new PutEncoder(null);
+        SeriesKey key = new SeriesKeyCache(10, encoder, "").get("latency", new JsonObject().put("foo", "bar"));
+
+        int length = encoder.encodeHistogram(key, 1462900000L, 1, new byte[] {1, 2, 3});
+        assertEquals("histogram latency 1462900000 1 AQID foo=bar\n",
+                new String(encoder.getLine(), 0, length, StandardCharsets.UTF_8));
+    }
+}
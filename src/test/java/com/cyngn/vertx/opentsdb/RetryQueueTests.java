@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.RetryQueue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryQueueTests {
+
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private static ByteBuf buffer(String data) {
+        return Unpooled.copiedBuffer(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A target with a single sender that accepts or rejects every write, releasing buffers the way a sender does.
+     */
+    private static RetryQueue.Target target(boolean accept, List<String> written) {
+        return new RetryQueue.Target() {
+            @Override
+            public int pick(int lastSender, int length) { return 0; }
+
+            @Override
+            public boolean write(int sender, ByteBuf data) {
+                if (accept) { written.add(data.toString(StandardCharsets.UTF_8)); }
+                data.release();
+                return accept;
+            }
+        };
+    }
+
+    @Test
+    public void testRecovered() {
+        RetryQueue queue = new RetryQueue(100, 3, 1000, now::get);
+        ByteBuf data = buffer("put a 1 1 a=b\n");
+        assertTrue(queue.add(data, 0));
+        assertEquals(14, queue.getBytes());
+
+        List<String> written = new ArrayList<>();
+        queue.retry(target(true, written));
+        assertEquals(1, written.size());
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getBytes());
+        assertEquals(14, queue.getRetriedBytes());
+        assertEquals(14, queue.getRecoveredBytes());
+        assertEquals(0, data.refCnt());
+    }
+
+    @Test
+    public void testMaxRetries() {
+        RetryQueue queue = new RetryQueue(100, 2, 1000, now::get);
+        ByteBuf data = buffer("put a 1 1 a=b\n");
+        queue.add(data, 0);
+
+        queue.retry(target(false, null));
+        assertEquals(1, queue.size());
+        queue.retry(target(false, null));
+        assertTrue(queue.isEmpty());
+        assertEquals(28, queue.getRetriedBytes());
+        assertEquals(14, queue.getExpiredBytes());
+        assertEquals(0, data.refCnt());
+    }
+
+    @Test
+    public void testMaxAge() {
+        RetryQueue queue = new RetryQueue(100, 3, 1000, now::get);
+        ByteBuf data = buffer("put a 1 1 a=b\n");
+        queue.add(data, 0);
+
+        now.addAndGet(1001);
+        List<String> written = new ArrayList<>();
+        queue.retry(target(true, written));
+        assertEquals(0, written.size());
+        assertEquals(14, queue.getExpiredBytes());
+        assertEquals(0, queue.getRetriedBytes());
+        assertEquals(0, data.refCnt());
+    }
+
+    @Test
+    public void testEvictsOldest() {
+        RetryQueue queue = new RetryQueue(30, 3, 1000, now::get);
+        ByteBuf first = buffer("put a 1 1 a=b\n");
+        queue.add(first, 0);
+        queue.add(buffer("put b 1 1 a=b\n"), 0);
+        queue.add(buffer("put c 1 1 a=b\n"), 0);
+
+        assertEquals(2, queue.size());
+        assertEquals(14, queue.getEvictedBytes());
+        assertEquals(0, first.refCnt());
+        assertFalse(queue.add(buffer("this buffer is bigger than the whole queue\n"), 0));
+
+        List<String> written = new ArrayList<>();
+        queue.retry(target(true, written));
+        assertEquals("put b 1 1 a=b\n", written.get(0));
+        assertEquals("put c 1 1 a=b\n", written.get(1));
+    }
+
+    @Test
+    public void testNoSenderAvailable() {
+        RetryQueue queue = new RetryQueue(100, 3, 1000, now::get);
+        queue.add(buffer("put a 1 1 a=b\n"), 0);
+
+        queue.retry(new RetryQueue.Target() {
+            @Override
+            public int pick(int lastSender, int length) { return -1; }
+
+            @Override
+            public boolean write(int sender, ByteBuf data) { throw new IllegalStateException(); }
+        });
+        // nothing is lost or counted as a retry while it waits
+        assertEquals(1, queue.size());
+        assertEquals(0, queue.getRetriedBytes());
+
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getBytes());
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.PutEncoder;
+import com.cyngn.vertx.opentsdb.service.RollupStage;
+import com.cyngn.vertx.opentsdb.service.SeriesKey;
+import com.cyngn.vertx.opentsdb.service.SeriesKeyCache;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RollupStageTests {
+
+    private static final long MINUTE = 60 * 1000;
+
+    private final SeriesKeyCache keys = new SeriesKeyCache(100, new PutEncoder(null), "");
+    private final SeriesKey key = keys.get("requests", new JsonObject().put("host", "a"));
+    private final List<String> points = new ArrayList<>();
+
+    private RollupStage stage(String... windows) {
+        return new RollupStage(Arrays.asList(windows), 100,
+                (series, spec, timestamp, value) -> points.add(spec + " " + timestamp + " " + value));
+    }
+
+    @Test
+    public void testParseWindow() {
+        assertEquals(30 * 1000, RollupStage.parseWindow("30s"));
+        assertEquals(10 * MINUTE, RollupStage.parseWindow("10m"));
+        assertEquals(60 * MINUTE, RollupStage.parseWindow("1h"));
+        assertEquals(24 * 60 * MINUTE, RollupStage.parseWindow("1d"));
+
+        for (String invalid : new String[] {"", "m", "10", "10x", "-1m", "0m", "am"}) {
+            try {
+                RollupStage.parseWindow(invalid);
+                throw new AssertionError("expected '" + invalid + "' to be rejected");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testRollsUpWindows() {
+        RollupStage stage = stage("1m");
+        stage.record(key, MINUTE + 1000, "4");
+        stage.record(key, MINUTE + 2000, "1");
+        stage.record(key, MINUTE + 3000, "7.5");
+
+        // the window hasn't ended yet
+        stage.drain(2 * MINUTE - 1);
+        assertTrue(points.isEmpty());
+
+        stage.drain(2 * MINUTE);
+        assertEquals(Arrays.asList("1m-sum 60000 12.5", "1m-count 60000 3", "1m-min 60000 1", "1m-max 60000 7.5"),
+                points);
+    }
+
+    @Test
+    public void testMultipleWindows() {
+        RollupStage stage = stage("1m", "10m");
+        for (int minute = 0; minute < 10; minute++) { stage.record(key, minute * MINUTE, "1"); }
+
+        // each new minute closes the last, the 10 minute window is still open
+        assertEquals(9 * 4, points.size());
+        stage.drain(10 * MINUTE);
+        assertEquals(11 * 4, points.size());
+        assertTrue(points.contains("10m-count 0 10"));
+        assertTrue(points.contains("1m-count 540000 1"));
+    }
+
+    @Test
+    public void testLatePoints() {
+        RollupStage stage = stage("1m");
+        stage.record(key, 2 * MINUTE, "1");
+        stage.record(key, MINUTE, "1");
+        assertEquals(1, stage.getLate());
+
+        stage.drain(3 * MINUTE);
+        stage.record(key, 2 * MINUTE + 1, "1");
+        assertEquals(2, stage.getLate());
+        assertEquals(Collections.singletonList("1m-count 120000 1"), points.subList(1, 2));
+    }
+
+    @Test
+    public void testSkipsAndDropsIdleSeries() {
+        RollupStage stage = stage("1m");
+        stage.record(key, 0, "abc");
+        stage.record(key, 0, "NaN");
+        assertEquals(0, stage.size());
+
+        stage.record(key, 0, "1");
+        stage.drain(MINUTE);
+        assertEquals(1, stage.size());
+        // nothing in the last window, the series is dropped
+        stage.drain(2 * MINUTE);
+        assertEquals(0, stage.size());
+    }
+
+    @Test
+    public void testDrainAll() {
+        RollupStage stage = stage("1h");
+        stage.record(key, 0, "3");
+        stage.drainAll();
+        assertEquals(4, points.size());
+        assertEquals(4, stage.getEmitted());
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.client.MetricsSender;
+import com.cyngn.vertx.opentsdb.service.client.SenderPool;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SenderPoolTests {
+
+    private static class Connection implements MetricsSender {
+        private final List<String> written = new ArrayList<>();
+        private boolean connected = true;
+        private long budget;
+        private int flushes;
+        private Handler<Void> drainHandler;
+
+        Connection(long budget) { this.budget = budget; }
+
+        @Override
+        public boolean write(Buffer data) {
+            written.add(data.toString());
+            budget -= data.length();
+            return true;
+        }
+        @Override
+        public void flush() { flushes++; }
+        @Override
+        public long getWriteBudget() { return Math.max(0, budget); }
+        @Override
+        public boolean isWriteQueueFull() { return budget <= 0; }
+        @Override
+        public void drainHandler(Handler<Void> handler) { drainHandler = handler; }
+        @Override
+        public boolean isConnected() { return connected; }
+        @Override
+        public void close() { connected = false; }
+        @Override
+        public void dumpStats() {  }
+        @Override
+        public String getId() { return "a:4242"; }
+    }
+
+    private static Buffer line(int length) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) { builder.append('x'); }
+        return Buffer.buffer(builder.toString());
+    }
+
+    @Test
+    public void testLeastLoaded() {
+        Connection first = new Connection(100);
+        Connection second = new Connection(50);
+        SenderPool pool = new SenderPool(Arrays.asList(first, second), 2);
+        assertEquals(150, pool.getWriteBudget());
+
+        assertTrue(pool.write(line(80)));
+        assertEquals(1, first.written.size());
+
+        // the first now has 20 bytes of room to the second's 50
+        assertTrue(pool.write(line(40)));
+        assertEquals(1, second.written.size());
+        assertTrue(pool.write(line(5)));
+        assertEquals(2, first.written.size());
+        assertEquals(25, pool.getWriteBudget());
+    }
+
+    @Test
+    public void testTiesRotate() {
+        Connection first = new Connection(Long.MAX_VALUE);
+        Connection second = new Connection(Long.MAX_VALUE);
+        Connection third = new Connection(Long.MAX_VALUE);
+        SenderPool pool = new SenderPool(Arrays.asList(first, second, third), 3);
+
+        for (int i = 0; i < 6; i++) { pool.write(Buffer.buffer()); }
+        assertEquals(2, first.written.size());
+        assertEquals(2, second.written.size());
+        assertEquals(2, third.written.size());
+        assertEquals(Long.MAX_VALUE, pool.getWriteBudget());
+    }
+
+    @Test
+    public void testStandbyTakesOver() {
+        Connection first = new Connection(100);
+        Connection second = new Connection(100);
+        Connection standby = new Connection(100);
+        SenderPool pool = new SenderPool(Arrays.asList(first, second, standby), 2);
+        assertEquals(3, pool.size());
+        assertEquals(200, pool.getWriteBudget());
+
+        for (int i = 0; i < 4; i++) { pool.write(line(10)); }
+        assertEquals(0, standby.written.size());
+
+        first.connected = false;
+        assertTrue(pool.isConnected());
+        assertEquals(180, pool.getWriteBudget());
+        // the standby starts out with more room than the connection that stayed up
+        pool.write(line(10));
+        pool.write(line(10));
+        assertEquals(2, standby.written.size());
+        assertEquals(2, second.written.size());
+
+        // once back the dropped connection is a standby while the other two are up, even with the most room
+        first.connected = true;
+        for (int i = 0; i < 4; i++) { pool.write(line(10)); }
+        assertEquals(2, first.written.size());
+        assertEquals(4, second.written.size());
+        assertEquals(4, standby.written.size());
+
+        second.connected = false;
+        pool.write(line(10));
+        assertEquals(3, first.written.size());
+        assertEquals(4, standby.written.size());
+    }
+
+    @Test
+    public void testNothingConnected() {
+        Connection first = new Connection(100);
+        Connection standby = new Connection(100);
+        SenderPool pool = new SenderPool(Arrays.asList(first, standby), 1);
+        first.connected = false;
+        standby.connected = false;
+
+        assertFalse(pool.isConnected());
+        assertEquals(0, pool.getWriteBudget());
+        ByteBuf data = Unpooled.copiedBuffer(line(10).getBytes());
+        assertFalse(pool.write(data));
+        assertEquals(0, data.refCnt());
+    }
+
+    @Test
+    public void testDrainAndFlush() {
+        Connection first = new Connection(10);
+        Connection second = new Connection(10);
+        SenderPool pool = new SenderPool(Arrays.asList(first, second), 2);
+        int[] drains = new int[1];
+        pool.drainHandler(aVoid -> drains[0]++);
+
+        pool.write(line(10));
+        pool.write(line(10));
+        assertTrue(pool.isWriteQueueFull());
+
+        second.budget = 10;
+        assertFalse(pool.isWriteQueueFull());
+        second.drainHandler.handle(null);
+        assertEquals(1, drains[0]);
+
+        pool.flush();
+        assertEquals(1, first.flushes);
+        assertEquals(1, second.flushes);
+    }
+
+    @Test
+    public void testOpen() {
+        List<Consumer<Boolean>> pending = new ArrayList<>();
+        List<Boolean> results = new ArrayList<>();
+        SenderPool pool = SenderPool.open(2, 1, onConnected -> {
+            pending.add(onConnected);
+            return new Connection(100);
+        }, results::add);
+        assertEquals(3, pool.size());
+
+        pending.get(0).accept(true);
+        pending.get(1).accept(true);
+        assertTrue(results.isEmpty());
+        pending.get(2).accept(true);
+        assertEquals(Arrays.asList(true), results);
+
+        pending.clear();
+        results.clear();
+        SenderPool.open(2, 0, onConnected -> {
+            pending.add(onConnected);
+            return new Connection(100);
+        }, results::add);
+        pending.get(0).accept(false);
+        pending.get(1).accept(true);
+        assertEquals(Arrays.asList(false), results);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoActiveConnections() {
+        new SenderPool(Arrays.asList(new Connection(100)), 0);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.PutEncoder;
+import com.cyngn.vertx.opentsdb.service.SenderRing;
+import com.cyngn.vertx.opentsdb.service.SeriesKeyCache;
+import com.cyngn.vertx.opentsdb.service.client.MetricsSender;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SenderRingTests {
+
+    private static final int SERIES = 10000;
+
+    private static MetricsSender sender(String id) {
+        return new MetricsSender() {
+            @Override
+            public boolean write(Buffer data) { return true; }
+            @Override
+            public boolean isConnected() { return true; }
+            @Override
+            public void close() {  }
+            @Override
+            public void dumpStats() {  }
+            @Override
+            public String getId() { return id; }
+        };
+    }
+
+    private static int[] seriesHashes() {
+        SeriesKeyCache cache = new SeriesKeyCache(SERIES, new PutEncoder(null), "");
+        int[] hashes = new int[SERIES];
+        for (int i = 0; i < SERIES; i++) {
+            hashes[i] = cache.get("test.value", new JsonObject().put("host", "host" + i)).shardHash();
+        }
+        return hashes;
+    }
+
+    @Test
+    public void testSticky() {
+        List<MetricsSender> senders = Arrays.asList(sender("a:4242"), sender("b:4242"), sender("c:4242"));
+        SenderRing ring = new SenderRing(senders, 160);
+        SenderRing rebuilt = new SenderRing(senders, 160);
+
+        for (int hash : seriesHashes()) {
+            assertEquals(ring.indexFor(hash), ring.indexFor(hash));
+            assertEquals(ring.indexFor(hash), rebuilt.indexFor(hash));
+        }
+    }
+
+    @Test
+    public void testSpread() {
+        SenderRing ring = new SenderRing(Arrays.asList(sender("a:4242"), sender("b:4242"), sender("c:4242")), 160);
+
+        int[] counts = new int[3];
+        for (int hash : seriesHashes()) { counts[ring.indexFor(hash)]++; }
+
+        // each host should get roughly a third
+        for (int count : counts) { assertTrue("uneven spread " + Arrays.toString(counts), count > SERIES / 4); }
+    }
+
+    @Test
+    public void testMinimalMovement() {
+        List<MetricsSender> senders = new ArrayList<>(Arrays.asList(sender("a:4242"), sender("b:4242"),
+                sender("c:4242")));
+        SenderRing before = new SenderRing(senders, 160);
+        senders.add(sender("d:4242"));
+        SenderRing after = new SenderRing(senders, 160);
+
+        int moved = 0;
+        for (int hash : seriesHashes()) {
+            int was = before.indexFor(hash);
+            int now = after.indexFor(hash);
+            if (was != now) {
+                // series only ever move to the new host
+                assertEquals(3, now);
+                moved++;
+            }
+        }
+
+        // ideally a quarter of the series move
+        assertTrue("moved " + moved, moved > SERIES / 8 && moved < SERIES * 3 / 8);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoSenders() {
+        new SenderRing(new ArrayList<>(), 160);
+    }
+}
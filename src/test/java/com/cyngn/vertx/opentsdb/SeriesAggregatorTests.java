@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.PutEncoder;
+import com.cyngn.vertx.opentsdb.service.SeriesAggregator;
+import com.cyngn.vertx.opentsdb.service.SeriesKey;
+import com.cyngn.vertx.opentsdb.service.SeriesKeyCache;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SeriesAggregatorTests {
+
+    private final JsonObject tags = new JsonObject().put("host", "a");
+    private final SeriesKeyCache keys = new SeriesKeyCache(100, new PutEncoder(null), "");
+
+    private void record(SeriesAggregator aggregator, String name, String type, String value) {
+        SeriesKey key = keys.get(name, tags);
+        assertNull(aggregator.check(key, type, value));
+        aggregator.record(key, type, value, tags);
+    }
+
+    private static Map<String, String> drain(SeriesAggregator aggregator) {
+        Map<String, String> points = new TreeMap<>();
+        aggregator.drainTo((key, value) -> points.put(key.getName(), value));
+        return points;
+    }
+
+    @Test
+    public void testCounter() {
+        SeriesAggregator aggregator = new SeriesAggregator(10, keys);
+        record(aggregator, "hits", "counter", "1");
+        record(aggregator, "hits", "counter", "2");
+        record(aggregator, "hits", "counter", "3");
+        assertEquals("6", drain(aggregator).get("hits"));
+
+        record(aggregator, "hits", "counter", "0.5");
+        assertEquals("0.5", drain(aggregator).get("hits"));
+    }
+
+    @Test
+    public void testGauge() {
+        SeriesAggregator aggregator = new SeriesAggregator(10, keys);
+        record(aggregator, "depth", "gauge", "10");
+        record(aggregator, "depth", "gauge", "7");
+        assertEquals("7", drain(aggregator).get("depth"));
+    }
+
+    @Test
+    public void testTimer() {
+        SeriesAggregator aggregator = new SeriesAggregator(10, keys);
+        record(aggregator, "latency", "timer", "10");
+        record(aggregator, "latency", "timer", "30");
+        record(aggregator, "latency", "timer", "5");
+
+        Map<String, String> points = drain(aggregator);
+        assertEquals(4, points.size());
+        assertEquals("3", points.get("latency.count"));
+        assertEquals("5", points.get("latency.min"));
+        assertEquals("30", points.get("latency.max"));
+        assertEquals("15", points.get("latency.mean"));
+        assertEquals(4, aggregator.getEmitted());
+    }
+
+    @Test
+    public void testSet() {
+        SeriesAggregator aggregator = new SeriesAggregator(10, keys);
+        record(aggregator, "users", "set", "bob");
+        record(aggregator, "users", "set", "alice");
+        record(aggregator, "users", "set", "bob");
+        assertEquals("2", drain(aggregator).get("users"));
+
+        record(aggregator, "users", "set", "bob");
+        assertEquals("1", drain(aggregator).get("users"));
+    }
+
+    @Test
+    public void testHistogram() {
+        SeriesAggregator aggregator = new SeriesAggregator(10, keys);
+        for (int i = 1; i <= 100; i++) { record(aggregator, "latency", "histogram", Integer.toString(i)); }
+
+        Map<String, String> points = drain(aggregator);
+        assertEquals(6, points.size());
+        assertEquals("50", points.get("latency.p50"));
+        assertEquals("100", points.get("latency.max"));
+        assertEquals("100", points.get("latency.count"));
+
+        // the histogram starts over every window
+        record(aggregator, "latency", "histogram", "7");
+        assertEquals("1", drain(aggregator).get("latency.count"));
+    }
+
+    @Test
+    public void testWindows() {
+        SeriesAggregator aggregator = new SeriesAggregator(10, keys);
+        record(aggregator, "hits", "counter", "1");
+        record(aggregator, "misses", "counter", "1");
+        assertEquals(2, drain(aggregator).size());
+
+        // only series that reported in the window are emitted, idle ones are dropped
+        record(aggregator, "hits", "counter", "1");
+        assertEquals(1, drain(aggregator).size());
+        assertEquals(1, aggregator.size());
+        assertTrue(drain(aggregator).isEmpty());
+        assertEquals(0, aggregator.size());
+    }
+
+    @Test
+    public void testCheck() {
+        SeriesAggregator aggregator = new SeriesAggregator(1, keys);
+        SeriesKey hits = keys.get("hits", tags);
+
+        assertNotNull(aggregator.check(hits, "meter", "1"));
+        assertNotNull(aggregator.check(hits, "counter", "abc"));
+        assertNotNull(aggregator.check(hits, "timer", "Infinity"));
+        assertNull(aggregator.check(hits, "gauge", "abc"));
+
+        record(aggregator, "hits", "counter", "1");
+        assertNotNull(aggregator.check(hits, "gauge", "1"));
+        // the table is full
+        assertNotNull(aggregator.check(keys.get("misses", tags), "counter", "1"));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.PutEncoder;
+import com.cyngn.vertx.opentsdb.service.SeriesCoalescer;
+import com.cyngn.vertx.opentsdb.service.SeriesKey;
+import com.cyngn.vertx.opentsdb.service.SeriesKeyCache;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SeriesCoalescerTests {
+
+    private final PutEncoder encoder = new PutEncoder(null);
+    private final SeriesKeyCache keys = new SeriesKeyCache(100, encoder, "");
+
+    private boolean add(SeriesCoalescer coalescer, String name, String value) {
+        SeriesKey key = keys.get(name, new JsonObject().put("host", "a"));
+        int length = encoder.encode(key, 1, value);
+        return coalescer.add(key, encoder.getLine(), 0, length);
+    }
+
+    private static List<String> drain(SeriesCoalescer coalescer) {
+        List<String> lines = new ArrayList<>();
+        coalescer.drainTo((line, offset, length, shardHash) ->
+                lines.add(new String(line, offset, length, StandardCharsets.UTF_8)));
+        return lines;
+    }
+
+    @Test
+    public void testLastValueWins() {
+        SeriesCoalescer coalescer = new SeriesCoalescer(10);
+        assertTrue(add(coalescer, "a", "1"));
+        assertTrue(add(coalescer, "b", "1"));
+        assertTrue(add(coalescer, "a", "2"));
+        assertTrue(add(coalescer, "a", "3"));
+
+        assertEquals(2, coalescer.size());
+        assertEquals(2, coalescer.getCoalesced());
+        // series come out in the order they first showed up
+        assertEquals(Arrays.asList("put a 1 3 host=a\n", "put b 1 1 host=a\n"), drain(coalescer));
+        assertTrue(coalescer.isEmpty());
+    }
+
+    @Test
+    public void testNewWindow() {
+        SeriesCoalescer coalescer = new SeriesCoalescer(10);
+        add(coalescer, "a", "1");
+        drain(coalescer);
+
+        add(coalescer, "a", "longer value than before");
+        assertEquals(Arrays.asList("put a 1 longer value than before host=a\n"), drain(coalescer));
+        assertEquals(0, drain(coalescer).size());
+    }
+
+    @Test
+    public void testFull() {
+        SeriesCoalescer coalescer = new SeriesCoalescer(2);
+        assertTrue(add(coalescer, "a", "1"));
+        assertTrue(add(coalescer, "b", "1"));
+        assertFalse(add(coalescer, "c", "1"));
+        // series already held still coalesce
+        assertTrue(add(coalescer, "b", "2"));
+        assertEquals(1, coalescer.getOverflowed());
+        assertEquals(Arrays.asList("put a 1 1 host=a\n", "put b 1 2 host=a\n"), drain(coalescer));
+    }
+
+    @Test
+    public void testManySeries() {
+        SeriesCoalescer coalescer = new SeriesCoalescer(1000);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 1000; i++) { assertTrue(add(coalescer, "series" + i, Integer.toString(round))); }
+        }
+        List<String> lines = drain(coalescer);
+        assertEquals(1000, lines.size());
+        lines.forEach(line -> assertTrue(line.contains(" 1 2 ")));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.PutEncoder;
+import com.cyngn.vertx.opentsdb.service.SeriesKey;
+import com.cyngn.vertx.opentsdb.service.SeriesKeyCache;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class SeriesKeyCacheTests {
+
+    @Test
+    public void testHit() {
+        SeriesKeyCache cache = new SeriesKeyCache(10, new PutEncoder(null), "");
+        SeriesKey key = cache.get("test.value", new JsonObject().put("foo", "bar"));
+
+        assertSame(key, cache.get("test.value", new JsonObject().put("foo", "bar")));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testTagOrderIgnored() {
+        SeriesKeyCache cache = new SeriesKeyCache(10, new PutEncoder(null), "");
+        SeriesKey key = cache.get("test.value", new JsonObject().put("b", "2").put("a", "1"));
+
+        assertSame(key, cache.get("test.value", new JsonObject().put("a", "1").put("b", "2")));
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testDifferentSeries() {
+        SeriesKeyCache cache = new SeriesKeyCache(10, new PutEncoder(null), "");
+        SeriesKey key = cache.get("test.value", new JsonObject().put("a", "1"));
+
+        assertNotSame(key, cache.get("test.value", new JsonObject().put("a", "2")));
+        assertNotSame(key, cache.get("test.other", new JsonObject().put("a", "1")));
+        assertNotSame(key, cache.get("test.value", new JsonObject().put("a", "1").put("b", "1")));
+        assertNotSame(key, cache.get("test.value", null));
+        assertEquals(5, cache.getMisses());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void testEviction() {
+        SeriesKeyCache cache = new SeriesKeyCache(2, new PutEncoder(null), "");
+        SeriesKey first = cache.get("first", null);
+        cache.get("second", null);
+
+        // touch the first so second becomes the least recently used
+        cache.get("first", null);
+        cache.get("third", null);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertSame(first, cache.get("first", null));
+
+        cache.get("second", null);
+        assertEquals(4, cache.getMisses());
+        assertEquals(2, cache.getEvictions());
+    }
+
+    @Test
+    public void testEncoding() {
+        PutEncoder encoder = new PutEncoder("svc");
+        SeriesKeyCache cache = new SeriesKeyCache(10, encoder, "host=foo.com");
+        SeriesKey key = cache.get("test.value", new JsonObject().put("zone", "b").put("api", "get"));
+
+        Buffer buffer = Buffer.buffer();
+        int written = encoder.encode(buffer, key, 1000, "12.5");
+
+        assertEquals("put svc.test.value 1000 12.5 host=foo.com api=get zone=b\n", buffer.toString());
+        assertEquals(buffer.length(), written);
+    }
+
+    @Test
+    public void testShardHashFromLine() {
+        PutEncoder encoder = new PutEncoder("prefix");
+        SeriesKeyCache cache = new SeriesKeyCache(10, encoder, "host=a");
+        SeriesKey key = cache.get("test.value", new JsonObject().put("foo", "bar"));
+
+        // a spilled line hashes the same as the series it was encoded from
+        int length = encoder.encode(key, 1462900000L, "12.5");
+        byte[] line = new byte[length + 3];
+        System.arraycopy(encoder.getLine(), 0, line, 3, length);
+        assertEquals(key.shardHash(), SeriesKey.shardHash(line, 3, length));
+
+        // as do rollup and histogram lines for the series
+        length = encoder.encodeRollup(key, "10m-max", 1462900000L, "12.5");
+        assertEquals(key.shardHash(), SeriesKey.shardHash(encoder.getLine(), 0, length));
+        length = encoder.encodeHistogram(key, 1462900000L, 0, new byte[] {4, 5, 6, 7});
+        assertEquals(key.shardHash(), SeriesKey.shardHash(encoder.getLine(), 0, length));
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.OpenTsDbService;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.NetServer;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the service against a socket standing in for TSD and checks what it is sent.
+ */
+@RunWith(VertxUnitRunner.class)
+public class ServiceFlushTests {
+
+    private static final String ADDRESS = "test-flush";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Vertx vertx;
+    private NetServer server;
+    private StringBuffer received;
+
+    @Before
+    public void before(TestContext context) {
+        vertx = Vertx.vertx();
+        received = new StringBuffer();
+        server = vertx.createNetServer()
+                .connectHandler(socket -> socket.handler(data -> received.append(data.toString())))
+                .listen(0, "localhost", context.asyncAssertSuccess());
+    }
+
+    @After
+    public void after(TestContext context) {
+        vertx.close(context.asyncAssertSuccess());
+    }
+
+    private JsonObject config() {
+        return new JsonObject().put("address", ADDRESS).put("flush_interval_milli", 50)
+                .put("hosts", new JsonArray().add(new JsonObject().put("host", "localhost")
+                        .put("port", server.actualPort())));
+    }
+
+    private static JsonObject metric(String name, String value) {
+        return new JsonObject().put("name", name).put("value", value).put("tags", new JsonObject().put("foo", "bar"));
+    }
+
+    private List<String> lines(String name) {
+        List<String> lines = new ArrayList<>();
+        for (String line : received.toString().split("\n")) {
+            if (line.startsWith("put " + name + " ")) { lines.add(line); }
+        }
+        return lines;
+    }
+
+    @Test
+    public void testTimestampedPointsNotCoalesced(TestContext context) {
+        Async async = context.async();
+        long now = System.currentTimeMillis();
+        JsonArray metrics = new JsonArray()
+                .add(metric("backfill", "1").put("timestamp", now - 2000))
+                .add(metric("backfill", "2").put("timestamp", now - 1000))
+                .add(metric("gauge", "1"))
+                .add(metric("gauge", "2"));
+
+        vertx.deployVerticle(OpenTsDbService.class.getName(),
+                new DeploymentOptions().setConfig(config().put("coalesce", true)), context.asyncAssertSuccess(id ->
+                vertx.eventBus().send(ADDRESS, new JsonObject().put("action", OpenTsDbService.ADD_ALL_COMMAND)
+                        .put("metrics", metrics), context.asyncAssertSuccess(reply ->
+                vertx.setPeriodic(20, timerId -> {
+                    // the whole batch goes out in one flush, the gauge last
+                    if (lines("gauge").isEmpty()) { return; }
+                    vertx.cancelTimer(timerId);
+
+                    // each backfilled point stands for its own moment, only the gauge is coalesced
+                    context.assertEquals(2, lines("backfill").size());
+                    context.assertEquals("put backfill " + (now - 2000) + " 1 foo=bar", lines("backfill").get(0));
+                    context.assertEquals("put backfill " + (now - 1000) + " 2 foo=bar", lines("backfill").get(1));
+                    context.assertEquals(1, lines("gauge").size());
+                    context.assertTrue(lines("gauge").get(0).endsWith(" 2 foo=bar"));
+                    async.complete();
+                })))));
+    }
+
+    @Test(timeout = 10000)
+    public void testResumedOnceBacklogSpilled(TestContext context) {
+        Async async = context.async();
+        int total = 30;
+        JsonObject config = config().put("overload_policy", "block_publisher").put("max_metric_backlog", 10)
+                .put("spill_dir", folder.getRoot().getPath());
+
+        Async paused = context.async();
+        vertx.eventBus().consumer(OpenTsDbService.ERROR_MESSAGE_ADDRESS, message -> {
+            if (!paused.isCompleted()) { paused.complete(); }
+        });
+
+        vertx.deployVerticle(OpenTsDbService.class.getName(), new DeploymentOptions().setConfig(config),
+                context.asyncAssertSuccess(id -> server.close(context.asyncAssertSuccess(closed -> {
+                    // with every host down the backlog fills up, then goes to disk and the publishers are let back in
+                    int[] replies = {0};
+                    for (int i = 0; i < total; i++) {
+                        vertx.eventBus().send(ADDRESS, metric("spilled" + i, "1").put("action",
+                                OpenTsDbService.ADD_COMMAND), context.asyncAssertSuccess(reply -> {
+                            if (++replies[0] == total) { async.complete(); }
+                        }));
+                    }
+                }))));
+    }
+
+    @Test
+    public void testBacklogMetricsPublished(TestContext context) {
+        Async async = context.async();
+        JsonObject config = config().put("backlog_metrics", true).put("spi_publish_interval", 50);
+
+        vertx.deployVerticle(OpenTsDbService.class.getName(), new DeploymentOptions().setConfig(config),
+                context.asyncAssertSuccess(id -> vertx.eventBus().send(ADDRESS, metric("queued", "1")
+                        .put("action", OpenTsDbService.ADD_COMMAND), context.asyncAssertSuccess(reply ->
+                vertx.setPeriodic(20, timerId -> {
+                    if (lines(OpenTsDbService.SLAB_BYTES_IN_USE_METRIC).isEmpty()) { return; }
+                    vertx.cancelTimer(timerId);
+
+                    // the point queued above had a slab allocated for it
+                    String allocated = lines(OpenTsDbService.SLAB_BYTES_METRIC).get(0);
+                    context.assertTrue(Long.parseLong(allocated.split(" ")[3]) > 0);
+                    context.assertTrue(allocated.endsWith(" instance=0"));
+                    async.complete();
+                })))));
+    }
+
+    @Test(timeout = 10000)
+    public void testHandedOverMetricsWaitWhilePaused(TestContext context) {
+        Async async = context.async();
+        int total = 60;
+        JsonObject config = config().put("overload_policy", "block_publisher").put("max_metric_backlog", 20);
+
+        vertx.deployVerticle(OpenTsDbService.class.getName(), new DeploymentOptions().setConfig(config).setInstances(2),
+                context.asyncAssertSuccess(id -> {
+                    // on change series are handed to the instance that owns them, a full instance has to hold those
+                    //  back too rather than reject them
+                    int[] replies = {0};
+                    for (int i = 0; i < total; i++) {
+                        vertx.eventBus().send(ADDRESS, metric("handed" + i, "1").put("on_change", true)
+                                .put("action", OpenTsDbService.ADD_COMMAND), context.asyncAssertSuccess(reply -> {
+                            if (++replies[0] == total) { async.complete(); }
+                        }));
+                    }
+                }));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.SpillQueue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpillQueueTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void append(SpillQueue spill, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        assertTrue(spill.append(bytes, 0, bytes.length));
+    }
+
+    private static List<String> replay(SpillQueue spill, long maxBytes) {
+        List<String> lines = new ArrayList<>();
+        spill.replay(maxBytes, (line, offset, length) ->
+                lines.add(new String(line, offset, length, StandardCharsets.UTF_8)));
+        return lines;
+    }
+
+    private int segmentCount() {
+        return folder.getRoot().list().length;
+    }
+
+    @Test
+    public void testAppendAndReplay() throws IOException {
+        SpillQueue spill = new SpillQueue(folder.getRoot(), 1024, 1024);
+        append(spill, "put a 1 1 x=y\n");
+        byte[] second = "put b 1 2 x=y\n".getBytes(StandardCharsets.UTF_8);
+        assertTrue(spill.append(Unpooled.wrappedBuffer(second), 0, second.length));
+        assertEquals(28, spill.getBytes());
+
+        assertEquals(Arrays.asList("put a 1 1 x=y\n", "put b 1 2 x=y\n"), replay(spill, Long.MAX_VALUE));
+        assertTrue(spill.isEmpty());
+        assertEquals(28, spill.getReplayedBytes());
+        // the segment is deleted once replayed
+        assertEquals(0, segmentCount());
+        spill.close();
+    }
+
+    @Test
+    public void testReplayRate() throws IOException {
+        SpillQueue spill = new SpillQueue(folder.getRoot(), 1024, 1024);
+        for (int i = 0; i < 10; i++) { append(spill, "put a 1 " + i + " x=y\n"); }
+
+        // the line that crosses the allowance still goes
+        assertEquals(2, replay(spill, 15).size());
+        assertEquals(8 * 14, spill.getBytes());
+        assertEquals(8, replay(spill, Long.MAX_VALUE).size());
+        spill.close();
+    }
+
+    @Test
+    public void testSinkFull() throws IOException {
+        SpillQueue spill = new SpillQueue(folder.getRoot(), 1024, 1024);
+        for (int i = 0; i < 3; i++) { append(spill, "put a 1 " + i + " x=y\n"); }
+
+        List<String> taken = new ArrayList<>();
+        spill.replay(Long.MAX_VALUE, (line, offset, length) -> {
+            if (taken.size() == 1) { return false; }
+            taken.add(new String(line, offset, length, StandardCharsets.UTF_8));
+            return true;
+        });
+        assertEquals(1, taken.size());
+        assertEquals(Arrays.asList("put a 1 1 x=y\n", "put a 1 2 x=y\n"), replay(spill, Long.MAX_VALUE));
+        spill.close();
+    }
+
+    @Test
+    public void testReadUntilConsumed() throws IOException {
+        SpillQueue spill = new SpillQueue(folder.getRoot(), 1024, 1024);
+        for (int i = 0; i < 3; i++) { append(spill, "put a 1 " + i + " x=y\n"); }
+
+        ByteBuf lines = Unpooled.buffer();
+        assertEquals(28, spill.read(15, lines));
+        // read again from the same place until consumed
+        lines.clear();
+        assertEquals(28, spill.read(15, lines));
+        assertEquals(42, spill.getBytes());
+
+        spill.consume(14);
+        assertEquals(28, spill.getBytes());
+        assertEquals(Arrays.asList("put a 1 1 x=y\n", "put a 1 2 x=y\n"), replay(spill, Long.MAX_VALUE));
+        assertEquals(0, segmentCount());
+        spill.close();
+    }
+
+    @Test
+    public void testFull() throws IOException {
+        SpillQueue spill = new SpillQueue(folder.getRoot(), 20, 1024);
+        append(spill, "put a 1 1 x=y\n");
+        byte[] line = "put b 1 2 x=y\n".getBytes(StandardCharsets.UTF_8);
+        assertFalse(spill.append(line, 0, line.length));
+        assertEquals(14, spill.getRejectedBytes());
+        spill.close();
+    }
+
+    @Test
+    public void testSegmentsRoll() throws IOException {
+        SpillQueue spill = new SpillQueue(folder.getRoot(), 1024 * 1024, 100);
+        // each sync lands in the current segment until it is over the segment size
+        for (int i = 0; i < 20; i++) {
+            append(spill, "put a 1 " + i + " x=y\n");
+            spill.sync();
+        }
+        assertTrue(segmentCount() > 1);
+
+        List<String> lines = replay(spill, Long.MAX_VALUE);
+        assertEquals(20, lines.size());
+        assertEquals("put a 1 0 x=y\n", lines.get(0));
+        assertEquals("put a 1 19 x=y\n", lines.get(19));
+        assertEquals(0, segmentCount());
+        spill.close();
+    }
+
+    @Test
+    public void testRestoredAfterRestart() throws IOException {
+        File dir = folder.getRoot();
+        SpillQueue spill = new SpillQueue(dir, 1024, 1024);
+        for (int i = 0; i < 5; i++) { append(spill, "put a 1 " + i + " x=y\n"); }
+        assertEquals(1, replay(spill, 1).size());
+        spill.close();
+
+        // only what wasn't replayed comes back
+        SpillQueue restored = new SpillQueue(dir, 1024, 1024);
+        assertEquals(4 * 14, restored.getBytes());
+        List<String> lines = replay(restored, Long.MAX_VALUE);
+        assertEquals(4, lines.size());
+        assertEquals("put a 1 1 x=y\n", lines.get(0));
+
+        // new writes after a restart go to a fresh segment behind the old ones
+        append(restored, "put a 1 5 x=y\n");
+        assertEquals(Arrays.asList("put a 1 5 x=y\n"), replay(restored, Long.MAX_VALUE));
+        restored.close();
+    }
+
+    @Test
+    public void testPartialLineSkipped() throws IOException {
+        File dir = folder.getRoot();
+        SpillQueue spill = new SpillQueue(dir, 1024, 1024);
+        append(spill, "put a 1 1 x=y\n");
+        spill.close();
+
+        // simulate a crash part way through writing a line
+        File segment = dir.listFiles()[0];
+        Files.write(segment.toPath(), "put b 1".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        SpillQueue restored = new SpillQueue(dir, 1024, 1024);
+        assertEquals(Arrays.asList("put a 1 1 x=y\n"), replay(restored, Long.MAX_VALUE));
+        assertTrue(restored.isEmpty());
+        restored.close();
+    }
+}
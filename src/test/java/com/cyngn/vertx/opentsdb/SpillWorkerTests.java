@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Cyanogen Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package com.cyngn.vertx.opentsdb;
+
+import com.cyngn.vertx.opentsdb.service.SpillWorker;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.junit.VertxUnitRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Runs the spill on an event loop context of its own, the way the service does.
+ */
+@RunWith(VertxUnitRunner.class)
+public class SpillWorkerTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Vertx vertx;
+    private Context context;
+
+    @Before
+    public void before() {
+        vertx = Vertx.vertx();
+        context = vertx.getOrCreateContext();
+    }
+
+    @After
+    public void after(TestContext testContext) {
+        vertx.close(testContext.asyncAssertSuccess());
+    }
+
+    private void open(TestContext testContext, Consumer<SpillWorker> test) {
+        context.runOnContext(v -> SpillWorker.open(context, folder.getRoot(), 1024, 1024,
+                testContext.asyncAssertSuccess(test::accept)));
+    }
+
+    private static void append(SpillWorker spill, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        spill.append(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testSpillAndReplay(TestContext testContext) {
+        Async async = testContext.async();
+        List<String> lines = new ArrayList<>();
+
+        open(testContext, spill -> {
+            for (int i = 0; i < 3; i++) { append(spill, "put a 1 " + i + " x=y\n"); }
+            testContext.assertEquals(42L, spill.getBytes());
+            testContext.assertEquals(1024L - 42, spill.getRemainingBytes());
+
+            // the lines are written and read back on a worker, then offered on the event loop
+            spill.replay(Long.MAX_VALUE, (line, offset, length) -> {
+                testContext.assertTrue(Vertx.currentContext() == context);
+                lines.add(new String(line, offset, length, StandardCharsets.UTF_8));
+                if (lines.size() < 3) { return true; }
+
+                testContext.assertEquals(Arrays.asList("put a 1 0 x=y\n", "put a 1 1 x=y\n", "put a 1 2 x=y\n"),
+                        lines);
+                vertx.runOnContext(aVoid -> {
+                    testContext.assertTrue(spill.isEmpty());
+                    spill.close(closed -> async.complete());
+                });
+                return true;
+            });
+        });
+    }
+
+    @Test
+    public void testLinesNotTakenAreOfferedAgain(TestContext testContext) {
+        Async async = testContext.async();
+        List<String> lines = new ArrayList<>();
+
+        open(testContext, spill -> {
+            for (int i = 0; i < 3; i++) { append(spill, "put a 1 " + i + " x=y\n"); }
+            spill.replay(Long.MAX_VALUE, (line, offset, length) -> {
+                if (!lines.isEmpty()) { return false; }
+                lines.add(new String(line, offset, length, StandardCharsets.UTF_8));
+                testContext.assertEquals(42L, spill.getBytes());
+
+                context.runOnContext(aVoid -> {
+                    testContext.assertEquals(28L, spill.getBytes());
+                    // offered again from memory, the sink takes them this time
+                    spill.replay(Long.MAX_VALUE, (again, againOffset, againLength) -> {
+                        lines.add(new String(again, againOffset, againLength, StandardCharsets.UTF_8));
+                        return true;
+                    });
+                    testContext.assertEquals(Arrays.asList("put a 1 0 x=y\n", "put a 1 1 x=y\n", "put a 1 2 x=y\n"),
+                            lines);
+                    testContext.assertTrue(spill.isEmpty());
+                    spill.close(closed -> async.complete());
+                });
+                return true;
+            });
+        });
+    }
+
+    @Test
+    public void testRestoredAfterClose(TestContext testContext) {
+        Async async = testContext.async();
+
+        open(testContext, spill -> {
+            append(spill, "put a 1 1 x=y\n");
+            append(spill, "put a 1 2 x=y\n");
+            spill.close(closed -> open(testContext, restored -> {
+                testContext.assertEquals(28L, restored.getBytes());
+                restored.close(aVoid -> async.complete());
+            }));
+        });
+    }
+}